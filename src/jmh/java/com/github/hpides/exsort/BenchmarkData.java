@@ -0,0 +1,41 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.executables.DataGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Generates the inputs of the benchmarks with the DataGenerator, with keys of a fixed length and its default seed, so
+ * the same parameters always generate the same file.
+ */
+final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @param sizeInBytes    Size of the file, it ends with the first record that reaches this size.
+     * @param duplicateRatio Share of the records that are a copy of another record, between 0 and 1.
+     */
+    static File generate(final long sizeInBytes, final int recordLength, final double duplicateRatio)
+            throws IOException {
+        final File file = File.createTempFile("benchmark", ".txt");
+        DataGenerator.fromArguments(List.of("minKeyLength=" + recordLength, "maxKeyLength=" + recordLength,
+                "duplicateRatio=" + duplicateRatio)).generate(file, sizeInBytes);
+        return file;
+    }
+
+    /**
+     * Deletes a directory with all files in it.
+     */
+    static void deleteRecursively(final Path directory) throws IOException {
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits an input file into chunks of the memory budget with `LocalFileSorter.chunkFile()`.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkFileBenchmark {
+    @Param({"67108864"})
+    public long inputSize;
+
+    @Param({"16", "128"})
+    public int recordLength;
+
+    @Param({"0.0", "0.9"})
+    public double duplicateRatio;
+
+    @Param({"1048576", "16777216"})
+    public long memoryBudget;
+
+    private File input;
+    private List<File> chunks;
+
+    @Setup(Level.Trial)
+    public void generateInput() throws IOException {
+        this.input = BenchmarkData.generate(this.inputSize, this.recordLength, this.duplicateRatio);
+    }
+
+    @Benchmark
+    public List<File> chunkFile() throws IOException {
+        this.chunks = LocalFileSorter.chunkFile(this.input.getPath(), this.memoryBudget);
+        return this.chunks;
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteChunks() {
+        if (this.chunks != null) {
+            this.chunks.forEach(File::delete);
+            this.chunks = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteInput() {
+        this.input.delete();
+    }
+}
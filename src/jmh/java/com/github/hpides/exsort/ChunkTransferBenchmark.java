@@ -0,0 +1,116 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fetches all chunks of a sorted file from a RemoteFileSorterServer over loopback with
+ * `RemoteFileSorterClient.getNextFileChunk()`, one request at a time. The server sorts the file once per trial and
+ * chunks it again before every invocation, so only the transfer is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ChunkTransferBenchmark {
+    private static final int CONNECT_ATTEMPTS = 50;
+
+    @Param({"67108864"})
+    public long inputSize;
+
+    @Param({"16", "128"})
+    public int recordLength;
+
+    @Param({"0.0", "0.9"})
+    public double duplicateRatio;
+
+    @Param({"1048576", "16777216"})
+    public long memoryBudget;
+
+    @Param({"TEXT", "FRONT_CODED_DEFLATE"})
+    public RunFormat wireFormat;
+
+    private Path directory;
+    private String sortedFileName;
+    private RemoteFileSorterClient client;
+
+    @Setup(Level.Trial)
+    public void startServer() throws IOException, InterruptedException {
+        final int port;
+        try (final ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final Thread server = new Thread(new RemoteFileSorterServer(port), "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+        this.client = connect(port);
+        this.client.negotiateWireFormat(this.wireFormat);
+
+        // The server writes its output next to the name it is given, so everything goes into one directory
+        this.directory = Files.createTempDirectory("benchmark");
+        final File input = BenchmarkData.generate(this.inputSize, this.recordLength, this.duplicateRatio);
+        Files.move(input.toPath(), this.directory.resolve("input.txt"));
+        this.sortedFileName = this.directory.resolve("sorted").toString();
+        this.client.sortRemoteFile(this.directory.resolve("input.txt").toString(), this.sortedFileName,
+                (int) Math.min(Integer.MAX_VALUE, this.memoryBudget));
+        this.client.waitForCommandToComplete();
+    }
+
+    private static RemoteFileSorterClient connect(final int port) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new RemoteFileSorterClient("localhost", port);
+            } catch (final RuntimeException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                // The server is not listening yet
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void chunkFile() {
+        this.client.chunkRemoteFile(this.sortedFileName, this.memoryBudget);
+        this.client.waitForCommandToComplete();
+    }
+
+    @Benchmark
+    public long transferChunks() {
+        long transferredBytes = 0;
+        Optional<File> chunk;
+        while ((chunk = this.client.getNextFileChunk()).isPresent()) {
+            transferredBytes += chunk.get().length();
+            chunk.get().delete();
+        }
+        return transferredBytes;
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws IOException {
+        this.client.close();
+        BenchmarkData.deleteRecursively(this.directory);
+    }
+}
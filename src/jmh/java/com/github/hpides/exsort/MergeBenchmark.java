@@ -0,0 +1,74 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merges `fanIn` sorted runs into an output file in one pass with `LocalFileSorter.mergeRuns()`. The memory budget is
+ * split between the read buffers of the runs and the output buffer like in the MergePlanner, so high fan-ins with
+ * small budgets show the cost of small buffers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MergeBenchmark {
+    @Param({"33554432"})
+    public long inputSize;
+
+    @Param({"2", "16", "128", "512"})
+    public int fanIn;
+
+    @Param({"16", "128"})
+    public int recordLength;
+
+    @Param({"0.0", "0.9"})
+    public double duplicateRatio;
+
+    @Param({"4194304", "67108864"})
+    public long memoryBudget;
+
+    private List<File> sortedRuns;
+    private File output;
+    private int bufferSize;
+
+    @Setup(Level.Trial)
+    public void createRuns() throws IOException {
+        final File input = BenchmarkData.generate(this.inputSize, this.recordLength, this.duplicateRatio);
+        // Chunks of this size give about `fanIn` runs, the last one may be shorter
+        final long runSize = (this.inputSize + this.fanIn - 1) / this.fanIn + this.recordLength + 1;
+        this.sortedRuns = LocalFileSorter.chunkAndSortRuns(input.getPath(), runSize, SortOptions.defaults());
+        input.delete();
+        this.output = File.createTempFile("benchmark-merged", ".txt");
+        this.bufferSize = MergePlanner.bufferSize(this.sortedRuns.size(), this.memoryBudget, 2);
+    }
+
+    @Benchmark
+    public void mergeRuns() throws IOException {
+        LocalFileSorter.mergeRuns(this.sortedRuns, SortOptions.defaults(), LineWriter.open(this.output,
+                this.bufferSize), this.bufferSize, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        this.sortedRuns.forEach(File::delete);
+        this.output.delete();
+    }
+}
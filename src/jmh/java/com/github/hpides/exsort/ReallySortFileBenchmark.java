@@ -0,0 +1,60 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sorts an input that fills most of the memory budget in memory with `LocalFileSorter.reallySortFile()`, i.e., the
+ * sort of a single run including reading and writing it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReallySortFileBenchmark {
+    @Param({"16", "128"})
+    public int recordLength;
+
+    @Param({"0.0", "0.9"})
+    public double duplicateRatio;
+
+    @Param({"1048576", "16777216", "67108864"})
+    public long memoryBudget;
+
+    private File input;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void generateInput() throws IOException {
+        // The last record may overshoot the size, so leave some room
+        this.input = BenchmarkData.generate(this.memoryBudget * 9 / 10, this.recordLength, this.duplicateRatio);
+        this.output = File.createTempFile("benchmark-sorted", ".txt");
+    }
+
+    @Benchmark
+    public void reallySortFile() throws IOException {
+        LocalFileSorter.reallySortFile(this.input.getPath(), this.output.getPath(), this.memoryBudget);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        this.input.delete();
+        this.output.delete();
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.hpides.exsort;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Fetches the chunks of one remote node ahead, so that the next chunks are transferred while the current one is
+ * merged. The requests for the next `depth` chunks are always in flight, the client receives them in the background.
+ * With a depth of 0, chunks are requested when they are needed.
+ *
+ * Once the prefetcher is started, the client must not be used by anybody else.
+ */
+final class ChunkPrefetcher implements Closeable {
+    private final RemoteFileSorterClient client;
+    private final int depth;
+    private final Deque<CompletableFuture<Optional<File>>> chunks = new ArrayDeque<>();
+    private boolean exhausted;
+
+    ChunkPrefetcher(final RemoteFileSorterClient client, final int depth) {
+        this.client = client;
+        this.depth = depth;
+        this.requestChunks(depth);
+    }
+
+    /**
+     * Returns the next chunk, blocks if it was not fetched yet. The caller has to delete the chunk file.
+     */
+    Optional<File> next() {
+        if (this.exhausted) {
+            return Optional.empty();
+        }
+        this.requestChunks(1);
+
+        final Optional<File> chunk;
+        try {
+            chunk = this.chunks.poll().join();
+        } catch (final CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        if (chunk.isEmpty()) {
+            // The requests after the last chunk are answered with no chunk, too
+            this.exhausted = true;
+            this.close();
+            return chunk;
+        }
+        this.requestChunks(this.depth);
+        return chunk;
+    }
+
+    private void requestChunks(final int numChunks) {
+        while (this.chunks.size() < numChunks) {
+            this.chunks.add(this.client.getNextFileChunkAsync());
+        }
+    }
+
+    /**
+     * Deletes the chunks that were requested but not taken, once they arrive.
+     */
+    @Override
+    public void close() {
+        CompletableFuture<Optional<File>> chunk;
+        while ((chunk = this.chunks.poll()) != null) {
+            chunk.thenAccept(file -> file.ifPresent(File::delete));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Collapses equal neighbours of a sorted record stream, see `SortOptions.duplicates()`. The last record is held back
+ * until a different one arrives, so copies that are split between several writes (e.g., from different runs during a
+ * merge) are collapsed, too.
+ *
+ * In runs and streams, a collapsed record is written once (`UNIQUE`) or once with the sum of the counts of its copies
+ * (`COUNT`). In the final text output, the count follows the record after a tab instead.
+ */
+final class DuplicateFilter implements RecordSink {
+    private final RecordSink output;
+    private final Duplicates duplicates;
+    private final boolean appendCounts;
+
+    private byte[] pending = new byte[64];
+    private int pendingLength;
+    // 0 if there is no pending record
+    private long pendingCount;
+
+    private DuplicateFilter(final RecordSink output, final Duplicates duplicates, final boolean appendCounts) {
+        this.output = output;
+        this.duplicates = duplicates;
+        this.appendCounts = appendCounts;
+    }
+
+    /**
+     * Collapses the duplicates of a run or stream. Counts are passed on to the sink as counts.
+     */
+    static RecordSink collapse(final RecordSink output, final Duplicates duplicates) {
+        return duplicates == Duplicates.KEEP ? output : new DuplicateFilter(output, duplicates, false);
+    }
+
+    /**
+     * Collapses the duplicates of the final output. Counts are written as text behind the records.
+     */
+    static RecordSink output(final RecordSink output, final Duplicates duplicates) {
+        return duplicates == Duplicates.KEEP
+                ? output : new DuplicateFilter(output, duplicates, duplicates == Duplicates.COUNT);
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length) throws IOException {
+        this.write(array, offset, length, 1);
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length, final long count) throws IOException {
+        if (this.pendingCount > 0 && Arrays.equals(this.pending, 0, this.pendingLength,
+                array, offset, offset + length)) {
+            this.pendingCount += count;
+            return;
+        }
+        this.flushPending();
+        this.ensurePendingCapacity(length);
+        System.arraycopy(array, offset, this.pending, 0, length);
+        this.pendingLength = length;
+        this.pendingCount = count;
+    }
+
+    @Override
+    public void write(final ByteBuffer record) throws IOException {
+        this.write(record, 1);
+    }
+
+    @Override
+    public void write(final ByteBuffer record, final long count) throws IOException {
+        if (this.pendingCount > 0 && ByteBuffer.wrap(this.pending, 0, this.pendingLength).equals(record)) {
+            this.pendingCount += count;
+            return;
+        }
+        this.flushPending();
+        final int length = record.remaining();
+        this.ensurePendingCapacity(length);
+        record.get(this.pending, 0, length);
+        this.pendingLength = length;
+        this.pendingCount = count;
+    }
+
+    private void ensurePendingCapacity(final int length) {
+        if (this.pending.length < length) {
+            this.pending = Arrays.copyOf(this.pending, Math.max(length, this.pending.length * 2));
+        }
+    }
+
+    private void flushPending() throws IOException {
+        if (this.pendingCount == 0) {
+            return;
+        }
+        if (this.appendCounts) {
+            final byte[] count = ('\t' + Long.toString(this.pendingCount)).getBytes(StandardCharsets.US_ASCII);
+            this.ensurePendingCapacity(this.pendingLength + count.length);
+            System.arraycopy(count, 0, this.pending, this.pendingLength, count.length);
+            this.output.write(this.pending, 0, this.pendingLength + count.length);
+        } else if (this.duplicates == Duplicates.COUNT) {
+            this.output.write(this.pending, 0, this.pendingLength, this.pendingCount);
+        } else {
+            this.output.write(this.pending, 0, this.pendingLength);
+        }
+        this.pendingCount = 0;
+    }
+
+    @Override
+    public boolean isFull() {
+        return this.output.isFull();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flushPending();
+        this.output.close();
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.hpides.exsort;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a stream written by a FramedOutputChannel until its end marker. Closing the channel skips the rest of the
+ * stream, so that the connection can be used for the next message, but does not close the connection itself.
+ */
+final class FramedInputChannel implements ReadableByteChannel {
+    private static final int MAX_SCRATCH_SIZE = 1 << 16;
+
+    private final DataInputStream input;
+    private byte[] scratch = new byte[0];
+    private int frameRemaining;
+    private boolean endOfStream;
+    private boolean isOpen = true;
+
+    FramedInputChannel(final DataInputStream input) {
+        this.input = input;
+    }
+
+    @Override
+    public int read(final ByteBuffer target) throws IOException {
+        if (this.frameRemaining == 0) {
+            if (this.endOfStream) {
+                return -1;
+            }
+            this.frameRemaining = this.input.readInt();
+            if (this.frameRemaining == FramedOutputChannel.END_OF_STREAM) {
+                this.endOfStream = true;
+                return -1;
+            }
+        }
+
+        final int length = Math.min(target.remaining(), this.frameRemaining);
+        final int bytesRead;
+        if (target.hasArray()) {
+            bytesRead = this.input.read(target.array(), target.arrayOffset() + target.position(), length);
+            if (bytesRead > 0) {
+                target.position(target.position() + bytesRead);
+            }
+        } else {
+            if (this.scratch.length < Math.min(length, MAX_SCRATCH_SIZE)) {
+                this.scratch = new byte[Math.min(length, MAX_SCRATCH_SIZE)];
+            }
+            bytesRead = this.input.read(this.scratch, 0, Math.min(length, this.scratch.length));
+            if (bytesRead > 0) {
+                target.put(this.scratch, 0, bytesRead);
+            }
+        }
+        if (bytesRead < 0) {
+            throw new EOFException("Connection closed in the middle of a stream");
+        }
+        this.frameRemaining -= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.isOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.isOpen = false;
+        while (!this.endOfStream) {
+            if (this.frameRemaining > 0) {
+                if (this.scratch.length == 0) {
+                    this.scratch = new byte[MAX_SCRATCH_SIZE];
+                }
+                final int length = Math.min(this.frameRemaining, this.scratch.length);
+                this.input.readFully(this.scratch, 0, length);
+                this.frameRemaining -= length;
+                continue;
+            }
+            this.frameRemaining = this.input.readInt();
+            this.endOfStream = this.frameRemaining == FramedOutputChannel.END_OF_STREAM;
+        }
+    }
+}
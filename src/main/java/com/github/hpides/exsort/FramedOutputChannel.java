@@ -0,0 +1,57 @@
+package com.github.hpides.exsort;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes a stream of unknown length to a connection that is also used for other messages. Every write becomes one
+ * frame, an int length followed by the bytes, and closing the channel writes an empty frame as end marker. The
+ * connection itself stays open. Frame boundaries carry no meaning, records may be split across frames.
+ */
+final class FramedOutputChannel implements WritableByteChannel {
+    static final int END_OF_STREAM = 0;
+
+    private final DataOutputStream output;
+    private byte[] scratch = new byte[0];
+    private boolean isOpen = true;
+
+    FramedOutputChannel(final DataOutputStream output) {
+        this.output = output;
+    }
+
+    @Override
+    public int write(final ByteBuffer source) throws IOException {
+        final int length = source.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        this.output.writeInt(length);
+        if (source.hasArray()) {
+            this.output.write(source.array(), source.arrayOffset() + source.position(), length);
+            source.position(source.limit());
+        } else {
+            if (this.scratch.length < length) {
+                this.scratch = new byte[length];
+            }
+            source.get(this.scratch, 0, length);
+            this.output.write(this.scratch, 0, length);
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.isOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.isOpen) {
+            this.isOpen = false;
+            this.output.writeInt(END_OF_STREAM);
+            this.output.flush();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.hpides.exsort;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a run written by the FrontCodedWriter. Blocks are read and decoded one at a time, so only one block has to be
+ * in memory. The current record is rebuilt from the shared prefix of the previous record and the stored suffix.
+ */
+final class FrontCodedReader implements RecordSource {
+    private final ReadableByteChannel channel;
+    private final Inflater inflater;
+    private final boolean counted;
+    private final ByteBuffer header = ByteBuffer.allocate(FrontCodedWriter.BLOCK_HEADER_SIZE);
+
+    private byte[] block = new byte[FrontCodedWriter.BLOCK_SIZE + 64];
+    private int blockLength;
+    private int blockPosition;
+    private byte[] storedBlock;
+
+    private byte[] record = new byte[64];
+    private ByteBuffer recordView = ByteBuffer.wrap(this.record);
+    private int recordLength;
+    private long recordPrefix;
+    private long recordCount = 1;
+
+    /**
+     * @param deflated Whether the blocks were compressed with a Deflater, see the FrontCodedWriter.
+     */
+    FrontCodedReader(final ReadableByteChannel channel, final boolean deflated) {
+        this(channel, deflated, false);
+    }
+
+    /**
+     * @param counted Whether every record was stored with the number of its copies.
+     */
+    FrontCodedReader(final ReadableByteChannel channel, final boolean deflated, final boolean counted) {
+        this.channel = channel;
+        this.inflater = deflated ? new Inflater() : null;
+        this.counted = counted;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        if (this.blockPosition == this.blockLength && !this.readBlock()) {
+            return false;
+        }
+        final int shared = this.getVarInt();
+        final int suffixLength = this.getVarInt();
+        if (this.record.length < shared + suffixLength) {
+            final byte[] grown = new byte[Math.max(shared + suffixLength, this.record.length * 2)];
+            System.arraycopy(this.record, 0, grown, 0, shared);
+            this.record = grown;
+            this.recordView = ByteBuffer.wrap(grown);
+        }
+        System.arraycopy(this.block, this.blockPosition, this.record, shared, suffixLength);
+        this.blockPosition += suffixLength;
+        this.recordLength = shared + suffixLength;
+        this.recordPrefix = Records.prefix(this.record, 0, this.recordLength);
+        if (this.counted) {
+            this.recordCount = this.getVarLong();
+        }
+        return true;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return this.recordView;
+    }
+
+    @Override
+    public int offset() {
+        return 0;
+    }
+
+    @Override
+    public int length() {
+        return this.recordLength;
+    }
+
+    @Override
+    public long prefix() {
+        return this.recordPrefix;
+    }
+
+    @Override
+    public long count() {
+        return this.recordCount;
+    }
+
+    private int getVarInt() {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.block[this.blockPosition++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private long getVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = this.block[this.blockPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Reads and decompresses the next block.
+     * @return false at the end of the run.
+     */
+    private boolean readBlock() throws IOException {
+        this.header.clear();
+        if (!this.readFully(this.header, true)) {
+            return false;
+        }
+        this.header.flip();
+        final int rawLength = this.header.getInt();
+        final int storedLength = this.header.getInt();
+        if (rawLength < 0 || storedLength < 0) {
+            throw new IOException("Corrupt block header in run");
+        }
+        if (this.block.length < rawLength) {
+            this.block = new byte[rawLength];
+        }
+
+        if (this.inflater == null) {
+            this.readFully(ByteBuffer.wrap(this.block, 0, storedLength), false);
+        } else {
+            if (this.storedBlock == null || this.storedBlock.length < storedLength) {
+                this.storedBlock = new byte[Math.max(storedLength, this.block.length)];
+            }
+            this.readFully(ByteBuffer.wrap(this.storedBlock, 0, storedLength), false);
+            this.inflater.reset();
+            this.inflater.setInput(this.storedBlock, 0, storedLength);
+            try {
+                int inflated = 0;
+                while (inflated < rawLength) {
+                    final int length = this.inflater.inflate(this.block, inflated, rawLength - inflated);
+                    // The whole block is in the input, so an inflater that is stuck has a truncated block
+                    if (length == 0 && (this.inflater.finished() || this.inflater.needsInput()
+                            || this.inflater.needsDictionary())) {
+                        throw new EOFException("Compressed block ends before its " + rawLength + " bytes");
+                    }
+                    inflated += length;
+                }
+            } catch (final DataFormatException e) {
+                throw new IOException("Corrupt block in compressed run", e);
+            }
+        }
+        this.blockLength = rawLength;
+        this.blockPosition = 0;
+        return true;
+    }
+
+    /**
+     * @return false if the end of the channel was reached before reading anything and `endAllowed` is set.
+     */
+    private boolean readFully(final ByteBuffer target, final boolean endAllowed) throws IOException {
+        while (target.hasRemaining()) {
+            if (this.channel.read(target) < 0) {
+                if (endAllowed && target.position() == 0) {
+                    return false;
+                }
+                throw new EOFException("Run file ends in the middle of a block");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.inflater != null) {
+            this.inflater.end();
+        }
+        this.channel.close();
+    }
+}
@@ -0,0 +1,187 @@
+package com.github.hpides.exsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes sorted records in a compact binary run format. Neighbouring records in a sorted run usually share a long
+ * prefix (or are even equal), so every record is only stored as the length of the prefix it shares with the previous
+ * record and the remaining suffix (front coding).
+ *
+ * The records are grouped into blocks of about `BLOCK_SIZE` bytes. The first record of a block is always stored
+ * completely, so every block can be decoded on its own. Optionally, every block is compressed with a Deflater.
+ *
+ * Block layout:
+ *   int rawLength, int storedLength, storedLength bytes of (optionally deflated) data
+ * Record layout inside the raw data:
+ *   varint sharedLength, varint suffixLength, suffixLength bytes[, varlong count]
+ * The count is only stored in counted runs, which hold every distinct record once (see `SortOptions.duplicates()`).
+ *
+ * See the FrontCodedReader for reading such a run.
+ */
+final class FrontCodedWriter implements RecordSink {
+    static final int BLOCK_SIZE = 1 << 16;
+    static final int BLOCK_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final WritableByteChannel channel;
+    private final Deflater deflater;
+    private final boolean counted;
+
+    private byte[] block = new byte[BLOCK_SIZE + 64];
+    private int blockLength;
+    private byte[] compressedBlock;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+
+    private byte[] previous = new byte[64];
+    private int previousLength;
+    private byte[] scratch = new byte[64];
+
+    /**
+     * @param deflate Whether blocks are compressed with a Deflater in addition to the front coding.
+     */
+    FrontCodedWriter(final WritableByteChannel channel, final boolean deflate) {
+        this(channel, deflate, false);
+    }
+
+    /**
+     * @param counted Whether every record is stored with the number of its copies.
+     */
+    FrontCodedWriter(final WritableByteChannel channel, final boolean deflate, final boolean counted) {
+        this.channel = channel;
+        this.deflater = deflate ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.counted = counted;
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length) throws IOException {
+        this.writeRecord(array, offset, length, 1);
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length, final long count) throws IOException {
+        if (!this.counted) {
+            RecordSink.super.write(array, offset, length, count);
+            return;
+        }
+        this.writeRecord(array, offset, length, count);
+    }
+
+    private void writeRecord(final byte[] array, final int offset, final int length, final long count)
+            throws IOException {
+        final int shared = this.blockLength == 0 ? 0 : sharedPrefixLength(this.previous, this.previousLength,
+                array, offset, length);
+        final int suffixLength = length - shared;
+
+        this.ensureBlockCapacity(2 * 5 + 10 + suffixLength);
+        this.putVarInt(shared);
+        this.putVarInt(suffixLength);
+        System.arraycopy(array, offset + shared, this.block, this.blockLength, suffixLength);
+        this.blockLength += suffixLength;
+        if (this.counted) {
+            this.putVarLong(count);
+        }
+
+        if (this.previous.length < length) {
+            // The shared prefix is still needed to compare with the next record
+            this.previous = Arrays.copyOf(this.previous, Math.max(length, this.previous.length * 2));
+        }
+        System.arraycopy(array, offset + shared, this.previous, shared, suffixLength);
+        this.previousLength = length;
+
+        if (this.blockLength >= BLOCK_SIZE) {
+            this.flushBlock();
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer record) throws IOException {
+        this.write(record, 1);
+    }
+
+    @Override
+    public void write(final ByteBuffer record, final long count) throws IOException {
+        final int length = record.remaining();
+        if (this.scratch.length < length) {
+            this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+        }
+        record.get(this.scratch, 0, length);
+        this.write(this.scratch, 0, length, count);
+    }
+
+    private static int sharedPrefixLength(final byte[] previous, final int previousLength,
+                                          final byte[] array, final int offset, final int length) {
+        final int mismatch = Arrays.mismatch(previous, 0, previousLength, array, offset, offset + length);
+        return mismatch < 0 ? length : mismatch;
+    }
+
+    private void ensureBlockCapacity(final int additionalBytes) {
+        if (this.blockLength + additionalBytes > this.block.length) {
+            this.block = Arrays.copyOf(this.block, Math.max(this.blockLength + additionalBytes, this.block.length * 2));
+        }
+    }
+
+    private void putVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            this.block[this.blockLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.block[this.blockLength++] = (byte) value;
+    }
+
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            this.block[this.blockLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.block[this.blockLength++] = (byte) value;
+    }
+
+    private void flushBlock() throws IOException {
+        if (this.blockLength == 0) {
+            return;
+        }
+        byte[] stored = this.block;
+        int storedLength = this.blockLength;
+        if (this.deflater != null) {
+            this.deflater.reset();
+            this.deflater.setInput(this.block, 0, this.blockLength);
+            this.deflater.finish();
+            if (this.compressedBlock == null || this.compressedBlock.length < this.block.length) {
+                this.compressedBlock = new byte[this.block.length];
+            }
+            storedLength = 0;
+            while (!this.deflater.finished()) {
+                if (storedLength == this.compressedBlock.length) {
+                    this.compressedBlock = Arrays.copyOf(this.compressedBlock, this.compressedBlock.length * 2);
+                }
+                storedLength += this.deflater.deflate(this.compressedBlock, storedLength,
+                        this.compressedBlock.length - storedLength);
+            }
+            stored = this.compressedBlock;
+        }
+
+        this.header.clear();
+        this.header.putInt(this.blockLength).putInt(storedLength).flip();
+        this.writeFully(this.header);
+        this.writeFully(ByteBuffer.wrap(stored, 0, storedLength));
+        this.blockLength = 0;
+    }
+
+    private void writeFully(final ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            this.channel.write(source);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flushBlock();
+        if (this.deflater != null) {
+            this.deflater.end();
+        }
+        this.channel.close();
+    }
+}
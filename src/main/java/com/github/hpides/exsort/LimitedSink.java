@@ -0,0 +1,84 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Passes on the first records up to `SortOptions.limit()` and drops the rest. Writers check `isFull()` to stop
+ * early. The limit counts copies if duplicates are kept, otherwise a record with a count is one record.
+ */
+final class LimitedSink implements RecordSink {
+    private final RecordSink output;
+    private final boolean countCopies;
+    private long remaining;
+
+    private LimitedSink(final RecordSink output, final long limit, final boolean countCopies) {
+        this.output = output;
+        this.remaining = limit;
+        this.countCopies = countCopies;
+    }
+
+    /**
+     * Limits the sink as configured in the options. Place it behind a DuplicateFilter, so that it counts collapsed
+     * records.
+     */
+    static RecordSink wrap(final RecordSink output, final SortOptions options) {
+        return options.limit() == 0
+                ? output : new LimitedSink(output, options.limit(), options.duplicates() == Duplicates.KEEP);
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length) throws IOException {
+        if (this.remaining > 0) {
+            this.output.write(array, offset, length);
+            this.remaining--;
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer record) throws IOException {
+        if (this.remaining > 0) {
+            this.output.write(record);
+            this.remaining--;
+        }
+    }
+
+    @Override
+    public void write(final byte[] array, final int offset, final int length, final long count) throws IOException {
+        if (this.remaining > 0) {
+            this.output.write(array, offset, length, this.taken(count));
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer record, final long count) throws IOException {
+        if (this.remaining > 0) {
+            this.output.write(record, this.taken(count));
+        }
+    }
+
+    /**
+     * Counts a record with `count` copies against the limit.
+     * @return The number of copies to pass on.
+     */
+    private long taken(final long count) {
+        if (!this.countCopies) {
+            this.remaining--;
+            return count;
+        }
+        final long copies = Math.min(count, this.remaining);
+        this.remaining -= copies;
+        return copies;
+    }
+
+    @Override
+    public boolean isFull() {
+        return this.remaining == 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.output.close();
+    }
+}
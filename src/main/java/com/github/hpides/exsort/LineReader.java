@@ -0,0 +1,162 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads newline separated records from a channel without decoding them into Strings.
+ * The channel is read in large blocks through a direct buffer and the records are found by scanning the bytes for
+ * '\n'. The current record is only valid until the next call to `next()`, it is exposed as a region of the internal
+ * byte array (or of a buffer wrapping it) so that no object is created per line.
+ *
+ * Usage:
+ *   while (reader.next()) {
+ *       doSomething(reader.array(), reader.offset(), reader.length());
+ *   }
+ */
+public final class LineReader implements RecordSource {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;  // 1 MiB
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer readBuffer;
+
+    private byte[] buffer;
+    private ByteBuffer bufferView;
+    private int position;
+    private int limit;
+    private int scanPosition;
+    private boolean endOfInput;
+
+    private int recordOffset;
+    private int recordLength;
+    private long recordPrefix;
+    private long numRecords;
+
+    public LineReader(final ReadableByteChannel channel, final int bufferSize) {
+        this.channel = channel;
+        this.readBuffer = ByteBuffer.allocateDirect(bufferSize);
+        this.buffer = new byte[bufferSize];
+        this.bufferView = ByteBuffer.wrap(this.buffer);
+    }
+
+    public LineReader(final ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public static LineReader open(final File file, final int bufferSize) throws IOException {
+        return new LineReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), bufferSize);
+    }
+
+    public static LineReader open(final File file) throws IOException {
+        return open(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public static LineReader open(final String fileName) throws IOException {
+        return open(new File(fileName));
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            for (int i = this.scanPosition; i < this.limit; i++) {
+                if (this.buffer[i] == '\n') {
+                    this.setRecord(this.position, i);
+                    this.position = i + 1;
+                    this.scanPosition = this.position;
+                    return true;
+                }
+            }
+            this.scanPosition = this.limit;
+
+            if (this.endOfInput) {
+                if (this.position == this.limit) {
+                    return false;
+                }
+                // Last line without trailing newline
+                this.setRecord(this.position, this.limit);
+                this.position = this.limit;
+                return true;
+            }
+            this.fill();
+        }
+    }
+
+    public byte[] array() {
+        return this.buffer;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return this.bufferView;
+    }
+
+    @Override
+    public int offset() {
+        return this.recordOffset;
+    }
+
+    @Override
+    public int length() {
+        return this.recordLength;
+    }
+
+    /**
+     * The number of records read so far.
+     */
+    public long recordsRead() {
+        return this.numRecords;
+    }
+
+    @Override
+    public long prefix() {
+        return this.recordPrefix;
+    }
+
+    private void setRecord(final int start, final int end) {
+        this.recordOffset = start;
+        // Scanner.nextLine() also strips Windows line endings
+        this.recordLength = end > start && this.buffer[end - 1] == '\r' ? end - start - 1 : end - start;
+        this.recordPrefix = Records.prefix(this.buffer, start, this.recordLength);
+        this.numRecords++;
+    }
+
+    private void fill() throws IOException {
+        // Move the incomplete record to the front and make room for the next block
+        final int remaining = this.limit - this.position;
+        if (this.position > 0) {
+            System.arraycopy(this.buffer, this.position, this.buffer, 0, remaining);
+        } else if (remaining == this.buffer.length) {
+            // A single record is larger than the buffer
+            final byte[] grown = new byte[this.buffer.length * 2];
+            System.arraycopy(this.buffer, 0, grown, 0, remaining);
+            this.buffer = grown;
+            this.bufferView = ByteBuffer.wrap(grown);
+        }
+        this.scanPosition -= this.position;
+        this.position = 0;
+        this.limit = remaining;
+
+        this.readBuffer.clear();
+        this.readBuffer.limit(Math.min(this.readBuffer.capacity(), this.buffer.length - this.limit));
+        int bytesRead;
+        do {
+            bytesRead = this.channel.read(this.readBuffer);
+        } while (bytesRead == 0);
+        if (bytesRead < 0) {
+            this.endOfInput = true;
+            return;
+        }
+        this.readBuffer.flip();
+        this.readBuffer.get(this.buffer, this.limit, bytesRead);
+        this.limit += bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
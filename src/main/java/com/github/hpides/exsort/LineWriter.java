@@ -0,0 +1,91 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes newline separated records to a channel. Records are collected in a large direct buffer and written in blocks,
+ * so there is no system call per line.
+ */
+public final class LineWriter implements RecordSink {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;  // 1 MiB
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+
+    public LineWriter(final WritableByteChannel channel, final int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public LineWriter(final WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public static LineWriter open(final File file, final int bufferSize) throws IOException {
+        return new LineWriter(FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING), bufferSize);
+    }
+
+    public static LineWriter open(final File file) throws IOException {
+        return open(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public static LineWriter open(final String fileName) throws IOException {
+        return open(new File(fileName));
+    }
+
+    /**
+     * Writes one record followed by a newline.
+     */
+    @Override
+    public void write(final byte[] array, final int offset, final int length) throws IOException {
+        if (this.buffer.remaining() < length + 1) {
+            this.flush();
+            if (this.buffer.remaining() < length + 1) {
+                // Record is larger than the buffer, write it directly
+                this.writeFully(ByteBuffer.wrap(array, offset, length));
+                this.buffer.put((byte) '\n');
+                return;
+            }
+        }
+        this.buffer.put(array, offset, length);
+        this.buffer.put((byte) '\n');
+    }
+
+    @Override
+    public void write(final ByteBuffer record) throws IOException {
+        if (this.buffer.remaining() < record.remaining() + 1) {
+            this.flush();
+            if (this.buffer.remaining() < record.remaining() + 1) {
+                this.writeFully(record);
+                this.buffer.put((byte) '\n');
+                return;
+            }
+        }
+        this.buffer.put(record);
+        this.buffer.put((byte) '\n');
+    }
+
+    public void flush() throws IOException {
+        this.buffer.flip();
+        this.writeFully(this.buffer);
+        this.buffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            this.channel.write(source);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.flush();
+        this.channel.close();
+    }
+}
@@ -1,11 +1,19 @@
 package com.github.hpides.exsort;
 
+import com.github.hpides.exsort.SortMetrics.Phase;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -14,20 +22,8 @@ import java.util.stream.Collectors;
  */
 public final class LocalFileSorter {
 
-    static class KVPair<Key extends Comparable<Key>, Value> implements Comparable<KVPair<Key, Value>> {
-        public Key key;
-        public Value value;
-
-        KVPair(Key key, Value value) {
-            this.key = key;
-            this.value = value;
-        }
-
-        @Override
-        public int compareTo(KVPair<Key, Value> pair) {
-            return key.compareTo(pair.key);
-        }
-    }
+    // Many sources are open at the same time during a merge, so each of them only gets a small read buffer.
+    static final int MERGE_BUFFER_SIZE = 1 << 16;
 
     /**
      * This is the core sorting function for a local file. You should write a method that takes a file and sorts it
@@ -42,76 +38,308 @@ public final class LocalFileSorter {
      */
     public static void sortFile(final String inputFileName, final String outputFileName,
                                 final long chunkSizeInBytes) throws IOException {
-        var inputFiles = chunkFile(inputFileName, chunkSizeInBytes);
-        List<FileReader> sortedInputFileReaders = inputFiles.stream().map(inputfile -> {
-            try {
-                var outputFile = File.createTempFile("sorted", ".tmp");
-                reallySortFile(inputfile.getAbsolutePath(), outputFile.getAbsolutePath(), chunkSizeInBytes);
-                return outputFile;
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        sortFile(inputFileName, outputFileName, chunkSizeInBytes, SortOptions.defaults());
+    }
+
+    /**
+     * Same as `sortFile()` above, but with explicit options on how the sort is executed.
+     */
+    public static void sortFile(final String inputFileName, final String outputFileName,
+                                final long chunkSizeInBytes, final SortOptions options) throws IOException {
+        final List<File> sortedRuns = createSortedRuns(inputFileName, chunkSizeInBytes, options);
+        if (sortedRuns.size() == 1 && RunFiles.isText(options)) {
+            // A single run is already the sorted output, e.g., after replacement selection on presorted input
+            Files.move(sortedRuns.get(0).toPath(), Paths.get(outputFileName), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        MergePlanner.mergeAll(sortedRuns, outputFileName, chunkSizeInBytes, options);
+    }
+
+    /**
+     * Creates the sorted runs of the input as configured in the options, see `MergePlanner` for merging them.
+     * With a limit, the first records are selected in a single pass if they fit into memory, see `TopK`.
+     * All buffers and records of the run generation together stay within `chunkSizeInBytes`, see `MemoryBudget`.
+     */
+    static List<File> createSortedRuns(final String inputFileName, final long chunkSizeInBytes,
+                                       final SortOptions options) throws IOException {
+        if (options.limit() > 0) {
+            var startNanos = System.nanoTime();
+            var topBudget = new MemoryBudget(chunkSizeInBytes);
+            var bufferSize = reserveIoBuffers(topBudget, options, 1);
+            var top = TopK.select(inputFileName, topBudget, bufferSize, options);
+            options.metrics().recordPeakReserved(topBudget.peak());
+            if (top.isPresent()) {
+                // The first records fit into memory, so they are the only run
+                var runFile = File.createTempFile("sorted", ".tmp");
+                try (var output = RunFiles.create(runFile, options, bufferSize)) {
+                    top.get().writeTo(output);
+                }
+                return recordRunGeneration(options, startNanos, inputFileName, top.get().recordsRead(),
+                        List.of(runFile));
             }
-        }).map(File::getAbsoluteFile).map(file -> {
-            try {
-                return new FileReader(file);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        }
+        var budget = new MemoryBudget(chunkSizeInBytes);
+        try {
+            switch (options.runGeneration()) {
+                case CHUNKED:
+                    return chunkAndSortRuns(inputFileName, budget, options);
+                case SINGLE_PASS:
+                    return options.parallelism() > 1
+                            ? createSortedRunsInParallel(inputFileName, budget, options)
+                            : createSortedRunsSerially(inputFileName, budget, options);
+                case REPLACEMENT_SELECTION:
+                    return ReplacementSelection.createSortedRuns(inputFileName, budget, options);
+                default:
+                    throw new IllegalArgumentException("Unknown run generation " + options.runGeneration());
             }
-        }).collect(Collectors.toList());
+        } finally {
+            options.metrics().recordPeakReserved(budget.peak());
+        }
+    }
 
-        var sortedInputs = sortedInputFileReaders.stream().map(Scanner::new).collect(Collectors.toList());
-        var inputHeaders = new PriorityQueue<KVPair<String, Scanner>>();
-        sortedInputs.forEach(scanner -> {
-            if (scanner.hasNext()) {
-                inputHeaders.add(new KVPair<>(scanner.nextLine(), scanner));
+    /**
+     * Sets aside the I/O buffers of a run generation in the budget: a LineReader for the input, which holds a direct
+     * and a heap buffer, and `numWriters` run writers.
+     * @return The size of each buffer.
+     */
+    static int reserveIoBuffers(final MemoryBudget budget, final SortOptions options, final int numWriters) {
+        var bufferSize = budget.ioBufferSize(2 + numWriters, LineReader.DEFAULT_BUFFER_SIZE);
+        budget.reserveIoBuffers(2L * bufferSize + numWriters * RunFiles.writerSize(options, bufferSize));
+        return bufferSize;
+    }
+
+    /**
+     * Splits the input with `chunkFile()` and sorts every chunk into a new run file, see below.
+     */
+    static List<File> chunkAndSortRuns(final String inputFileName, final long chunkSizeInBytes,
+                                       final SortOptions options) throws IOException {
+        return chunkAndSortRuns(inputFileName, new MemoryBudget(chunkSizeInBytes), options);
+    }
+
+    /**
+     * A chunk holds up to the whole budget in file bytes, so the records of a chunk that do not fit next to the I/O
+     * buffers and their index spill into a second run.
+     */
+    private static List<File> chunkAndSortRuns(final String inputFileName, final MemoryBudget budget,
+                                               final SortOptions options) throws IOException {
+        var inputFiles = chunkFile(inputFileName, budget.limit(), options.metrics());
+        var startNanos = System.nanoTime();
+        var bufferSize = reserveIoBuffers(budget, options, 1);
+        var sortedRuns = new ArrayList<File>(inputFiles.size());
+        var records = new RecordBuffer(budget);
+        long recordsRead = 0;
+        for (File inputFile : inputFiles) {
+            try (var input = LineReader.open(inputFile, bufferSize)) {
+                spillRuns(input, records, sortedRuns, options, bufferSize);
+                recordsRead += input.recordsRead();
             }
-        });
+            inputFile.delete();
+        }
+        records.free();
+        return recordRunGeneration(options, startNanos, inputFileName, recordsRead, sortedRuns);
+    }
+
+    /**
+     * Reads the input once and fills the memory with records until the budget is used up. Then the records are sorted
+     * in memory and written as one sorted run. In contrast to `chunkAndSortRuns()`, the unsorted data is never written
+     * to disk.
+     */
+    static List<File> createSortedRunsSerially(final String inputFileName, final MemoryBudget budget,
+                                               final SortOptions options) throws IOException {
+        var startNanos = System.nanoTime();
+        var bufferSize = reserveIoBuffers(budget, options, 1);
+        var sortedRuns = new ArrayList<File>();
+        var records = new RecordBuffer(budget);
+        long recordsRead;
+        try (var input = LineReader.open(new File(inputFileName), bufferSize)) {
+            spillRuns(input, records, sortedRuns, options, bufferSize);
+            recordsRead = input.recordsRead();
+        }
+        records.free();
+        return recordRunGeneration(options, startNanos, inputFileName, recordsRead, sortedRuns);
+    }
+
+    /**
+     * Adds all records of the input to the buffer and writes it as a sorted run whenever it is full, and once more at
+     * the end. The buffer is empty afterwards.
+     */
+    private static void spillRuns(final LineReader input, final RecordBuffer records, final List<File> sortedRuns,
+                                  final SortOptions options, final int bufferSize) throws IOException {
+        while (input.next()) {
+            if (!records.add(input.array(), input.offset(), input.length())) {
+                sortedRuns.add(spillRun(records, options, bufferSize));
+                records.clear();
+                records.add(input.array(), input.offset(), input.length());
+            }
+        }
+        if (!records.isEmpty()) {
+            sortedRuns.add(spillRun(records, options, bufferSize));
+            records.clear();
+        }
+    }
+
+    /**
+     * Like `createSortedRunsSerially()`, but the calling thread only reads the input while a pool of `parallelism`
+     * threads sorts and writes the runs. After the I/O buffers, the budget is split into `parallelism` buffers that are
+     * handed from the reader to the pool and back, so that the budget covers everything held in memory at any time.
+     */
+    static List<File> createSortedRunsInParallel(final String inputFileName, final MemoryBudget budget,
+                                                 final SortOptions options) throws IOException {
+        var startNanos = System.nanoTime();
+        var parallelism = options.parallelism();
+        var bufferSize = reserveIoBuffers(budget, options, parallelism);
+        var bufferBudget = budget.available() / parallelism;
+        var freeBuffers = new ArrayBlockingQueue<RecordBuffer>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            freeBuffers.add(new RecordBuffer(budget.split(bufferBudget)));
+        }
+        var pool = Executors.newFixedThreadPool(parallelism);
+        var pendingRuns = new ArrayList<Future<File>>();
 
-        var output = new FileOutputStream(outputFileName);
+        try (var input = LineReader.open(new File(inputFileName), bufferSize)) {
+            var records = freeBuffers.take();
+            while (input.next()) {
+                if (!records.add(input.array(), input.offset(), input.length())) {
+                    pendingRuns.add(pool.submit(spillRunTask(records, freeBuffers, options, bufferSize)));
+                    records = freeBuffers.take();
+                    records.add(input.array(), input.offset(), input.length());
+                }
+            }
+            if (!records.isEmpty()) {
+                pendingRuns.add(pool.submit(spillRunTask(records, freeBuffers, options, bufferSize)));
+            }
 
-        while (!inputHeaders.isEmpty()) {
-            var smallest = inputHeaders.poll();
-            output.write(smallest.key.getBytes());
-            output.write('\n');
-            if (smallest.value.hasNext()) {
-                inputHeaders.add(new KVPair<>(smallest.value.nextLine(), smallest.value));
+            var sortedRuns = new ArrayList<File>(pendingRuns.size());
+            for (Future<File> run : pendingRuns) {
+                sortedRuns.add(run.get());
             }
+            freeBuffers.forEach(RecordBuffer::free);
+            return recordRunGeneration(options, startNanos, inputFileName, input.recordsRead(), sortedRuns);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while generating runs", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot write sorted run", e.getCause());
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        sortedInputs.forEach(Scanner::close);
-        sortedInputFileReaders.forEach(fileReader -> {
+    private static Callable<File> spillRunTask(final RecordBuffer records, final BlockingQueue<RecordBuffer> freeBuffers,
+                                               final SortOptions options, final int bufferSize) {
+        return () -> {
             try {
-                fileReader.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                return spillRun(records, options, bufferSize);
+            } finally {
+                records.clear();
+                freeBuffers.add(records);
             }
-        });
+        };
+    }
+
+    /**
+     * Sorts the records and writes them as a run, duplicates are collapsed on the way as configured in the options.
+     */
+    private static File spillRun(final RecordBuffer records, final SortOptions options, final int bufferSize)
+            throws IOException {
+        sort(records, options.metrics());
+        var runFile = File.createTempFile("sorted", ".tmp");
+        try (var output = RunFiles.create(runFile, options, bufferSize)) {
+            records.writeTo(output);
+        }
+        return runFile;
+    }
+
+    private static void sort(final RecordBuffer records, final SortMetrics metrics) {
+        var startNanos = System.nanoTime();
+        records.sort();
+        metrics.record(Phase.IN_MEMORY_SORT, startNanos, 0, 0, records.size());
+    }
+
+    /**
+     * Adds a run generation that started at `startNanos` to the metrics of the options.
+     * @return The sorted runs.
+     */
+    static List<File> recordRunGeneration(final SortOptions options, final long startNanos, final String inputFileName,
+                                          final long recordsRead, final List<File> sortedRuns) {
+        options.metrics().record(Phase.RUN_GENERATION, startNanos, new File(inputFileName).length(),
+                MergePlanner.totalLength(sortedRuns), recordsRead);
+        options.metrics().addRuns(sortedRuns.size());
+        return sortedRuns;
+    }
+
+    /**
+     * Merges sorted run files into one sorted output in a single pass. All runs are opened at the same time, see the
+     * MergePlanner for merging more runs than fit into memory. The output is closed afterwards. If an I/O executor is
+     * given, the runs are read ahead in the background.
+     * @return The number of merged records.
+     */
+    static long mergeRuns(final List<File> sortedRuns, final SortOptions options, final RecordSink output,
+                          final int bufferSize, final ExecutorService ioExecutor) throws IOException {
+        return mergeRuns(sortedRuns, List.of(), options, output, bufferSize, ioExecutor);
+    }
+
+    /**
+     * Merges the runs and the already opened sorted streams into the output. Closes the output and all inputs.
+     * @return The number of merged records.
+     */
+    static long mergeRuns(final List<File> sortedRuns, final List<? extends RecordSource> sortedStreams,
+                          final SortOptions options, final RecordSink output, final int bufferSize,
+                          final ExecutorService ioExecutor) throws IOException {
+        var sortedInputs = new ArrayList<RecordSource>(sortedRuns.size() + sortedStreams.size());
+        for (File run : sortedRuns) {
+            sortedInputs.add(RunFiles.open(run, options, bufferSize, ioExecutor));
+        }
+        sortedInputs.addAll(sortedStreams);
+
+        var merger = new LoserTreeMerger(sortedInputs);
+        options.metrics().addMergePass(sortedInputs.size());
+
+        // A limited output is full long before the inputs are exhausted
+        long numRecords = 0;
+        while (!output.isFull() && merger.next()) {
+            var smallest = merger.current();
+            smallest.writeTo(output);
+            numRecords++;
+        }
+
+        for (RecordSource input : sortedInputs) {
+            input.close();
+        }
         output.close();
+        return numRecords;
     }
 
     public static void reallySortFile(final String inputFileName, final String outputFileName, final long chunkSizeInBytes) throws IOException {
-        var inputstream = new FileReader(inputFileName);
-        var input = new Scanner(inputstream);
-        var output = new FileOutputStream(outputFileName);
+        reallySortFile(inputFileName, outputFileName, chunkSizeInBytes, SortOptions.defaults());
+    }
 
-        ArrayList<String> strings = new ArrayList<>();
-        var inputLength = 0;
-        while (input.hasNext()) {
-            var nextLine = input.nextLine();
-            strings.add(nextLine);
-            inputLength += nextLine.length() + 1;
-        }
+    /**
+     * Same as `reallySortFile()` above, duplicates are collapsed and the output is limited while writing the sorted
+     * records as configured in the options. The input file must not be larger than `chunkSizeInBytes`, the index of
+     * the records comes on top, see `RecordBuffer.maxMemory()`.
+     */
+    public static void reallySortFile(final String inputFileName, final String outputFileName,
+                                      final long chunkSizeInBytes, final SortOptions options) throws IOException {
+        var inputLength = new File(inputFileName).length();
         if (inputLength > chunkSizeInBytes) {
             throw new IOException("Input too large");
         }
+        // The file size is the limit, so the budget only stops records that do not fit into the arrays at all
+        var records = new RecordBuffer(new MemoryBudget(RecordBuffer.maxMemory(inputLength)));
+        var input = LineReader.open(inputFileName);
+        while (input.next()) {
+            if (!records.add(input.array(), input.offset(), input.length())) {
+                input.close();
+                throw new IOException("Input too large");
+            }
+        }
         input.close();
-        inputstream.close();
-        strings.sort(String::compareTo);
+        sort(records, options.metrics());
 
-        for (String s : strings) {
-            output.write(s.getBytes());
-            output.write('\n');
-        }
+        var output = DuplicateFilter.output(LimitedSink.wrap(LineWriter.open(outputFileName), options),
+                options.duplicates());
+        records.writeTo(output);
         output.close();
     }
 
@@ -133,37 +361,43 @@ public final class LocalFileSorter {
      *                     fail, just let them escalate. In the tests, we will not require file error handling.
      */
     public static List<File> chunkFile(final String fileName, final long chunkSizeInBytes) throws IOException {
-        var inputstream = new FileReader(fileName);
-        var input = new Scanner(inputstream);
+        return chunkFile(fileName, chunkSizeInBytes, new SortMetrics());
+    }
 
-        ArrayList<File> outputFiles = new ArrayList<>();
+    /**
+     * Same as `chunkFile()` above, the chunking is added to the metrics.
+     */
+    static List<File> chunkFile(final String fileName, final long chunkSizeInBytes, final SortMetrics metrics)
+            throws IOException {
+        var startNanos = System.nanoTime();
+        var input = LineReader.open(fileName);
 
-        String nextLine = null;
-        while (input.hasNext() || nextLine != null) {
-            var outputfile = File.createTempFile("unsorted", ".tmp");
-            outputFiles.add(outputfile);
-            var output = new FileOutputStream(outputfile);
-            var outputLength = 0;
+        ArrayList<File> outputFiles = new ArrayList<>();
 
-            do {
-                if (nextLine == null) {
-                    nextLine = input.nextLine();
-                }
-                if (outputLength + nextLine.length() + 1 <= chunkSizeInBytes) {
-                    outputLength += nextLine.length() + 1;
-                    output.write(nextLine.getBytes());
-                    output.write('\n');
-                    nextLine = null;
-                } else {
-                    break;
+        LineWriter output = null;
+        long outputLength = 0;
+        while (input.next()) {
+            var recordSize = input.length() + 1;
+            // A record that is larger than a chunk gets a chunk on its own
+            if (output == null || (outputLength > 0 && outputLength + recordSize > chunkSizeInBytes)) {
+                if (output != null) {
+                    output.close();
                 }
-            } while (input.hasNext());
-
+                var outputfile = File.createTempFile("unsorted", ".tmp");
+                outputFiles.add(outputfile);
+                output = LineWriter.open(outputfile);
+                outputLength = 0;
+            }
+            output.write(input.array(), input.offset(), input.length());
+            outputLength += recordSize;
+        }
+        if (output != null) {
             output.close();
         }
         input.close();
-        inputstream.close();
 
+        metrics.record(Phase.CHUNKING, startNanos, new File(fileName).length(), MergePlanner.totalLength(outputFiles),
+                input.recordsRead());
         return outputFiles;
     }
 }
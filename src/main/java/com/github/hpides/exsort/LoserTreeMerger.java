@@ -0,0 +1,101 @@
+package com.github.hpides.exsort;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Merges sorted record sources with a tournament tree of losers. Every inner node of the tree stores the source that
+ * lost the comparison at that node, the overall winner is kept separately. After the winner advanced to its next
+ * record, only the path from its leaf to the root has to be replayed, which is one comparison per tree level and
+ * does not allocate anything.
+ *
+ * Exhausted sources lose against every other source. Sources may load more data lazily inside `next()`.
+ *
+ * Usage:
+ *   final LoserTreeMerger merger = new LoserTreeMerger(sources);
+ *   while (merger.next()) {
+ *       final RecordSource smallest = merger.current();
+ *       smallest.writeTo(output);
+ *   }
+ */
+final class LoserTreeMerger {
+    private final RecordSource[] sources;
+    private final boolean[] exhausted;
+    private final int[] losers;
+    private int winner = -1;
+
+    LoserTreeMerger(final List<? extends RecordSource> sources) {
+        this.sources = sources.toArray(new RecordSource[0]);
+        this.exhausted = new boolean[this.sources.length];
+        this.losers = new int[this.sources.length];
+    }
+
+    /**
+     * Advances the merge to the next smallest record, which is then available through `current()`.
+     * @return false if all sources are exhausted.
+     */
+    boolean next() throws IOException {
+        final int numSources = this.sources.length;
+        if (numSources == 0) {
+            return false;
+        }
+
+        if (this.winner < 0) {
+            for (int i = 0; i < numSources; i++) {
+                this.exhausted[i] = !this.sources[i].next();
+            }
+            this.winner = numSources == 1 ? 0 : this.initialize(1);
+        } else {
+            int winner = this.winner;
+            this.exhausted[winner] = !this.sources[winner].next();
+            for (int node = (winner + numSources) >>> 1; node > 0; node >>>= 1) {
+                final int loser = this.losers[node];
+                if (this.beats(loser, winner)) {
+                    this.losers[node] = winner;
+                    winner = loser;
+                }
+            }
+            this.winner = winner;
+        }
+        return !this.exhausted[this.winner];
+    }
+
+    /**
+     * The source whose current record is the smallest of all sources.
+     */
+    RecordSource current() {
+        return this.sources[this.winner];
+    }
+
+    /**
+     * Plays the initial tournament of the subtree below `node`. Inner nodes are numbered 1 to n - 1 and the leaf
+     * for source i is node n + i.
+     * @return the winner of the subtree.
+     */
+    private int initialize(final int node) {
+        final int numSources = this.sources.length;
+        if (node >= numSources) {
+            return node - numSources;
+        }
+        final int left = this.initialize(2 * node);
+        final int right = this.initialize(2 * node + 1);
+        if (this.beats(left, right)) {
+            this.losers[node] = right;
+            return left;
+        }
+        this.losers[node] = left;
+        return right;
+    }
+
+    /**
+     * Returns true if the current record of source `left` is smaller than the one of source `right`.
+     * Ties are broken by source index, so that the merge is stable.
+     */
+    private boolean beats(final int left, final int right) {
+        if (this.exhausted[left] || this.exhausted[right]) {
+            return this.exhausted[left] == this.exhausted[right] ? left < right : this.exhausted[right];
+        }
+        final int comparison = Records.compare(this.sources[left], this.sources[right]);
+        return comparison < 0 || (comparison == 0 && left < right);
+    }
+}
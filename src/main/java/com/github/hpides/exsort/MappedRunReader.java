@@ -0,0 +1,157 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a run in the text format through memory-mapped windows of the file instead of copying it into buffers. The
+ * records are exposed as regions of the mapping, so the merge compares them in place and copies them straight from
+ * the page cache into the output buffer. This pays off if the runs are still in the page cache after writing them.
+ *
+ * The file is mapped window by window. A reader holds one window at a time, and two only while it maps the next one.
+ * A window has the size given to the constructor (in a merge, the memory of one run, see `RunFiles.open()`) and only
+ * grows to twice the length of a record that does not fit. So a merge holds at most its fan-in times that size mapped.
+ *
+ * Once the reader moves past a window, that window is unmapped right away instead of waiting for the garbage
+ * collector, so the consumed part of the run no longer counts towards the resident memory of the process and its pages
+ * can be reclaimed by the operating system. The JDK has no public API for that, so it is done through
+ * `sun.misc.Unsafe.invokeCleaner()`. If that is not accessible, unmapping is left to the garbage collector: the bound
+ * above then only holds for the windows in use, and consumed windows stay mapped until they are collected.
+ */
+final class MappedRunReader implements RecordSource {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // Windows are released by the garbage collector instead
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int position;
+    private int scanPosition;
+
+    private int recordOffset;
+    private int recordLength;
+    private long recordPrefix;
+
+    /**
+     * @param windowSize How much of the file is mapped at once, windows grow for records that are larger.
+     */
+    MappedRunReader(final File file, final int windowSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.fileSize = this.channel.size();
+        this.windowSize = windowSize;
+        this.map(0, windowSize);
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (true) {
+            final int limit = this.window.capacity();
+            for (int i = this.scanPosition; i < limit; i++) {
+                if (this.window.get(i) == '\n') {
+                    this.setRecord(this.position, i);
+                    this.position = i + 1;
+                    this.scanPosition = this.position;
+                    return true;
+                }
+            }
+            this.scanPosition = limit;
+
+            if (this.windowStart + limit == this.fileSize) {
+                if (this.position == limit) {
+                    return false;
+                }
+                // Last line without trailing newline
+                this.setRecord(this.position, limit);
+                this.position = limit;
+                return true;
+            }
+            // Map the next window, starting at the incomplete record
+            final int remaining = limit - this.position;
+            final int scanned = this.scanPosition - this.position;
+            this.map(this.windowStart + this.position, Math.max(this.windowSize, 2 * remaining));
+            this.scanPosition = scanned;
+        }
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return this.window;
+    }
+
+    @Override
+    public int offset() {
+        return this.recordOffset;
+    }
+
+    @Override
+    public int length() {
+        return this.recordLength;
+    }
+
+    @Override
+    public long prefix() {
+        return this.recordPrefix;
+    }
+
+    private void setRecord(final int start, final int end) {
+        this.recordOffset = start;
+        this.recordLength = end > start && this.window.get(end - 1) == '\r' ? end - start - 1 : end - start;
+        this.recordPrefix = Records.prefix(this.window, start, this.recordLength);
+    }
+
+    private void map(final long start, final long size) throws IOException {
+        final long mappedSize = Math.min(Math.min(size, Integer.MAX_VALUE), this.fileSize - start);
+        final MappedByteBuffer previous = this.window;
+        this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start, mappedSize);
+        this.windowStart = start;
+        this.position = 0;
+        if (previous != null) {
+            unmap(previous);
+        }
+    }
+
+    /**
+     * Unmaps a window that is not used anymore. Must only be called if no record of that window is used afterwards.
+     */
+    private static void unmap(final MappedByteBuffer window) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, window);
+        } catch (final ReflectiveOperationException | RuntimeException e) {
+            // Leave it to the garbage collector
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        unmap(this.window);
+        this.channel.close();
+    }
+}
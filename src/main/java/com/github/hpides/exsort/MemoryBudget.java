@@ -0,0 +1,136 @@
+package com.github.hpides.exsort;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The memory limit of a sort phase (`chunkSizeInBytes`) in real bytes, and what is taken of it. Everything that holds
+ * memory for the phase reserves what it actually allocates: record arenas and their index arrays, read and write
+ * buffers, and merge buffers. So one configured number covers all of them instead of only the record bytes.
+ *
+ * A phase first sets aside its I/O buffers, whose size scales with the budget (see `ioBufferSize()`), and then gives
+ * the rest to whatever grows with the data, e.g., a RecordBuffer fills until its next allocation does not fit anymore.
+ * Parts of a budget can be split off for buffers that fill at the same time (see `split()`), their reservations count
+ * towards the whole budget.
+ *
+ * The only overshoot is that of I/O buffers with small budgets, see `reserveIoBuffers()`: it is at most their minimum
+ * size, i.e., `MergePlanner.MIN_BUFFER_SIZE` per buffer plus the fixed blocks of front coded writers
+ * (`RunFiles.blockBuffersSize()`). Everything is reserved with its real size nevertheless, so `peak()` shows it.
+ *
+ * Reservations are thread-safe. The highest reservation is kept for `SortMetrics`.
+ */
+final class MemoryBudget {
+    // I/O buffers of a phase stay below this share of the budget, so that most of it holds records
+    private static final int IO_BUFFER_SHARE = 16;
+    // Header of a byte array on a 64-bit JVM with compressed pointers
+    private static final int ARRAY_HEADER_SIZE = 16;
+    // Per-object alignment of the JVM
+    private static final int OBJECT_ALIGNMENT = 8;
+    // The native state of a Deflater at BEST_SPEED: window and hash tables of zlib
+    static final int DEFLATER_SIZE = 1 << 18;
+
+    // Only raised by `reserveIoBuffers()` before the budget is split or shared between threads
+    private long limitInBytes;
+    private final MemoryBudget parent;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+
+    MemoryBudget(final long limitInBytes) {
+        this(limitInBytes, null);
+    }
+
+    private MemoryBudget(final long limitInBytes, final MemoryBudget parent) {
+        this.limitInBytes = Math.max(0, limitInBytes);
+        this.parent = parent;
+    }
+
+    long limit() {
+        return this.limitInBytes;
+    }
+
+    long reserved() {
+        return this.reserved.get();
+    }
+
+    long available() {
+        return Math.max(0, this.limitInBytes - this.reserved.get());
+    }
+
+    /**
+     * The highest number of bytes that were reserved at the same time.
+     */
+    long peak() {
+        return this.peak.get();
+    }
+
+    /**
+     * Reserves the bytes if they fit into this budget and all budgets it was split off from.
+     * @return false if they do not fit, nothing is reserved then.
+     */
+    boolean tryReserve(final long bytes) {
+        while (true) {
+            final long current = this.reserved.get();
+            if (current + bytes > this.limitInBytes) {
+                return false;
+            }
+            if (this.reserved.compareAndSet(current, current + bytes)) {
+                break;
+            }
+        }
+        if (this.parent != null && !this.parent.tryReserve(bytes)) {
+            this.reserved.addAndGet(-bytes);
+            return false;
+        }
+        this.peak.accumulateAndGet(this.reserved.get(), Math::max);
+        return true;
+    }
+
+    /**
+     * Reserves the bytes even if they exceed the budget, e.g., for a single record that is larger than all of it.
+     */
+    void reserve(final long bytes) {
+        this.peak.accumulateAndGet(this.reserved.addAndGet(bytes), Math::max);
+        if (this.parent != null) {
+            this.parent.reserve(bytes);
+        }
+    }
+
+    void release(final long bytes) {
+        this.reserved.addAndGet(-bytes);
+        if (this.parent != null) {
+            this.parent.release(bytes);
+        }
+    }
+
+    /**
+     * Splits off a part of the available memory. Reservations in the part also count towards this budget.
+     */
+    MemoryBudget split(final long limitInBytes) {
+        return new MemoryBudget(Math.min(limitInBytes, this.available()), this);
+    }
+
+    /**
+     * The size of one I/O buffer when a phase needs `numBuffers` of them: they get at most a sixteenth of the budget
+     * together, but each stays within the usual bounds of merge buffers.
+     */
+    int ioBufferSize(final int numBuffers, final int maxBufferSize) {
+        final long bufferSize = this.limitInBytes / ((long) IO_BUFFER_SHARE * numBuffers);
+        return (int) Math.max(MergePlanner.MIN_BUFFER_SIZE, Math.min(maxBufferSize, bufferSize));
+    }
+
+    /**
+     * Reserves I/O buffers that were sized with `ioBufferSize()` with their real size. With budgets of a few hundred
+     * KiB, the smallest buffers alone are larger than their share of the budget. The limit is raised by the excess
+     * then, so that the rest of the budget still holds records instead of a single record per run.
+     */
+    void reserveIoBuffers(final long bytes) {
+        this.limitInBytes += Math.max(0, bytes - this.limitInBytes / IO_BUFFER_SHARE);
+        this.reserve(bytes);
+    }
+
+    /**
+     * The memory that a byte array of the given length takes up on the heap.
+     */
+    static long arraySize(final long length) {
+        return (ARRAY_HEADER_SIZE + length + OBJECT_ALIGNMENT - 1) / OBJECT_ALIGNMENT * OBJECT_ALIGNMENT;
+    }
+}
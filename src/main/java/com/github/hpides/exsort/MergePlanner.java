@@ -0,0 +1,227 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortMetrics.Phase;
+import com.sun.management.UnixOperatingSystemMXBean;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Merges any number of sorted runs under a memory limit. Every open run needs a read buffer, so only a limited number
+ * of runs can be merged at once (the fan-in). This is bounded by the memory limit and by the number of files the
+ * process may still open. If there are more runs than that, intermediate merge passes combine runs into longer runs
+ * until the remaining runs can be merged into the output in one final pass.
+ *
+ * Intermediate merges always combine the smallest runs, like building a Huffman tree. The first merge only combines
+ * as many runs as needed so that every later merge, including the final one, uses the full fan-in. This keeps the
+ * number of bytes that are written more than once as small as possible.
+ *
+ * With `SortOptions.asyncIo()`, every run is read ahead and the merge output is written behind by a small pool of
+ * I/O threads, so disk latency overlaps with the comparisons. This needs two more buffers per input and output.
+ * With `SortOptions.mappedRuns()`, text runs are mapped in windows of the same size as their buffers instead.
+ * Front coded runs additionally hold their blocks, which are part of the memory of every file as well.
+ *
+ * The buffers of every pass are reserved with their real size in a MemoryBudget. They only exceed the memory limit if
+ * it is smaller than two runs and the output with buffers of `MIN_BUFFER_SIZE`, since at least two runs are merged.
+ */
+final class MergePlanner {
+    static final int MIN_BUFFER_SIZE = 1 << 12;  // 4 KiB
+    static final int MAX_BUFFER_SIZE = 1 << 20;  // 1 MiB
+
+    private static final int DEFAULT_MAX_OPEN_FILES = 1024;
+    private static final int IO_THREADS = 4;
+
+    private MergePlanner() {
+    }
+
+    /**
+     * Merges all sorted runs into the output file and deletes the runs.
+     */
+    static void mergeAll(final List<File> sortedRuns, final String outputFileName, final long memoryInBytes,
+                         final SortOptions options) throws IOException {
+        mergeAll(sortedRuns, (bufferSize, ioExecutor) -> {
+            WritableByteChannel output = FileChannel.open(Paths.get(outputFileName), StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            if (ioExecutor != null) {
+                output = new WriteBehindChannel(output, bufferSize, ioExecutor);
+            }
+            return DuplicateFilter.output(LimitedSink.wrap(new LineWriter(output, bufferSize), options),
+                    options.duplicates());
+        }, new File(outputFileName), List.of(), memoryInBytes, options);
+    }
+
+    /**
+     * Merges all sorted runs into the given sink, closes it and deletes the runs.
+     */
+    static void mergeAll(final List<File> sortedRuns, final RecordSink output, final long memoryInBytes,
+                         final SortOptions options) throws IOException {
+        mergeAll(sortedRuns, List.of(), output, memoryInBytes, options);
+    }
+
+    /**
+     * Merges all sorted runs together with sorted streams, e.g., from other nodes, into the given sink. The streams
+     * only take part in the final merge pass. Their buffers are not part of `memoryInBytes`, which is only split
+     * between the runs and the output. Closes the sink and the streams and deletes the runs.
+     * Duplicates reach the sink collapsed like in a run, see `SortOptions.duplicates()`, and the merge stops at the
+     * limit.
+     */
+    static void mergeAll(final List<File> sortedRuns, final List<? extends RecordSource> sortedStreams,
+                         final RecordSink output, final long memoryInBytes, final SortOptions options)
+            throws IOException {
+        final RecordSink collapsed = DuplicateFilter.collapse(LimitedSink.wrap(output, options), options.duplicates());
+        mergeAll(sortedRuns, (bufferSize, ioExecutor) -> collapsed, null, sortedStreams, memoryInBytes, options);
+    }
+
+    /**
+     * @param outputFile The file behind the output for the metrics, null if the output is a stream.
+     */
+    private static void mergeAll(final List<File> sortedRuns, final OutputFactory output, final File outputFile,
+                                 final List<? extends RecordSource> sortedStreams, final long memoryInBytes,
+                                 final SortOptions options) throws IOException {
+        final int buffersPerFile = options.asyncIo() ? 4 : 2;
+        final long blockBuffersSize = RunFiles.blockBuffersSize(options);
+        final int fanIn = maxFanIn(sortedRuns.size(), memoryInBytes, buffersPerFile, blockBuffersSize);
+        final int bufferSize = bufferSize(fanIn, memoryInBytes, buffersPerFile, blockBuffersSize);
+        // Every file of a pass, i.e., the runs and the output, holds its buffers
+        final MemoryBudget budget = new MemoryBudget(memoryInBytes);
+        final long fileSize = (long) buffersPerFile * bufferSize + blockBuffersSize;
+        final ExecutorService ioExecutor = options.asyncIo() ? Executors.newFixedThreadPool(IO_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, "merge-io");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        try {
+            mergeAll(sortedRuns, output, outputFile, sortedStreams, options, fanIn, bufferSize, ioExecutor, budget,
+                    fileSize);
+        } finally {
+            options.metrics().recordPeakReserved(budget.peak());
+            if (ioExecutor != null) {
+                ioExecutor.shutdownNow();
+            }
+        }
+    }
+
+    private static void mergeAll(final List<File> sortedRuns, final OutputFactory output, final File outputFile,
+                                 final List<? extends RecordSource> sortedStreams, final SortOptions options,
+                                 final int fanIn, final int bufferSize, final ExecutorService ioExecutor,
+                                 final MemoryBudget budget, final long fileSize) throws IOException {
+        final PriorityQueue<File> runs = new PriorityQueue<>(Math.max(1, sortedRuns.size()),
+                Comparator.comparingLong(File::length));
+        runs.addAll(sortedRuns);
+
+        int runsToMerge = firstMergeSize(runs.size(), fanIn);
+        while (runs.size() > fanIn) {
+            final List<File> smallestRuns = new ArrayList<>(runsToMerge);
+            for (int i = 0; i < runsToMerge; i++) {
+                smallestRuns.add(runs.poll());
+            }
+            final long startNanos = System.nanoTime();
+            final File mergedRun = File.createTempFile("merged", ".tmp");
+            budget.reserve((runsToMerge + 1) * fileSize);
+            final long numRecords = LocalFileSorter.mergeRuns(smallestRuns, options,
+                    RunFiles.create(mergedRun, options, bufferSize, ioExecutor), bufferSize, ioExecutor);
+            budget.release((runsToMerge + 1) * fileSize);
+            options.metrics().record(Phase.MERGE, startNanos, totalLength(smallestRuns), mergedRun.length(),
+                    numRecords);
+            smallestRuns.forEach(File::delete);
+            runs.add(mergedRun);
+            runsToMerge = fanIn;
+        }
+
+        final long startNanos = System.nanoTime();
+        final List<File> finalRuns = new ArrayList<>(runs);
+        budget.reserve((finalRuns.size() + 1) * fileSize);
+        final long numRecords = LocalFileSorter.mergeRuns(finalRuns, sortedStreams, options,
+                output.open(bufferSize, ioExecutor), bufferSize, ioExecutor);
+        // Streams are only counted by their records
+        options.metrics().record(Phase.MERGE, startNanos, totalLength(finalRuns),
+                outputFile == null ? 0 : outputFile.length(), numRecords);
+        budget.release((finalRuns.size() + 1) * fileSize);
+        finalRuns.forEach(File::delete);
+    }
+
+    /**
+     * The summed length of the files in bytes.
+     */
+    static long totalLength(final List<File> files) {
+        long length = 0;
+        for (final File file : files) {
+            length += file.length();
+        }
+        return length;
+    }
+
+    /**
+     * The number of runs that can be merged at once. A LineReader holds a direct and a heap buffer, so every input
+     * needs at least twice its buffer size. At least two runs are merged at once, even with very small memory limits.
+     */
+    static int maxFanIn(final int numRuns, final long memoryInBytes, final int buffersPerFile) {
+        return maxFanIn(numRuns, memoryInBytes, buffersPerFile, 0);
+    }
+
+    /**
+     * @param blockBuffersSize Memory of every file besides its buffers, see `RunFiles.blockBuffersSize()`.
+     */
+    static int maxFanIn(final int numRuns, final long memoryInBytes, final int buffersPerFile,
+                        final long blockBuffersSize) {
+        final long memoryFanIn = memoryInBytes / ((long) buffersPerFile * MIN_BUFFER_SIZE + blockBuffersSize) - 1;
+        final long fanIn = Math.min(Math.min(numRuns, memoryFanIn), maxOpenFiles());
+        return (int) Math.max(2, fanIn);
+    }
+
+    /**
+     * Splits the memory evenly between the inputs and the output of a merge.
+     */
+    static int bufferSize(final int fanIn, final long memoryInBytes, final int buffersPerFile) {
+        return bufferSize(fanIn, memoryInBytes, buffersPerFile, 0);
+    }
+
+    static int bufferSize(final int fanIn, final long memoryInBytes, final int buffersPerFile,
+                          final long blockBuffersSize) {
+        final long bufferMemory = memoryInBytes - (fanIn + 1) * blockBuffersSize;
+        final long bufferSize = bufferMemory / ((long) buffersPerFile * (fanIn + 1));
+        return (int) Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, bufferSize));
+    }
+
+    /**
+     * Size of the first merge so that all following merges have exactly `fanIn` inputs: Every merge of k runs
+     * reduces the number of runs by k - 1 and the final merge must start with `fanIn` runs.
+     */
+    static int firstMergeSize(final int numRuns, final int fanIn) {
+        if (numRuns <= fanIn) {
+            return numRuns;
+        }
+        return (numRuns - 2) % (fanIn - 1) + 2;
+    }
+
+    /**
+     * Half of the file descriptors that this process may still open, the other half remains for sockets and other
+     * files. Falls back to a conservative default if the operating system does not tell us.
+     */
+    static long maxOpenFiles() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            final UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+            return (unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount()) / 2;
+        }
+        return DEFAULT_MAX_OPEN_FILES;
+    }
+
+    /**
+     * Opens the sink for the final merge pass once its buffer size is known.
+     */
+    private interface OutputFactory {
+        RecordSink open(int bufferSize, ExecutorService ioExecutor) throws IOException;
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.hpides.exsort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntFunction;
+
+/**
+ * Lays out the remote nodes as a tree for a `TREE` transfer, so that the merge work is spread over the cluster
+ * instead of running on the collecting node alone. The collecting node is the root and the remote nodes are numbered
+ * in breadth-first order: the root has the nodes 0 to fanIn - 1 as children, node i has the nodes (i + 1) * fanIn to
+ * (i + 1) * fanIn + fanIn - 1, as far as they exist.
+ *
+ * Every remote node sorts its own file into runs and merges them with the streams of its children into one stream to
+ * its parent (`SORT_TREE`). So no node merges more than `fanIn` streams besides its own runs, and the root only merges
+ * `fanIn` streams however many nodes there are.
+ */
+final class MergeTree {
+    static final int ROOT = -1;
+
+    private MergeTree() {
+    }
+
+    /**
+     * The indexes of the children of a node, see the class comment.
+     */
+    static List<Integer> children(final int node, final int fanIn, final int numNodes) {
+        final List<Integer> children = new ArrayList<>(fanIn);
+        final long firstChild = (long) (node + 1) * fanIn;
+        for (long child = firstChild; child < Math.min(firstChild + fanIn, numNodes); child++) {
+            children.add((int) child);
+        }
+        return children;
+    }
+
+    /**
+     * Requests the sorted subtrees of all children of a node. All requests are sent before any response arrives, so
+     * that the whole tree sorts in parallel.
+     * @param clients Gives the client that is connected to a node.
+     * @param bufferSize How many bytes of every child stream are buffered.
+     */
+    static List<CompletableFuture<RecordSource>> requestSubtrees(final String inputFileName,
+                                                                 final int chunkSizeInBytes, final int node,
+                                                                 final int fanIn, final List<String> nodes,
+                                                                 final IntFunction<RemoteFileSorterClient> clients,
+                                                                 final int bufferSize) {
+        final List<CompletableFuture<RecordSource>> subtrees = new ArrayList<>(fanIn);
+        for (final int child : children(node, fanIn, nodes.size())) {
+            subtrees.add(clients.apply(child).streamSortedTreeAsync(inputFileName, chunkSizeInBytes, child, fanIn,
+                    nodes, bufferSize));
+        }
+        return subtrees;
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.hpides.exsort;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Wraps a channel and reads the next block in the background while the current block is consumed (double buffering).
+ * Reading only blocks if the background read of the next block is not finished yet, i.e., if the disk is slower than
+ * the consumer.
+ *
+ * Background reads hold the lock of the channel, so that `close()` waits for a read that already started instead of
+ * closing the channel underneath it.
+ */
+final class ReadAheadChannel implements ReadableByteChannel {
+    private final ReadableByteChannel channel;
+    private final ExecutorService executor;
+
+    // The block that is consumed right now and the block that is filled in the background
+    private ByteBuffer current;
+    private ByteBuffer next;
+    private Future<Integer> pendingRead;
+    private boolean closed;
+
+    ReadAheadChannel(final ReadableByteChannel channel, final int blockSize, final ExecutorService executor) {
+        this.channel = channel;
+        this.executor = executor;
+        this.current = ByteBuffer.allocateDirect(blockSize).flip();
+        this.next = ByteBuffer.allocateDirect(blockSize);
+        this.pendingRead = this.readInBackground(this.next);
+    }
+
+    private Future<Integer> readInBackground(final ByteBuffer block) {
+        return this.executor.submit(() -> {
+            synchronized (this) {
+                if (this.closed) {
+                    return -1;
+                }
+                block.clear();
+                int bytesRead = 0;
+                while (block.hasRemaining()) {
+                    final int read = this.channel.read(block);
+                    if (read < 0) {
+                        break;
+                    }
+                    bytesRead += read;
+                }
+                block.flip();
+                // The block is only left partially empty at the end of the channel
+                return bytesRead == 0 ? -1 : bytesRead;
+            }
+        });
+    }
+
+    @Override
+    public int read(final ByteBuffer target) throws IOException {
+        while (!this.current.hasRemaining()) {
+            if (this.pendingRead == null) {
+                return -1;
+            }
+            final int bytesRead = await(this.pendingRead);
+            this.pendingRead = null;
+            if (bytesRead < 0) {
+                return -1;
+            }
+            final ByteBuffer filled = this.next;
+            this.next = this.current;
+            this.current = filled;
+            this.pendingRead = this.readInBackground(this.next);
+        }
+
+        final int bytesToCopy = Math.min(target.remaining(), this.current.remaining());
+        final int limit = this.current.limit();
+        this.current.limit(this.current.position() + bytesToCopy);
+        target.put(this.current);
+        this.current.limit(limit);
+        return bytesToCopy;
+    }
+
+    static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background I/O");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Background I/O failed", e.getCause());
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.pendingRead != null) {
+            // A read that did not start yet is dropped, a running one has to finish first, see below
+            this.pendingRead.cancel(false);
+            this.pendingRead = null;
+        }
+        synchronized (this) {
+            this.closed = true;
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.github.hpides.exsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds the records of one run in memory. All record bytes are stored back to back in one off-heap arena and the
+ * records are addressed by an index of primitive longs, each packing the offset of a record (upper 32 bits) and its
+ * length (lower 32 bits). So there is no object per record and the Java heap only holds the index. Next to the
+ * index, every record has its normalized key prefix (see `Records.prefix()`).
+ *
+ * Sorting only permutes the index and the prefixes. It is an MSD radix sort over the record bytes, which falls back to
+ * a comparison sort for small buckets and for very long common prefixes. The first eight radix passes and most
+ * comparisons only read the prefixes, which lie next to each other in memory, instead of the arena.
+ *
+ * The arena and the index arrays are reserved in a MemoryBudget as they grow, so the buffer is full once its next
+ * allocation does not fit into the budget anymore. Every index entry takes up 32 bytes: the entry, the prefix, and
+ * their scratch copies for the sort. While an allocation grows, the old and the new one are reserved together, because
+ * both are live during the copy.
+ */
+final class RecordBuffer {
+    private static final int INITIAL_DATA_SIZE = 1 << 16;
+    private static final int INITIAL_INDEX_SIZE = 1 << 10;
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+    // Index, prefixes, and their scratch arrays
+    private static final int INDEX_BYTES_PER_RECORD = 4 * Long.BYTES;
+
+    // Buckets smaller than this are sorted by insertion sort
+    private static final int INSERTION_SORT_THRESHOLD = 32;
+    // From this depth on, the radix sort recursion stops and the buckets are merge sorted
+    private static final int MAX_RADIX_DEPTH = 256;
+    // Radix buckets: one for records that end at the current depth, then one per byte value
+    private static final int NUM_BUCKETS = 257;
+    private static final long BUCKET_COUNTS_SIZE = MemoryBudget.arraySize((long) Integer.BYTES * NUM_BUCKETS);
+
+    private final MemoryBudget budget;
+
+    private ByteBuffer data;
+    private ByteBuffer view;
+    private long[] index;
+    private long[] prefixes;
+    private long[] scratch;
+    private long[] prefixScratch;
+    private int[][] bucketCounts = new int[0][];
+    private int numRecords;
+
+    /**
+     * The initial arena and index take up at most an eighth of the available budget each, so that their growth decides
+     * how the budget is split between them.
+     */
+    RecordBuffer(final MemoryBudget budget) {
+        this.budget = budget;
+        final long initialSize = budget.available() / 8;
+        final int dataSize = (int) Math.max(1, Math.min(INITIAL_DATA_SIZE, initialSize));
+        final int indexSize = (int) Math.max(1, Math.min(INITIAL_INDEX_SIZE, initialSize / INDEX_BYTES_PER_RECORD));
+        budget.reserve(dataSize + (long) indexSize * INDEX_BYTES_PER_RECORD);
+        this.allocateData(dataSize);
+        this.allocateIndex(indexSize);
+    }
+
+    /**
+     * The most memory that a buffer takes up to hold an input of the given size in the file, where every record may
+     * be a single byte: the arena and the index grow by doubling, so each is at most twice what it holds, and three
+     * times while it grows.
+     */
+    static long maxMemory(final long inputBytes) {
+        final long maxRecords = inputBytes + 1;
+        return 3 * (INITIAL_DATA_SIZE + inputBytes + (INITIAL_INDEX_SIZE + maxRecords) * INDEX_BYTES_PER_RECORD);
+    }
+
+    /**
+     * Copies a record into the buffer. An empty buffer accepts one record of any size, so that a record that is larger
+     * than the budget still ends up in a run of its own.
+     * @return false if the record does not fit into the budget anymore.
+     */
+    boolean add(final byte[] array, final int offset, final int length) {
+        final int dataLength = this.data.position();
+        if (this.numRecords > 0 && dataLength + length > MAX_ARRAY_SIZE) {
+            return false;
+        }
+        if (length > this.data.remaining()) {
+            final int size = this.grow(this.data.capacity(), dataLength + length, MAX_ARRAY_SIZE, 1);
+            if (size < 0) {
+                return false;
+            }
+            final ByteBuffer oldData = this.data;
+            this.allocateData(size);
+            oldData.flip();
+            this.data.put(oldData);
+            this.budget.release(oldData.capacity());
+        }
+        if (this.numRecords == this.index.length) {
+            final int size = this.grow(this.numRecords, this.numRecords + 1, MAX_ARRAY_SIZE, INDEX_BYTES_PER_RECORD);
+            if (size < 0) {
+                return false;
+            }
+            final long[] oldIndex = this.index;
+            final long[] oldPrefixes = this.prefixes;
+            this.allocateIndex(size);
+            System.arraycopy(oldIndex, 0, this.index, 0, this.numRecords);
+            System.arraycopy(oldPrefixes, 0, this.prefixes, 0, this.numRecords);
+            this.budget.release((long) oldIndex.length * INDEX_BYTES_PER_RECORD);
+        }
+
+        this.prefixes[this.numRecords] = Records.prefix(array, offset, length);
+        this.index[this.numRecords++] = ((long) dataLength << 32) | length;
+        this.data.put(array, offset, length);
+        return true;
+    }
+
+    /**
+     * Reserves a new allocation of at least `minSize` units next to the old one of `oldSize` units, which the caller
+     * releases once it copied it. It doubles while the budget allows and then only grows by an eighth, so that the
+     * last allocations nearly fill the budget without copying the arrays for every record.
+     * @return The new size, or -1 if it does not fit. An empty buffer always grows to `minSize`.
+     */
+    private int grow(final int oldSize, final int minSize, final int maxSize, final int bytesPerUnit) {
+        final long[] sizes = {2L * oldSize, oldSize + oldSize / 8L};
+        for (final long size : sizes) {
+            final long newSize = Math.min(Math.max(size, minSize), maxSize);
+            if (this.budget.tryReserve(newSize * bytesPerUnit)) {
+                return (int) newSize;
+            }
+        }
+        if (this.numRecords > 0) {
+            return -1;
+        }
+        this.budget.reserve((long) minSize * bytesPerUnit);
+        return minSize;
+    }
+
+    private void allocateData(final int size) {
+        this.data = ByteBuffer.allocateDirect(size);
+        this.view = this.data.duplicate();
+    }
+
+    private void allocateIndex(final int size) {
+        this.index = new long[size];
+        this.prefixes = new long[size];
+        this.scratch = new long[size];
+        this.prefixScratch = new long[size];
+    }
+
+    boolean isEmpty() {
+        return this.numRecords == 0;
+    }
+
+    int size() {
+        return this.numRecords;
+    }
+
+    /**
+     * Sorts the records by their unsigned bytes. The sort is stable.
+     */
+    void sort() {
+        this.radixSort(0, this.numRecords, 0);
+    }
+
+    private void radixSort(final int from, final int to, final int depth) {
+        if (to - from < INSERTION_SORT_THRESHOLD) {
+            this.insertionSort(from, to, depth);
+            return;
+        }
+        if (depth >= MAX_RADIX_DEPTH) {
+            System.arraycopy(this.index, from, this.scratch, from, to - from);
+            System.arraycopy(this.prefixes, from, this.prefixScratch, from, to - from);
+            this.mergeSort(this.scratch, this.prefixScratch, this.index, this.prefixes, from, to, depth);
+            return;
+        }
+
+        final int[] counts = this.bucketCounts(depth);
+        Arrays.fill(counts, 0);
+        for (int i = from; i < to; i++) {
+            counts[this.bucket(i, depth)]++;
+        }
+        // Turn the counts into start positions and distribute the records stably
+        int start = from;
+        for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+            final int count = counts[bucket];
+            counts[bucket] = start;
+            start += count;
+        }
+        for (int i = from; i < to; i++) {
+            final int target = counts[this.bucket(i, depth)]++;
+            this.scratch[target] = this.index[i];
+            this.prefixScratch[target] = this.prefixes[i];
+        }
+        System.arraycopy(this.scratch, from, this.index, from, to - from);
+        System.arraycopy(this.prefixScratch, from, this.prefixes, from, to - from);
+
+        // counts[bucket] now is the end of each bucket. Records in bucket 0 are equal, the others need the next byte.
+        int bucketStart = counts[0];
+        for (int bucket = 1; bucket < NUM_BUCKETS; bucket++) {
+            final int bucketEnd = counts[bucket];
+            if (bucketEnd - bucketStart > 1) {
+                this.radixSort(bucketStart, bucketEnd, depth + 1);
+            }
+            bucketStart = bucketEnd;
+        }
+    }
+
+    private int[] bucketCounts(final int depth) {
+        if (depth >= this.bucketCounts.length) {
+            this.bucketCounts = Arrays.copyOf(this.bucketCounts, depth + 1);
+        }
+        if (this.bucketCounts[depth] == null) {
+            // Few and small, so they are reserved even beyond the budget
+            this.budget.reserve(BUCKET_COUNTS_SIZE);
+            this.bucketCounts[depth] = new int[NUM_BUCKETS];
+        }
+        return this.bucketCounts[depth];
+    }
+
+    private int bucket(final int record, final int depth) {
+        final long entry = this.index[record];
+        if (length(entry) <= depth) {
+            return 0;
+        }
+        if (depth < Long.BYTES) {
+            return (int) (this.prefixes[record] >>> (Long.SIZE - Byte.SIZE * (depth + 1)) & 0xFF) + 1;
+        }
+        return (this.data.get(offset(entry) + depth) & 0xFF) + 1;
+    }
+
+    private void insertionSort(final int from, final int to, final int depth) {
+        for (int i = from + 1; i < to; i++) {
+            final long entry = this.index[i];
+            final long prefix = this.prefixes[i];
+            int j = i - 1;
+            while (j >= from && this.compare(this.index[j], this.prefixes[j], entry, prefix, depth) > 0) {
+                this.index[j + 1] = this.index[j];
+                this.prefixes[j + 1] = this.prefixes[j];
+                j--;
+            }
+            this.index[j + 1] = entry;
+            this.prefixes[j + 1] = prefix;
+        }
+    }
+
+    private void mergeSort(final long[] source, final long[] sourcePrefixes, final long[] target,
+                           final long[] targetPrefixes, final int from, final int to, final int depth) {
+        if (to - from < 2) {
+            return;
+        }
+        final int middle = (from + to) >>> 1;
+        // Sort both halves into source, then merge them into target
+        this.mergeSort(target, targetPrefixes, source, sourcePrefixes, from, middle, depth);
+        this.mergeSort(target, targetPrefixes, source, sourcePrefixes, middle, to, depth);
+
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            final boolean takeLeft = right >= to || (left < middle && this.compare(source[left], sourcePrefixes[left],
+                    source[right], sourcePrefixes[right], depth) <= 0);
+            final int record = takeLeft ? left++ : right++;
+            target[i] = source[record];
+            targetPrefixes[i] = sourcePrefixes[record];
+        }
+    }
+
+    /**
+     * Compares two records whose first `depth` bytes are known to be equal.
+     */
+    private int compare(final long left, final long leftPrefix, final long right, final long rightPrefix,
+                        final int depth) {
+        if (depth < Long.BYTES && leftPrefix != rightPrefix) {
+            return Long.compareUnsigned(leftPrefix, rightPrefix);
+        }
+        final int skip = Math.max(depth, Records.prefixLength(length(left), length(right)));
+        return Records.compare(this.data, offset(left) + skip, length(left) - skip,
+                this.data, offset(right) + skip, length(right) - skip);
+    }
+
+    private static int offset(final long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    private static int length(final long entry) {
+        return (int) entry;
+    }
+
+    /**
+     * Writes all records in sorted order, or in insertion order if `sort()` was not called. Stops early once the
+     * output is full.
+     */
+    void writeTo(final RecordSink output) throws IOException {
+        for (int i = 0; i < this.numRecords && !output.isFull(); i++) {
+            final int offset = offset(this.index[i]);
+            this.view.clear();
+            this.view.position(offset);
+            this.view.limit(offset + length(this.index[i]));
+            output.write(this.view);
+        }
+    }
+
+    /**
+     * Empties the buffer, but keeps its memory for the next records.
+     */
+    void clear() {
+        this.data.clear();
+        this.numRecords = 0;
+    }
+
+    /**
+     * Releases the memory of the buffer in its budget, the buffer must not be used anymore afterwards.
+     */
+    void free() {
+        long bucketCountsSize = 0;
+        for (final int[] counts : this.bucketCounts) {
+            bucketCountsSize += counts == null ? 0 : BUCKET_COUNTS_SIZE;
+        }
+        this.budget.release(this.data.capacity() + (long) this.index.length * INDEX_BYTES_PER_RECORD + bucketCountsSize);
+        this.clear();
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.hpides.exsort;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Something records can be written to in sorted order, e.g., the output file or a run file.
+ */
+public interface RecordSink extends Closeable {
+
+    /**
+     * Writes one record.
+     */
+    void write(byte[] array, int offset, int length) throws IOException;
+
+    /**
+     * Writes the remaining bytes of the given buffer as one record. This copies records from off-heap memory without
+     * going through a byte array.
+     */
+    void write(ByteBuffer record) throws IOException;
+
+    /**
+     * Writes a record that occurs `count` times, see `SortOptions.duplicates()`. Sinks that can store counts, e.g.,
+     * counted front coded runs, write it once, the others write every copy.
+     */
+    default void write(final byte[] array, final int offset, final int length, final long count) throws IOException {
+        for (long i = 0; i < count; i++) {
+            this.write(array, offset, length);
+        }
+    }
+
+    default void write(final ByteBuffer record, final long count) throws IOException {
+        final int position = record.position();
+        for (long i = 0; i < count; i++) {
+            record.position(position);
+            this.write(record);
+        }
+    }
+
+    /**
+     * Whether the sink does not take any more records, e.g., because `SortOptions.limit()` was reached. Writers may
+     * stop early then, further records are dropped.
+     */
+    default boolean isFull() {
+        return false;
+    }
+}
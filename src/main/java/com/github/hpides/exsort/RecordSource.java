@@ -0,0 +1,69 @@
+package com.github.hpides.exsort;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A sorted sequence of records that can be merged, e.g., a run file or the chunks of a remote node.
+ * The current record is exposed as a region of a byte buffer and is only valid until the next call to `next()`.
+ * Sources that read into a byte array wrap it, others may expose off-heap memory such as a mapped file.
+ * Sources compute the key prefix once per record when they read it, so the merge can compare primitive longs first.
+ */
+public interface RecordSource extends Closeable {
+
+    /**
+     * Advances to the next record. Implementations may block here to load more data.
+     * @return false if the source is exhausted.
+     */
+    boolean next() throws IOException;
+
+    /**
+     * The buffer that holds the current record at `offset()`. Only absolute positions are meaningful. Callers that
+     * change the position or limit of the buffer must `clear()` it afterwards.
+     */
+    ByteBuffer buffer();
+
+    int offset();
+
+    int length();
+
+    /**
+     * The normalized key prefix of the current record, see `Records.prefix()`.
+     */
+    long prefix();
+
+    /**
+     * How often the current record occurs. Only sources of counted runs hold several copies as one record, see
+     * `SortOptions.duplicates()`.
+     */
+    default long count() {
+        return 1;
+    }
+
+    /**
+     * Writes the current record with its count to the sink without copying it into an intermediate array.
+     */
+    default void writeTo(final RecordSink sink) throws IOException {
+        final ByteBuffer buffer = this.buffer();
+        final long count = this.count();
+        if (buffer.hasArray()) {
+            final int offset = buffer.arrayOffset() + this.offset();
+            if (count == 1) {
+                sink.write(buffer.array(), offset, this.length());
+            } else {
+                sink.write(buffer.array(), offset, this.length(), count);
+            }
+            return;
+        }
+        buffer.clear();
+        buffer.position(this.offset());
+        buffer.limit(this.offset() + this.length());
+        if (count == 1) {
+            sink.write(buffer);
+        } else {
+            sink.write(buffer, count);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,112 @@
+package com.github.hpides.exsort;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Helper functions for records that are kept as raw bytes instead of Strings.
+ * A record is a line of the input file without its trailing newline. Records are ordered by comparing their bytes as
+ * unsigned values, which matches the order of `String::compareTo` for the ASCII data we sort.
+ *
+ * Most comparisons are already decided by the first few bytes, so records carry a normalized key prefix: their first
+ * eight bytes as a big-endian long, padded with zeros. Comparing two prefixes as unsigned longs gives the same order
+ * as comparing these bytes, only if the prefixes are equal the remaining bytes have to be looked at.
+ */
+public final class Records {
+    private static final VarHandle BIG_ENDIAN_LONG =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private Records() {
+    }
+
+    /**
+     * Returns the normalized key prefix of a record.
+     */
+    public static long prefix(final byte[] array, final int offset, final int length) {
+        if (length >= Long.BYTES) {
+            return (long) BIG_ENDIAN_LONG.get(array, offset);
+        }
+        long prefix = 0;
+        for (int i = 0; i < length; i++) {
+            prefix |= (array[offset + i] & 0xFFL) << (Long.SIZE - Byte.SIZE * (i + 1));
+        }
+        return prefix;
+    }
+
+    /**
+     * Returns the normalized key prefix of a record stored in a big-endian byte buffer.
+     */
+    public static long prefix(final ByteBuffer buffer, final int offset, final int length) {
+        if (length >= Long.BYTES) {
+            return buffer.getLong(offset);
+        }
+        long prefix = 0;
+        for (int i = 0; i < length; i++) {
+            prefix |= (buffer.get(offset + i) & 0xFFL) << (Long.SIZE - Byte.SIZE * (i + 1));
+        }
+        return prefix;
+    }
+
+    /**
+     * Number of leading bytes that are known to be equal if the prefixes of two records are equal.
+     */
+    public static int prefixLength(final int leftLength, final int rightLength) {
+        return Math.min(Long.BYTES, Math.min(leftLength, rightLength));
+    }
+
+    /**
+     * Compares two records lexicographically as unsigned bytes. A record that is a prefix of the other is smaller.
+     */
+    public static int compare(final byte[] left, final int leftOffset, final int leftLength,
+                              final byte[] right, final int rightOffset, final int rightLength) {
+        return Arrays.compareUnsigned(left, leftOffset, leftOffset + leftLength,
+                right, rightOffset, rightOffset + rightLength);
+    }
+
+    /**
+     * Compares two records stored in byte buffers, e.g., off-heap arenas, lexicographically as unsigned bytes.
+     * Compares eight bytes at a time as big-endian longs, which is the same order as comparing them one by one.
+     */
+    public static int compare(final ByteBuffer left, final int leftOffset, final int leftLength,
+                              final ByteBuffer right, final int rightOffset, final int rightLength) {
+        if (left.hasArray() && right.hasArray()) {
+            return compare(left.array(), left.arrayOffset() + leftOffset, leftLength,
+                    right.array(), right.arrayOffset() + rightOffset, rightLength);
+        }
+        final int length = Math.min(leftLength, rightLength);
+        int i = 0;
+        if (left.order() == ByteOrder.BIG_ENDIAN && right.order() == ByteOrder.BIG_ENDIAN) {
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                final long leftWord = left.getLong(leftOffset + i);
+                final long rightWord = right.getLong(rightOffset + i);
+                if (leftWord != rightWord) {
+                    return Long.compareUnsigned(leftWord, rightWord);
+                }
+            }
+        }
+        for (; i < length; i++) {
+            final int comparison = Byte.toUnsignedInt(left.get(leftOffset + i))
+                    - Byte.toUnsignedInt(right.get(rightOffset + i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return leftLength - rightLength;
+    }
+
+    /**
+     * Compares the current records of two sources, using their prefixes first.
+     */
+    public static int compare(final RecordSource left, final RecordSource right) {
+        final int prefixComparison = Long.compareUnsigned(left.prefix(), right.prefix());
+        if (prefixComparison != 0) {
+            return prefixComparison;
+        }
+        final int skip = prefixLength(left.length(), right.length());
+        return compare(left.buffer(), left.offset() + skip, left.length() - skip,
+                right.buffer(), right.offset() + skip, right.length() - skip);
+    }
+}
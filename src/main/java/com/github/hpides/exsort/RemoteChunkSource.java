@@ -0,0 +1,73 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Reads the sorted chunks of one remote node as one continuous record source. Chunks are taken from a
+ * ChunkPrefetcher when the current one is used up. Chunk files are deleted after reading them.
+ */
+final class RemoteChunkSource implements RecordSource {
+    private final ChunkPrefetcher chunks;
+    private final int bufferSize;
+    private LineReader chunk;
+    private File chunkFile;
+
+    /**
+     * @param bufferSize The size of the buffers that the chunks are read with.
+     */
+    RemoteChunkSource(final ChunkPrefetcher chunks, final int bufferSize) {
+        this.chunks = chunks;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        while (this.chunk == null || !this.chunk.next()) {
+            this.closeChunk();
+            final Optional<File> nextChunk = this.chunks.next();
+            if (nextChunk.isEmpty()) {
+                return false;
+            }
+            this.chunkFile = nextChunk.get();
+            this.chunk = LineReader.open(this.chunkFile, this.bufferSize);
+        }
+        return true;
+    }
+
+    @Override
+    public ByteBuffer buffer() {
+        return this.chunk.buffer();
+    }
+
+    @Override
+    public int offset() {
+        return this.chunk.offset();
+    }
+
+    @Override
+    public int length() {
+        return this.chunk.length();
+    }
+
+    @Override
+    public long prefix() {
+        return this.chunk.prefix();
+    }
+
+    private void closeChunk() throws IOException {
+        if (this.chunk != null) {
+            this.chunk.close();
+            this.chunkFile.delete();
+            this.chunk = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.closeChunk();
+        this.chunks.close();
+    }
+}
@@ -1,15 +1,11 @@
 package com.github.hpides.exsort;
 
-import com.github.hpides.exsort.LocalFileSorter.KVPair;
-
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import com.github.hpides.exsort.SortMetrics.Phase;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Scanner;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * This class is the core of this exercise. You have to write you code in here. Look at the docs for the sort method
@@ -17,16 +13,6 @@ import java.util.stream.Collectors;
  */
 public final class RemoteFileSorter {
 
-    static class Pair<First, Last> {
-        public First first;
-        public Last last;
-
-        Pair(First first, Last last) {
-            this.first = first;
-            this.last = last;
-        }
-    }
-
     /**
      * This is the core sorting function for remote files. You should write a method that sorts a file on remote nodes,
      * collects the sorted files from the remote nodes and sorts them in the node running this method. The node running
@@ -53,84 +39,119 @@ public final class RemoteFileSorter {
      */
     public static void sortFile(final String inputFileName, final String outputFileName,
             final int chunkSizeInBytes, final List<RemoteFileSorterClient> remoteFileSorters) throws IOException {
-        // TODO: You code here
-        remoteFileSorters.forEach(sorter -> sorter.sortRemoteFile(inputFileName, outputFileName, chunkSizeInBytes));
-        remoteFileSorters.forEach(RemoteFileSorterClient::waitForCommandToComplete);
-
-        remoteFileSorters.forEach(sorter -> sorter.chunkRemoteFile(outputFileName, chunkSizeInBytes));
-        remoteFileSorters.forEach(RemoteFileSorterClient::waitForCommandToComplete);
-
-        var fileInputStreams = remoteFileSorters
-                .stream()
-                .map(sorter -> new Pair<>(sorter, sorter.getNextFileChunk()))
-                .filter(pair -> pair.last.isPresent())
-                .map(pair -> new Pair<>(pair.first, pair.last.get()))
-                .map(pair -> {
-                    try{
-                        return new Pair<>(pair.first, new FileInputStream(pair.last.getAbsoluteFile()));
-                    } catch (FileNotFoundException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).collect(Collectors.toList());
-
-        var fileInputScanners = fileInputStreams.stream().map(pair -> new Pair<>(pair.first, new Scanner(pair.last))).collect(Collectors.toList());
+        sortFile(inputFileName, outputFileName, chunkSizeInBytes, remoteFileSorters, SortOptions.defaults());
+    }
 
-        var inputHeaders = new PriorityQueue<KVPair<String, Pair<RemoteFileSorterClient, Scanner>>>();
-        fileInputScanners.forEach(pair -> {
-            if (pair.last.hasNext()) {
-                inputHeaders.add(new KVPair<>(pair.last.nextLine(), pair));
-            } else {
-                var nextChunk = pair.first.getNextFileChunk();
-                if (nextChunk.isPresent()) {
-                    try {
-                        var inputStream = new FileInputStream(nextChunk.get().getAbsoluteFile());
-                        fileInputStreams.add(new Pair<>(pair.first, inputStream));
-                        var inputScanner = new Scanner(inputStream);
-                        fileInputScanners.add(new Pair<>(pair.first, inputScanner));
-                        if (inputScanner.hasNext()) {
-                            inputHeaders.add(new KVPair<>(inputScanner.nextLine(), new Pair<>(pair.first, inputScanner)));
-                        }
-                    } catch (FileNotFoundException e) {
-                        throw new RuntimeException(e);
-                    }
+    /**
+     * Same as `sortFile()` above, but with explicit options, e.g., on how the sorted data is transferred.
+     */
+    public static void sortFile(final String inputFileName, final String outputFileName,
+            final int chunkSizeInBytes, final List<RemoteFileSorterClient> remoteFileSorters,
+            final SortOptions options) throws IOException {
+        final List<long[]> countersBefore = new ArrayList<>(remoteFileSorters.size());
+        remoteFileSorters.forEach(sorter -> countersBefore.add(sorter.transferCounters()));
+        final long startNanos = System.nanoTime();
+        remoteFileSorters.forEach(sorter -> sorter.setResponseTimeout(options.responseTimeout()));
+        if (options.wireFormat() != SortOptions.RunFormat.TEXT || options.duplicates() != SortOptions.Duplicates.KEEP) {
+            // The remote nodes collapse duplicates before sending, this node collapses the ones between nodes
+            remoteFileSorters.forEach(sorter -> sorter.negotiate(options.wireFormat(), options.duplicates()));
+        }
+        // With a limit, every node only streams its own first records, which is less than any other transfer
+        final SortOptions.RemoteTransfer transfer = options.limit() > 0
+                ? SortOptions.RemoteTransfer.STREAM : options.remoteTransfer();
+        // The merge holds a reader with a direct and a heap buffer per stream and the output buffer
+        final int numStreams = transfer == SortOptions.RemoteTransfer.TREE
+                ? Math.min(options.mergeTreeFanIn(), remoteFileSorters.size()) : remoteFileSorters.size();
+        final int bufferSize = MergePlanner.bufferSize(numStreams, chunkSizeInBytes, 2);
+        final MemoryBudget budget = new MemoryBudget(chunkSizeInBytes);
+        budget.reserve(2L * bufferSize * numStreams + bufferSize);
+        final List<RecordSource> sources = new ArrayList<>(remoteFileSorters.size());
+        switch (transfer) {
+            case CHUNKS: {
+                // All requests are pipelined: every node chunks its output once its sort is done and answers the
+                // chunk requests once the chunks exist, so no round trip waits for the slowest node.
+                // Every node has one chunk in the merge and up to `prefetchDepth` more fetched ahead. Together they
+                // stay within the memory limit of this node, but they are fetched into files, so only the readers of
+                // the merged chunks take up memory.
+                final int depth = options.prefetchDepth();
+                final int remoteChunkSize = (int) Math.max(1,
+                        chunkSizeInBytes / ((long) remoteFileSorters.size() * (depth + 1)));
+                for (final RemoteFileSorterClient sorter : remoteFileSorters) {
+                    sorter.sortRemoteFile(inputFileName, outputFileName, chunkSizeInBytes);
+                    sorter.chunkRemoteFile(outputFileName, remoteChunkSize);
+                    sources.add(new RemoteChunkSource(new ChunkPrefetcher(sorter, depth), bufferSize));
                 }
+                break;
+            }
+            case STREAM: {
+                // Request all streams first, so that the remote nodes sort in parallel
+                final List<CompletableFuture<RecordSource>> streams = new ArrayList<>(remoteFileSorters.size());
+                remoteFileSorters.forEach(sorter -> streams.add(sorter.streamSortedRemoteFileAsync(inputFileName,
+                        chunkSizeInBytes, options.limit(), bufferSize)));
+                streams.forEach(stream -> sources.add(stream.join()));
+                break;
             }
-        });
+            case TREE: {
+                // Only the top of the tree streams to this node, the inner nodes connect to their children
+                final List<String> nodes = new ArrayList<>(remoteFileSorters.size());
+                remoteFileSorters.forEach(sorter -> nodes.add(sorter.address()));
+                MergeTree.requestSubtrees(inputFileName, chunkSizeInBytes, MergeTree.ROOT, options.mergeTreeFanIn(),
+                        nodes, remoteFileSorters::get, bufferSize).forEach(subtree -> sources.add(subtree.join()));
+                break;
+            }
+            case RANGES: {
+                SampleSort.sortFile(inputFileName, outputFileName, chunkSizeInBytes, remoteFileSorters,
+                        options.duplicates());
+                // The ranges are only concatenated, so the whole sort counts as the merge
+                final long bytesReceived = recordNodes(remoteFileSorters, countersBefore, options.metrics());
+                options.metrics().record(Phase.REMOTE_MERGE, startNanos, bytesReceived,
+                        new File(outputFileName).length(), 0);
+                return;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown remote transfer " + transfer);
+        }
 
-        var output = new FileOutputStream(outputFileName);
+        // Chunks are fetched in the background, their waiting time only shows up as idle time of the nodes
+        options.metrics().record(Phase.REMOTE_WAIT, startNanos, 0, 0, 0);
 
-        while (!inputHeaders.isEmpty()) {
-            var smallest = inputHeaders.poll();
-            output.write(smallest.key.getBytes());
-            output.write('\n');
-            if (smallest.value.last.hasNext()) {
-                inputHeaders.add(new KVPair<>(smallest.value.last.nextLine(), smallest.value));
-            } else {
-                var nextChunk = smallest.value.first.getNextFileChunk();
-                if (nextChunk.isPresent()) {
-                    try {
-                        var inputStream = new FileInputStream(nextChunk.get().getAbsoluteFile());
-                        fileInputStreams.add(new Pair<>(smallest.value.first, inputStream));
-                        var inputScanner = new Scanner(inputStream);
-                        fileInputScanners.add(new Pair<>(smallest.value.first, inputScanner));
-                        if (inputScanner.hasNext()) {
-                            inputHeaders.add(new KVPair<>(inputScanner.nextLine(), new Pair<>(smallest.value.first, inputScanner)));
-                        }
-                    } catch (FileNotFoundException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-            }
+        var mergeStartNanos = System.nanoTime();
+        var merger = new LoserTreeMerger(sources);
+        var output = DuplicateFilter.output(LimitedSink.wrap(LineWriter.open(new File(outputFileName), bufferSize),
+                options), options.duplicates());
+
+        // The merge stops after the limit, closing the streams skips the rest of them
+        long numRecords = 0;
+        while (!output.isFull() && merger.next()) {
+            var smallest = merger.current();
+            smallest.writeTo(output);
+            numRecords++;
         }
 
-        fileInputScanners.forEach(pair -> pair.last.close());
-        fileInputStreams.forEach(pair -> {
-            try {
-                pair.last.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        for (RecordSource source : sources) {
+            source.close();
+        }
         output.close();
+        options.metrics().recordPeakReserved(budget.peak());
+        var bytesReceived = recordNodes(remoteFileSorters, countersBefore, options.metrics());
+        options.metrics().record(Phase.REMOTE_MERGE, mergeStartNanos, bytesReceived,
+                new File(outputFileName).length(), numRecords);
+    }
+
+    /**
+     * Adds the transfer from every node since `countersBefore` to the metrics.
+     * @return The bytes received from all nodes.
+     */
+    private static long recordNodes(final List<RemoteFileSorterClient> remoteFileSorters,
+                                    final List<long[]> countersBefore, final SortMetrics metrics) {
+        long bytesReceived = 0;
+        for (int i = 0; i < remoteFileSorters.size(); i++) {
+            final long[] before = countersBefore.get(i);
+            final long[] after = remoteFileSorters.get(i).transferCounters();
+            metrics.addNode(remoteFileSorters.get(i).address(), after[0] - before[0], after[1] - before[1],
+                    after[2] - before[2]);
+            bytesReceived += after[0] - before[0];
+        }
+        return bytesReceived;
     }
 }
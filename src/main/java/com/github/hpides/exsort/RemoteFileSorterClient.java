@@ -1,48 +1,110 @@
 package com.github.hpides.exsort;
 
 import static com.github.hpides.exsort.RemoteFileSorterServer.CHUNK_CMD;
-import static com.github.hpides.exsort.RemoteFileSorterServer.COMMAND_COMPLETE_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.END_SESSION_CMD;
 import static com.github.hpides.exsort.RemoteFileSorterServer.GET_CHUNK_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.NEGOTIATE_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.PARTITION_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.PUT_PARTITION_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.RESPONSE_FAILED;
+import static com.github.hpides.exsort.RemoteFileSorterServer.SAMPLE_CMD;
 import static com.github.hpides.exsort.RemoteFileSorterServer.SHUTDOWN_CMD;
 import static com.github.hpides.exsort.RemoteFileSorterServer.SORT_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.SORT_RANGE_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.SORT_STREAM_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.SORT_TREE_CMD;
+import static com.github.hpides.exsort.RemoteFileSorterServer.readString;
+import static com.github.hpides.exsort.RemoteFileSorterServer.writeString;
+import static com.github.hpides.exsort.RemoteFileSorterServer.writeStrings;
 
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This is the client that runs on the collecting node and connects to one RemoteFileSorterServer.
  * It can be used to
  *   - request to sort a file,
  *   - request to chunk a file,
- *   - request next chunk of previously chunked file.
+ *   - request next chunk of previously chunked file,
+ *   - request to sort a file and stream the sorted records back,
+ *   - run the steps of a distributed sample sort, see `SampleSort`.
  *
- * There is always a 1-to-1 connection between a client and a server.
+ * Every client has its own session on the server, so several clients can connect to the same server. The records
+ * of chunks and streams are sent as text, unless a compressed format was negotiated with `negotiateWireFormat()`.
+ * With `negotiate()`, the remote node also collapses duplicates before sending the records, see
+ * `SortOptions.duplicates()`.
+ *
+ * The client counts the bytes it receives, how long it is busy receiving them, and how long it waits for the remote
+ * node to answer at all, see `transferCounters()`.
  *
  * Remote sorting (`sortRemoteFile()`) and chunking (`chunkRemoteFile()`) requests are asynchronous.
  * That means that you need to call the blocking `waitForCommandToComplete()` after them to know when they are complete.
  *
+ * Every request also has an `...Async()` variant that returns a future of the response. Requests are sent right away
+ * and tagged with an id, and a background thread completes the futures as the responses arrive, in any order. So many
+ * requests can be in flight at once, e.g., to ask all nodes first and only then wait for their answers, or to ask for
+ * the next chunks while the current one is merged.
+ *
  * You do not need to take care of creating these clients, you just need to use them correctly.
  * Read the docs of the individual methods for more details.
  *
  * You should not have to change any code in here.
  */
 public class RemoteFileSorterClient {
-    private static final int RESPONSE_TIMEOUT = 15 * 1000;  // 15 seconds
+    // Per request, a slow request does not affect the others on the connection
+    static final long DEFAULT_RESPONSE_TIMEOUT = 15 * 1000;  // 15 seconds
+    private static final int REQUEST_BUFFER_SIZE = 1 << 16;
 
     private final String remoteHostIp;
     private final int remoteHostPort;
 
+    private final SocketChannel channel;
     private final Socket socket;
     private final DataOutputStream requestStream;
     private final DataInputStream responseStream;
     private final String clientSuffix;
 
-    private boolean isOpen;
+    // Requests that wait for a response, by request id
+    private final Map<Integer, PendingResponse<?>> pendingResponses = new ConcurrentHashMap<>();
+    // Asynchronous commands that `waitForCommandToComplete()` waits for
+    private final List<CompletableFuture<Void>> pendingCommands = new ArrayList<>();
+    private int nextRequestId;
+    private volatile RuntimeException connectionFailure;
+    // Completed when the consumer of a streamed response is done with the connection
+    private volatile CompletableFuture<Void> streamInUse;
+
+    private volatile boolean isOpen;
+    private volatile RunFormat wireFormat = RunFormat.TEXT;
+    private volatile Duplicates duplicates = Duplicates.KEEP;
+    private volatile long responseTimeout = DEFAULT_RESPONSE_TIMEOUT;
+
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder transferNanos = new LongAdder();
+    private final LongAdder idleNanos = new LongAdder();
+    // When the previous response was read completely, only used by the response thread
+    private long lastResponseEnd;
 
     /**
      * Creates a new RemoteFileSorterClient that immediately connects to a RemoteFileSortingServer.
@@ -53,17 +115,80 @@ public class RemoteFileSorterClient {
     public RemoteFileSorterClient(final String remoteHostIp, final int remoteHostPort) {
         this.remoteHostIp = remoteHostIp;
         this.remoteHostPort = remoteHostPort;
-        this.clientSuffix = remoteHostIp.replace(".", "-") + "-" + remoteHostPort;
-
         try {
-            this.socket = new Socket(remoteHostIp, remoteHostPort);
-            this.socket.setSoTimeout(RESPONSE_TIMEOUT);
-            this.requestStream = new DataOutputStream(this.socket.getOutputStream());
+            // A channel-based socket, so that chunks can be transferred directly into files
+            this.channel = SocketChannel.open(new InetSocketAddress(remoteHostIp, remoteHostPort));
+            this.socket = this.channel.socket();
+            // The local port tells apart the sessions of several clients on the same server
+            this.clientSuffix = remoteHostIp.replace(".", "-") + "-" + remoteHostPort + "-"
+                    + this.socket.getLocalPort();
+            this.requestStream = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(),
+                    REQUEST_BUFFER_SIZE));
+            // Not buffered, so that chunks can be read from the channel directly after a response header
             this.responseStream = new DataInputStream(this.socket.getInputStream());
         } catch (final IOException e) {
             throw new RuntimeException("Cannot connect to remote file sorter client!", e);
         }
         this.isOpen = true;
+
+        final Thread responseReader = new Thread(this::receiveResponses, "sorter-client-" + this.clientSuffix);
+        responseReader.setDaemon(true);
+        responseReader.start();
+    }
+
+    /**
+     * Connects to another node by its `host:port` address, see `address()`, and negotiates the wire format and the
+     * handling of duplicates.
+     */
+    static RemoteFileSorterClient connect(final String address, final RunFormat wireFormat,
+                                          final Duplicates duplicates) {
+        final String[] hostPort = address.split(":");
+        final RemoteFileSorterClient client = new RemoteFileSorterClient(hostPort[0], Integer.parseInt(hostPort[1]));
+        // The requests between nodes take as long as the sorts of the subtrees and ranges, the collecting node's
+        // deadline covers them
+        client.setResponseTimeout(0);
+        if (wireFormat != RunFormat.TEXT || duplicates != Duplicates.KEEP) {
+            client.negotiate(wireFormat, duplicates);
+        }
+        return client;
+    }
+
+    /**
+     * Sets how long every following request waits for its response, see `SortOptions.responseTimeout()`. 0 waits
+     * forever.
+     */
+    public void setResponseTimeout(final long timeoutInMillis) {
+        if (timeoutInMillis < 0) {
+            throw new IllegalArgumentException("Response timeout must not be negative, got " + timeoutInMillis);
+        }
+        this.responseTimeout = timeoutInMillis;
+    }
+
+    /**
+     * Asks the RemoteFileSorterServer to encode the records of all following chunks and streams of this session in the
+     * given format, see `SortOptions.wireFormat()`. Should be called before any other command. This call is blocking.
+     * @return The format that the server accepted, `TEXT` if it does not know the requested one.
+     */
+    public RunFormat negotiateWireFormat(final RunFormat requestedFormat) {
+        return this.negotiate(requestedFormat, this.duplicates);
+    }
+
+    /**
+     * Like `negotiateWireFormat()`, but also asks the RemoteFileSorterServer to remove or count duplicates in all
+     * following sorts of this session, see `SortOptions.duplicates()`. With `COUNT`, streams are sent front coded
+     * with the counts next to the records, even if `TEXT` was requested.
+     * @return The format that the server accepted, `TEXT` if it does not know the requested one.
+     */
+    public RunFormat negotiate(final RunFormat requestedFormat, final Duplicates duplicates) {
+        return await(this.send(NEGOTIATE_CMD, "negotiate", request -> {
+            writeString(request, requestedFormat.name());
+            writeString(request, duplicates.name());
+        }, response -> {
+            // Set on the response thread, so that all following responses are decoded in the new format
+            this.wireFormat = RunFormat.valueOf(readString(response));
+            this.duplicates = Duplicates.valueOf(readString(response));
+            return this.wireFormat;
+        }));
     }
 
     /**
@@ -83,33 +208,44 @@ public class RemoteFileSorterClient {
      *                         simplicity. This can be the same value as in the RemoteFileSorter.
      */
     public void sortRemoteFile(final String inputFileName, final String outputFileName, final int chunkSizeInBytes) {
-        assert this.isOpen : "RemoteFileSorterClient was closed!";
-        final String cmd = String.format("%s,%s,%s,%d", SORT_CMD, inputFileName,
-                outputFileName + this.clientSuffix, chunkSizeInBytes);
-        try {
-            this.requestStream.writeUTF(cmd);
-        } catch (final IOException e) {
-            throw new RuntimeException("Cannot send sort command to remote file sorter client!", e);
-        }
+        this.sortRemoteFileAsync(inputFileName, outputFileName, chunkSizeInBytes);
+    }
+
+    /**
+     * Like `sortRemoteFile()`, the returned future completes once the remote sort is done.
+     */
+    public CompletableFuture<Void> sortRemoteFileAsync(final String inputFileName, final String outputFileName,
+                                                       final int chunkSizeInBytes) {
+        return this.sendCommand(SORT_CMD, "sort", request -> {
+            writeString(request, inputFileName);
+            writeString(request, outputFileName + this.clientSuffix);
+            request.writeInt(chunkSizeInBytes);
+        });
     }
 
     /**
      * This requests to split a remote file into smaller file chunks as specified by the `chunkSizeInBytes`.
      * The chunks are located on the remote server and can be accessed sequentially by calling `getNextFileChunk()`.
+     * The remote node chunks the file once the sorts that were requested before are done, so the chunks can be
+     * requested right away.
      * @param fileName The name of the remote file to chunk. This should usually be the outputFileName of the sorting call.
      * @param chunkSizeInBytes Number of bytes that should be present in one chunk file. Remember here that the
      *                         limit can be different from the previous sorting limit, as the RemoteFileSorter
      *                         needs to collect N chunks from N remote nodes and all N chunks need to fit into
      *                         memory on the collecting node.
      */
-    public void chunkRemoteFile(final String fileName, final int chunkSizeInBytes) {
-        assert this.isOpen : "RemoteFileSorterClient was closed!";
-        final String cmd = String.format("%s,%s,%d", CHUNK_CMD, fileName + this.clientSuffix, chunkSizeInBytes);
-        try {
-            this.requestStream.writeUTF(cmd);
-        } catch (final IOException e) {
-            throw new RuntimeException("Cannot send chunk command to remote file sorter client!", e);
-        }
+    public void chunkRemoteFile(final String fileName, final long chunkSizeInBytes) {
+        this.chunkRemoteFileAsync(fileName, chunkSizeInBytes);
+    }
+
+    /**
+     * Like `chunkRemoteFile()`, the returned future completes once the file is chunked.
+     */
+    public CompletableFuture<Void> chunkRemoteFileAsync(final String fileName, final long chunkSizeInBytes) {
+        return this.sendCommand(CHUNK_CMD, "chunk", request -> {
+            writeString(request, fileName + this.clientSuffix);
+            request.writeLong(chunkSizeInBytes);
+        });
     }
 
     /**
@@ -118,51 +254,278 @@ public class RemoteFileSorterClient {
      * chunking call will overwrite the previous one and the old state will be lost. For this exercise, you will most
      * likely only need to call this once and then retrieve the resulting chunks. This method takes care of all
      * networking logic for file transfers. You do not need to deal with the details of that for this exercise.
+     * The chunk is transferred from the connection straight into a file, it is never held on the heap. With a
+     * compressed wire format, it is decoded block by block on the way into the file.
      *
      * @return If there are no chunks left, this will return an empty optional. Otherwise, it will return an optional of
      *         the chunk, now located on the collecting server after the network transfer.
      */
     public Optional<File> getNextFileChunk() {
-        assert this.isOpen : "RemoteFileSorterClient was closed!";
+        return await(this.getNextFileChunkAsync());
+    }
+
+    /**
+     * Like `getNextFileChunk()`. Several chunks can be requested at once, they arrive in the order of the requests.
+     */
+    public CompletableFuture<Optional<File>> getNextFileChunkAsync() {
+        return this.send(GET_CHUNK_CMD, "get chunk", request -> { }, this::receiveFileChunk);
+    }
+
+    private Optional<File> receiveFileChunk(final DataInputStream response) throws IOException {
+        final long numBytesToRead = response.readLong();
+
+        // No more chunks for this file
+        if (numBytesToRead == -1) {
+            return Optional.empty();
+        }
+
+        final File tempChunkFile;
         try {
-            this.requestStream.writeUTF(GET_CHUNK_CMD);
-            final int numBytesToRead = this.responseStream.readInt();
+            tempChunkFile = File.createTempFile("temp-chunk-file-", ".txt");
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot create temp file on server!", e);
+        }
 
-            // No more chunks for this file
-            if (numBytesToRead == -1) {
-                return Optional.empty();
+        if (this.wireFormat != RunFormat.TEXT || this.counted()) {
+            // The chunk follows as an encoded stream, decode it back into a text file
+            try (final RecordSource chunk = RunFiles.reader(new ReceivingChannel(new FramedInputChannel(response)),
+                    this.wireFormat, this.counted(), LocalFileSorter.MERGE_BUFFER_SIZE);
+                 final LineWriter chunkFile = LineWriter.open(tempChunkFile, LocalFileSorter.MERGE_BUFFER_SIZE)) {
+                while (chunk.next()) {
+                    chunk.writeTo(chunkFile);
+                }
             }
+            return Optional.of(tempChunkFile);
+        }
 
-            final File tempChunkFile;
-            try {
-                tempChunkFile = File.createTempFile("temp-chunk-file-", ".txt");
-            } catch (final IOException e) {
-                throw new RuntimeException("Cannot create temp file on server!", e);
+        // The response stream does not buffer, so the chunk data follows directly in the channel
+        final long startNanos = System.nanoTime();
+        try (final FileChannel chunkFile = FileChannel.open(tempChunkFile.toPath(), StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < numBytesToRead) {
+                final long transferred = chunkFile.transferFrom(this.channel, position, numBytesToRead - position);
+                if (transferred == 0) {
+                    throw new EOFException("Connection closed in the middle of a chunk");
+                }
+                position += transferred;
             }
-
-            final byte[] chunkData =  this.responseStream.readNBytes(numBytesToRead);
-            Files.write(tempChunkFile.toPath(), chunkData);
-            return Optional.of(tempChunkFile);
-        } catch (final IOException e) {
-            throw new RuntimeException("Cannot get next chunk from remote file sorter client!", e);
         }
+        this.transferNanos.add(System.nanoTime() - startNanos);
+        this.bytesReceived.add(numBytesToRead);
+        return Optional.of(tempChunkFile);
+    }
+
+    /**
+     * Tells the RemoteFileSorterServer to sort a file and to stream the sorted records back instead of writing them to
+     * an output file and transferring it in chunks. Nothing is written to disk on either side, except for the runs the
+     * remote sort spills. This call blocks until the remote node starts its final merge, use
+     * `streamSortedRemoteFileAsync()` for all clients first to let the remote nodes sort in parallel.
+     *
+     * The stream occupies the connection: it must be read to its end or closed before other responses of this client
+     * arrive.
+     *
+     * @param bufferSize How many bytes of the stream are buffered on this node.
+     */
+    public RecordSource streamSortedRemoteFile(final String inputFileName, final int chunkSizeInBytes,
+                                               final int bufferSize) {
+        return await(this.streamSortedRemoteFileAsync(inputFileName, chunkSizeInBytes, bufferSize));
+    }
+
+    public CompletableFuture<RecordSource> streamSortedRemoteFileAsync(final String inputFileName,
+                                                                       final int chunkSizeInBytes,
+                                                                       final int bufferSize) {
+        return this.streamSortedRemoteFileAsync(inputFileName, chunkSizeInBytes, 0, bufferSize);
+    }
+
+    /**
+     * Like `streamSortedRemoteFile()`, but the remote node only sends the first `limit` records of its sorted file,
+     * see `SortOptions.limit()`. If they fit into its memory, it reads its file once without writing any runs.
+     */
+    public RecordSource streamSortedRemoteFile(final String inputFileName, final int chunkSizeInBytes,
+                                               final long limit, final int bufferSize) {
+        return await(this.streamSortedRemoteFileAsync(inputFileName, chunkSizeInBytes, limit, bufferSize));
+    }
+
+    public CompletableFuture<RecordSource> streamSortedRemoteFileAsync(final String inputFileName,
+                                                                       final int chunkSizeInBytes, final long limit,
+                                                                       final int bufferSize) {
+        return this.send(SORT_STREAM_CMD, "stream", request -> {
+            writeString(request, inputFileName);
+            request.writeInt(chunkSizeInBytes);
+            request.writeLong(limit);
+        }, response -> this.receiveRecords(response, bufferSize));
+    }
+
+    /**
+     * Requests a uniform random sample of the records in a remote file. The remote node reads the whole file for it.
+     * Like the stream of `streamSortedRemoteFile()`, the sample must be read to its end or closed. The sample is in
+     * random order, so it is sent as text in any wire format.
+     */
+    public RecordSource sampleRemoteFile(final String inputFileName, final int sampleSize, final int bufferSize) {
+        return await(this.sampleRemoteFileAsync(inputFileName, sampleSize, bufferSize));
+    }
+
+    public CompletableFuture<RecordSource> sampleRemoteFileAsync(final String inputFileName, final int sampleSize,
+                                                                 final int bufferSize) {
+        return this.send(SAMPLE_CMD, "sample", request -> {
+            writeString(request, inputFileName);
+            request.writeInt(sampleSize);
+        }, response -> this.receiveRecords(response, RunFormat.TEXT, false, bufferSize));
+    }
+
+    /**
+     * Tells the remote node to split its file into key ranges and to send every range to the node that owns it.
+     * This is asynchronous, call `waitForCommandToComplete()` afterwards.
+     *
+     * @param nodeIndex The range that this node owns.
+     * @param nodes The `host:port` addresses of all nodes in range order, see `address()`.
+     * @param splitters The upper bound (inclusive) of every range except the last one.
+     */
+    public void partitionRemoteFile(final String inputFileName, final String jobId, final int nodeIndex,
+                                    final List<String> nodes, final List<byte[]> splitters) {
+        this.partitionRemoteFileAsync(inputFileName, jobId, nodeIndex, nodes, splitters);
+    }
+
+    public CompletableFuture<Void> partitionRemoteFileAsync(final String inputFileName, final String jobId,
+                                                            final int nodeIndex, final List<String> nodes,
+                                                            final List<byte[]> splitters) {
+        return this.sendCommand(PARTITION_CMD, "partition", request -> {
+            writeString(request, inputFileName);
+            writeString(request, jobId);
+            request.writeInt(nodeIndex);
+            writeStrings(request, nodes);
+            try (final RecordSink splitterSink = this.wireWriter(LocalFileSorter.MERGE_BUFFER_SIZE)) {
+                for (final byte[] splitter : splitters) {
+                    splitterSink.write(splitter, 0, splitter.length);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends records of a range to the remote node, which is used between nodes during `partitionRemoteFile()`.
+     * The records have to be written in the returned sink and the sink has to be closed before sending other
+     * commands. Call `waitForCommandToComplete()` afterwards to know that the remote node stored them.
+     * The records are unsorted, so front coding would not share prefixes and they are sent as text in any wire format.
+     */
+    RecordSink putPartition(final String jobId, final int bufferSize) throws IOException {
+        this.sendCommand(PUT_PARTITION_CMD, "put partition", request -> writeString(request, jobId));
+        return RunFiles.writer(new FramedOutputChannel(this.requestStream), RunFormat.TEXT, bufferSize);
+    }
+
+    /**
+     * Tells the remote node to sort the range it received during `partitionRemoteFile()` and to stream it back, like
+     * `streamSortedRemoteFile()`.
+     */
+    public RecordSource streamSortedRange(final String jobId, final int chunkSizeInBytes, final int bufferSize) {
+        return await(this.streamSortedRangeAsync(jobId, chunkSizeInBytes, bufferSize));
+    }
+
+    public CompletableFuture<RecordSource> streamSortedRangeAsync(final String jobId, final int chunkSizeInBytes,
+                                                                  final int bufferSize) {
+        return this.send(SORT_RANGE_CMD, "sort range", request -> {
+            writeString(request, jobId);
+            request.writeInt(chunkSizeInBytes);
+        }, response -> this.receiveRecords(response, bufferSize));
+    }
+
+    /**
+     * Tells the remote node to sort its file, merge it with the sorted subtrees of its children and to stream the
+     * result back, like `streamSortedRemoteFile()`. See `MergeTree` for the layout of the tree.
+     *
+     * @param nodeIndex The position of the remote node in the tree.
+     * @param fanIn The number of children per node.
+     * @param nodes The `host:port` addresses of all nodes in tree order, see `address()`.
+     */
+    public RecordSource streamSortedTree(final String inputFileName, final int chunkSizeInBytes, final int nodeIndex,
+                                         final int fanIn, final List<String> nodes, final int bufferSize) {
+        return await(this.streamSortedTreeAsync(inputFileName, chunkSizeInBytes, nodeIndex, fanIn, nodes,
+                bufferSize));
+    }
+
+    public CompletableFuture<RecordSource> streamSortedTreeAsync(final String inputFileName,
+                                                                 final int chunkSizeInBytes, final int nodeIndex,
+                                                                 final int fanIn, final List<String> nodes,
+                                                                 final int bufferSize) {
+        return this.send(SORT_TREE_CMD, "sort tree", request -> {
+            writeString(request, inputFileName);
+            request.writeInt(chunkSizeInBytes);
+            request.writeInt(nodeIndex);
+            request.writeInt(fanIn);
+            writeStrings(request, nodes);
+        }, response -> this.receiveRecords(response, bufferSize));
+    }
+
+    /**
+     * Hands a streamed response over to its consumer. The connection is not read any further until the consumer read
+     * the stream to its end or closed it.
+     */
+    private RecordSource receiveRecords(final DataInputStream response, final int bufferSize) throws IOException {
+        return this.receiveRecords(response, this.wireFormat, this.counted(), bufferSize);
+    }
+
+    private RecordSource receiveRecords(final DataInputStream response, final RunFormat format, final boolean counted,
+                                        final int bufferSize) throws IOException {
+        final CompletableFuture<Void> streamDone = new CompletableFuture<>();
+        this.streamInUse = streamDone;
+        return RunFiles.reader(new StreamChannel(new ReceivingChannel(new FramedInputChannel(response)), streamDone),
+                format, counted, bufferSize);
+    }
+
+    /**
+     * Streams records to the server in the negotiated wire format.
+     */
+    private RecordSink wireWriter(final int bufferSize) throws IOException {
+        return RunFiles.writer(new FramedOutputChannel(this.requestStream), this.wireFormat, this.counted(),
+                bufferSize);
+    }
+
+    /**
+     * Whether records are sent with their counts, see `negotiate()`.
+     */
+    private boolean counted() {
+        return this.duplicates == Duplicates.COUNT;
+    }
+
+    /**
+     * The transfer from the remote node so far, see `SortMetrics.addNode()`:
+     *   - the bytes of chunks and streams as they arrived on the wire,
+     *   - the nanoseconds spent receiving them, including waiting for the next part of a stream,
+     *   - the nanoseconds in which a request was pending, but its response had not started to arrive yet, i.e., the
+     *     remote node was still working on it.
+     */
+    long[] transferCounters() {
+        return new long[] {this.bytesReceived.sum(), this.transferNanos.sum(), this.idleNanos.sum()};
+    }
+
+    /**
+     * The address of the remote node as `host:port`, under which other nodes can reach it.
+     */
+    public String address() {
+        return this.remoteHostIp + ":" + this.remoteHostPort;
     }
 
     /**
      * This method is used to wait for te remote operation to complete. As sorting and chunking is asynchronous, you
      * need to call this method afterwards to know when it is complete. Unlike sorting and chunking, this call is
-     * blocking! It will return after the remote operation is finished.
+     * blocking! It will return after all asynchronous remote operations that were requested so far are finished and
+     * throws if one of them failed.
      */
     public void waitForCommandToComplete() {
-        assert this.isOpen : "RemoteFileSorterClient was closed!";
-        try {
-            this.requestStream.writeUTF(COMMAND_COMPLETE_CMD);
-
-            // The response is always `true`, no need to check.
-            this.responseStream.readBoolean();
-        } catch (final IOException e) {
-            throw new RuntimeException("Cannot acknowledge completion from remote file sorter client!", e);
+        final CompletableFuture<Void> commands;
+        synchronized (this.pendingCommands) {
+            commands = CompletableFuture.allOf(this.pendingCommands.toArray(new CompletableFuture<?>[0]));
+            this.pendingCommands.clear();
         }
+        await(commands);
+    }
+
+    /**
+     * Ends this client's session without shutting down the RemoteFileSorterServer, which may keep serving other
+     * clients. Chunks that were not fetched yet are deleted on the remote node.
+     */
+    public void disconnect() {
+        this.closeSession(END_SESSION_CMD, "Error while closing socket. Ignoring.");
     }
 
     /**
@@ -170,19 +533,134 @@ public class RemoteFileSorterClient {
      * indefinitely. Unless you write custom test code or executables, you will not need to deal with this method.
      */
     public void close() {
+        this.closeSession(SHUTDOWN_CMD, "Error while closing socket and shutting down. Ignoring.");
+    }
+
+    private void closeSession(final byte command, final String errorMessage) {
         if (!this.isOpen) {
             return;
         }
-        this.isOpen = false;
         try {
-            this.requestStream.writeUTF(SHUTDOWN_CMD);
-            Thread.sleep(1000);
+            synchronized (this.requestStream) {
+                this.requestStream.writeInt(this.nextRequestId++);
+                this.requestStream.writeByte(command);
+                this.requestStream.flush();
+            }
+            this.isOpen = false;
+            if (command == SHUTDOWN_CMD) {
+                Thread.sleep(1000);
+            }
 
+            final CompletableFuture<Void> stream = this.streamInUse;
+            if (stream != null) {
+                stream.complete(null);
+            }
             this.responseStream.close();
             this.requestStream.close();
             this.socket.close();
         } catch (final IOException | InterruptedException e) {
-            System.out.println("Error while closing socket and shutting down. Ignoring.");
+            this.isOpen = false;
+            System.out.println(errorMessage);
+        }
+    }
+
+    /**
+     * Sends a command whose response only tells that it is done, and remembers it for `waitForCommandToComplete()`.
+     */
+    private CompletableFuture<Void> sendCommand(final byte command, final String name, final RequestWriter fields) {
+        final CompletableFuture<Void> done = this.send(command, name, fields, response -> null);
+        synchronized (this.pendingCommands) {
+            this.pendingCommands.add(done);
+        }
+        return done;
+    }
+
+    /**
+     * Sends a request with a new id and returns the future of its response, which the response thread completes.
+     */
+    private <T> CompletableFuture<T> send(final byte command, final String name, final RequestWriter fields,
+                                          final ResponseReader<T> reader) {
+        assert this.isOpen : "RemoteFileSorterClient was closed!";
+        final CompletableFuture<T> response = new CompletableFuture<>();
+        synchronized (this.requestStream) {
+            final int requestId = this.nextRequestId++;
+            this.pendingResponses.put(requestId, new PendingResponse<>(response, reader));
+            try {
+                this.requestStream.writeInt(requestId);
+                this.requestStream.writeByte(command);
+                fields.write(this.requestStream);
+                this.requestStream.flush();
+            } catch (final IOException e) {
+                this.pendingResponses.remove(requestId);
+                throw new RuntimeException("Cannot send " + name + " command to remote file sorter client!", e);
+            }
+            if (this.connectionFailure != null && this.pendingResponses.remove(requestId) != null) {
+                response.completeExceptionally(this.connectionFailure);
+            }
+        }
+        // The request stays pending, so that a late response is still read off the connection, see `PendingResponse`
+        final long timeout = this.responseTimeout;
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, TimeUnit.MILLISECONDS).execute(() ->
+                    response.completeExceptionally(new RuntimeException("No response to " + name + " command from "
+                            + this + " within " + timeout + " ms")));
+        }
+        return response;
+    }
+
+    /**
+     * Runs on a background thread and completes the futures of the requests as their responses arrive.
+     */
+    private void receiveResponses() {
+        try {
+            while (true) {
+                // Blocks as long as no response arrives, the requests time out on their own
+                final int requestId = this.responseStream.readInt();
+                final byte status = this.responseStream.readByte();
+                final PendingResponse<?> pending = this.pendingResponses.remove(requestId);
+                if (pending == null) {
+                    throw new IOException("Response to unknown request " + requestId);
+                }
+                // Responses arrive one after the other, so this node was idle since the later of both
+                this.idleNanos.add(Math.max(0, System.nanoTime() - Math.max(pending.sentNanos, this.lastResponseEnd)));
+                if (status == RESPONSE_FAILED) {
+                    pending.future.completeExceptionally(new RuntimeException("Remote command failed on " + this
+                            + ": " + readString(this.responseStream)));
+                    continue;
+                }
+
+                pending.complete(this.responseStream);
+                final CompletableFuture<Void> stream = this.streamInUse;
+                if (stream != null) {
+                    stream.join();
+                    this.streamInUse = null;
+                }
+                this.lastResponseEnd = System.nanoTime();
+            }
+        } catch (final IOException | RuntimeException e) {
+            this.connectionFailure = this.isOpen
+                    ? new RuntimeException("Lost connection to remote file sorter " + this, e)
+                    : new RuntimeException("RemoteFileSorterClient was closed!");
+            for (final Integer requestId : this.pendingResponses.keySet()) {
+                final PendingResponse<?> pending = this.pendingResponses.remove(requestId);
+                if (pending != null) {
+                    pending.future.completeExceptionally(this.connectionFailure);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a response and throws the failure of the request itself instead of a CompletionException.
+     */
+    private static <T> T await(final CompletableFuture<T> response) {
+        try {
+            return response.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -193,4 +671,123 @@ public class RemoteFileSorterClient {
                 ", remoteHostPort=" + this.remoteHostPort +
                 '}';
     }
+
+    /**
+     * Writes the fields of a request.
+     */
+    private interface RequestWriter {
+        void write(DataOutputStream request) throws IOException;
+    }
+
+    /**
+     * Reads the payload of a successful response.
+     */
+    private interface ResponseReader<T> {
+        T read(DataInputStream response) throws IOException;
+    }
+
+    private static final class PendingResponse<T> {
+        private final CompletableFuture<T> future;
+        private final ResponseReader<T> reader;
+        private final long sentNanos = System.nanoTime();
+
+        private PendingResponse(final CompletableFuture<T> future, final ResponseReader<T> reader) {
+            this.future = future;
+            this.reader = reader;
+        }
+
+        private void complete(final DataInputStream response) throws IOException {
+            final T result;
+            try {
+                result = this.reader.read(response);
+            } catch (final IOException | RuntimeException e) {
+                this.future.completeExceptionally(e);
+                throw e;
+            }
+            if (!this.future.complete(result)) {
+                discard(result);
+            }
+        }
+
+        /**
+         * Drops the response to a request that timed out before. A stream is skipped to its end, so that the next
+         * response can be read, and a received chunk is deleted.
+         */
+        private static void discard(final Object result) throws IOException {
+            if (result instanceof RecordSource) {
+                ((RecordSource) result).close();
+            } else if (result instanceof Optional && ((Optional<?>) result).orElse(null) instanceof File) {
+                ((File) ((Optional<?>) result).get()).delete();
+            }
+        }
+    }
+
+    /**
+     * A streamed response, tells the response thread when the consumer is done with it.
+     */
+    private static final class StreamChannel implements ReadableByteChannel {
+        private final ReadableByteChannel stream;
+        private final CompletableFuture<Void> done;
+
+        private StreamChannel(final ReadableByteChannel stream, final CompletableFuture<Void> done) {
+            this.stream = stream;
+            this.done = done;
+        }
+
+        @Override
+        public int read(final ByteBuffer target) throws IOException {
+            final int bytesRead = this.stream.read(target);
+            if (bytesRead < 0) {
+                this.done.complete(null);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.stream.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.stream.close();
+            } finally {
+                this.done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Records from the connection, counts them for `transferCounters()`. Reads are large blocks, so timing each of
+     * them costs next to nothing.
+     */
+    private final class ReceivingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel stream;
+
+        private ReceivingChannel(final ReadableByteChannel stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read(final ByteBuffer target) throws IOException {
+            final long startNanos = System.nanoTime();
+            final int bytesRead = this.stream.read(target);
+            RemoteFileSorterClient.this.transferNanos.add(System.nanoTime() - startNanos);
+            if (bytesRead > 0) {
+                RemoteFileSorterClient.this.bytesReceived.add(bytesRead);
+            }
+            return bytesRead;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.stream.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.stream.close();
+        }
+    }
 }
@@ -1,152 +1,730 @@
 package com.github.hpides.exsort;
 
+import com.github.hpides.exsort.SortMetrics.Phase;
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This server runs on a "remote" server and receives requests to sort files.
  * It then locally executes the sorting and chunking operations and provides the client with the individual chunks.
  *
- * You should not have to change any code in here.
+ * Every connection is a session with its own thread and its own state, so several collectors can use the same
+ * server at once. Sorting and chunking run on a shared executor with a bounded number of threads, which limits how
+ * many sorts compete for the memory and disks of this node. Within a session, these jobs run in the background and
+ * the session keeps reading commands. Sorts run concurrently, a chunking job and `GET_CHUNK` wait for the jobs that
+ * were requested before them.
+ *
+ * The protocol is binary. A request is an int request id, a command byte and the typed fields of the command, strings
+ * are sent with an int length (see `writeString()`). A response starts with the id of its request and `RESPONSE_OK`
+ * or `RESPONSE_FAILED` with a message. Background jobs are answered as soon as they are done, so responses may arrive
+ * in another order than the requests and a client can send many requests without waiting for each answer. Records are
+ * sent as framed streams behind the request or response header, see the FramedOutputChannel.
+ *
+ * A session starts with text on the wire. `NEGOTIATE` switches the records of all following chunks and streams of the
+ * session to another run format, e.g., front coded and deflated blocks (see `SortOptions.wireFormat()`). It also sets
+ * how the sorts of the session handle duplicates (see `SortOptions.duplicates()`), so that they are collapsed on this
+ * node before sending the records. Sorts into a file (`SORT`) only remove duplicates, as the chunks are plain text.
+ *
+ * A session ends with `END_SESSION` or when the client disconnects. `SHUTDOWN` stops the whole server.
+ *
+ * All sorts of all sessions add up in the metrics of the server, which it registers with JMX as `server-<port>` while
+ * it runs, see `SortMetrics`.
+ *
+ * For a distributed sample sort (see `SampleSort`), nodes also connect to each other: the ranges that other nodes
+ * send with `PUT_PARTITION` are collected per job across sessions, until `SORT_RANGE` sorts them. In a merge tree
+ * (see `MergeTree`), `SORT_TREE` makes a node request the sorted streams of its children and merge them upwards.
  */
 public class RemoteFileSorterServer implements Runnable {
 
-    public static final String SORT_CMD = "SORT";
-    public static final String COMMAND_COMPLETE_CMD = "SORT_COMPLETE";
-    public static final String CHUNK_CMD = "CHUNK";
-    public static final String GET_CHUNK_CMD = "GET_CHUNK";
-    public static final String SHUTDOWN_CMD = "SHUTDOWN";
+    public static final byte NEGOTIATE_CMD = 1;
+    public static final byte SORT_CMD = 2;
+    public static final byte SORT_STREAM_CMD = 3;
+    public static final byte CHUNK_CMD = 4;
+    public static final byte GET_CHUNK_CMD = 5;
+    public static final byte SAMPLE_CMD = 6;
+    public static final byte PARTITION_CMD = 7;
+    public static final byte PUT_PARTITION_CMD = 8;
+    public static final byte SORT_RANGE_CMD = 9;
+    public static final byte SORT_TREE_CMD = 10;
+    public static final byte END_SESSION_CMD = 11;
+    public static final byte SHUTDOWN_CMD = 12;
+
+    public static final byte RESPONSE_OK = 0;
+    public static final byte RESPONSE_FAILED = 1;
+
+    public static final int DEFAULT_MAX_CONCURRENT_SORTS = 2;
+
+    private static final int RESPONSE_BUFFER_SIZE = 1 << 16;
+    // Bounds of the strings in a message, file names, node addresses and errors stay far below them
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+    private static final int MAX_STRINGS = 1 << 16;
 
     private final int port;
-    private List<File> chunkFiles;
-    private int currentChunkFile;
+    private final int maxConcurrentSorts;
+
+    private ServerSocketChannel serverChannel;
+    private ExecutorService sessionExecutor;
+    private ExecutorService sortExecutor;
+    private volatile boolean isShutDown;
+
+    // Files with the records of this node's range per sample sort job, received from all nodes
+    private final Map<String, List<File>> partitions = new ConcurrentHashMap<>();
+    private final SortMetrics metrics = new SortMetrics();
 
     public RemoteFileSorterServer(final int port) {
+        this(port, DEFAULT_MAX_CONCURRENT_SORTS);
+    }
+
+    /**
+     * @param maxConcurrentSorts Number of sorting and chunking jobs that run at the same time over all sessions.
+     *                           Further jobs wait for a free thread.
+     */
+    public RemoteFileSorterServer(final int port, final int maxConcurrentSorts) {
+        if (maxConcurrentSorts < 1) {
+            throw new IllegalArgumentException("Need at least one concurrent sort, got " + maxConcurrentSorts);
+        }
         this.port = port;
+        this.maxConcurrentSorts = maxConcurrentSorts;
+    }
 
-        this.chunkFiles = new ArrayList<>();
-        this.currentChunkFile = 0;
+    public SortMetrics metrics() {
+        return this.metrics;
     }
 
-    private void receiveCommands(final DataOutputStream responseSender, final DataInput commandReceiver)
-            throws IOException {
-        while (true) {
-            final String cmd;
-            try {
-                cmd = commandReceiver.readUTF();
-            } catch (final IOException e) {
-                throw new RuntimeException("Error receiving command from remote file sorter!", e);
+    @Override
+    public void run() {
+        this.metrics.register("server-" + this.port);
+        this.sessionExecutor = Executors.newCachedThreadPool(daemonThreads("sorter-session"));
+        this.sortExecutor = Executors.newFixedThreadPool(this.maxConcurrentSorts, daemonThreads("sorter-job"));
+        try (final ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            serverChannel.bind(new InetSocketAddress(this.port));
+
+            // Run until shutdown command
+            while (!this.isShutDown) {
+                final SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (final IOException e) {
+                    if (this.isShutDown) {
+                        break;
+                    }
+                    throw e;
+                }
+                this.sessionExecutor.execute(new Session(channel));
             }
+        } catch (final IOException e) {
+            throw new RuntimeException("Cannot open socket on remote file sorter client!", e);
+        } finally {
+            this.sessionExecutor.shutdownNow();
+            this.sortExecutor.shutdownNow();
+            this.metrics.unregister();
+        }
+    }
 
-            final String[] cmdParts = cmd.split(",");
-            if (cmdParts.length < 1) {
-                throw new RuntimeException("Error receiving command from remote file sorter!");
+    private void shutdown() {
+        this.isShutDown = true;
+        try {
+            this.serverChannel.close();
+        } catch (final IOException e) {
+            System.out.println("Error while closing server socket. Ignoring.");
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The connection to one client and the state of its requests.
+     */
+    private final class Session implements Runnable {
+        private final SocketChannel channel;
+        private final List<CompletableFuture<Void>> pendingJobs = new ArrayList<>();
+        private List<File> chunkFiles = new ArrayList<>();
+        private int currentChunkFile = 0;
+        private RunFormat wireFormat = RunFormat.TEXT;
+        private Duplicates duplicates = Duplicates.KEEP;
+        private DataOutputStream responseSender;
+
+        private Session(final SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try (final SocketChannel channel = this.channel) {
+                // Responses are flushed as a whole, chunks are written to the channel directly after a flush
+                this.responseSender = new DataOutputStream(new BufferedOutputStream(
+                        channel.socket().getOutputStream(), RESPONSE_BUFFER_SIZE));
+                final DataInputStream commandReceiver = new DataInputStream(new BufferedInputStream(
+                        channel.socket().getInputStream(), RESPONSE_BUFFER_SIZE));
+                this.receiveCommands(commandReceiver);
+            } catch (final IOException e) {
+                System.out.println("Error in session with remote file sorter: " + e);
+            } finally {
+                this.awaitPendingJobs();
+                this.deleteChunkFiles();
             }
+        }
 
-            final String operation = cmdParts[0];
-            switch (operation) {
-                case SORT_CMD: {
-                    assert cmdParts.length == 4 : SORT_CMD + " requires 3 args, got " + (cmdParts.length - 1);
-                    final String inputFileName = cmdParts[1];
-                    final String outputFileName = cmdParts[2];
-                    final int chunkSizeInBytes = Integer.parseInt(cmdParts[3]);
-                    this.sortFile(inputFileName, outputFileName, chunkSizeInBytes);
-                    break;
+        private void receiveCommands(final DataInputStream commandReceiver) throws IOException {
+            while (true) {
+                final int requestId;
+                try {
+                    requestId = commandReceiver.readInt();
+                } catch (final EOFException e) {
+                    // Client disconnected without ending the session
+                    return;
                 }
-                case COMMAND_COMPLETE_CMD: {
-                    this.ackSortComplete(responseSender);
-                    break;
+                final byte command = commandReceiver.readByte();
+
+                switch (command) {
+                    case NEGOTIATE_CMD: {
+                        this.wireFormat = acceptedWireFormat(readString(commandReceiver));
+                        this.duplicates = Duplicates.valueOf(readString(commandReceiver));
+                        this.respond(requestId, response -> {
+                            writeString(response, this.wireFormat.name());
+                            writeString(response, this.duplicates.name());
+                        });
+                        break;
+                    }
+                    case SORT_CMD: {
+                        final String inputFileName = readString(commandReceiver);
+                        final String outputFileName = readString(commandReceiver);
+                        final int chunkSizeInBytes = commandReceiver.readInt();
+                        // Counts cannot be chunked as text, the collector counts the remaining copies instead
+                        final SortOptions options = SortOptions.defaults().metrics(RemoteFileSorterServer.this.metrics)
+                                .duplicates(this.duplicates == Duplicates.UNIQUE ? Duplicates.UNIQUE : Duplicates.KEEP);
+                        this.startJob(requestId, CompletableFuture.runAsync(
+                                () -> sortFile(inputFileName, outputFileName, chunkSizeInBytes, options),
+                                RemoteFileSorterServer.this.sortExecutor));
+                        break;
+                    }
+                    case SORT_STREAM_CMD: {
+                        final String inputFileName = readString(commandReceiver);
+                        final int chunkSizeInBytes = commandReceiver.readInt();
+                        final long limit = commandReceiver.readLong();
+                        // The stream occupies the connection, so the session waits for it. If it breaks off, the
+                        // client can only notice by the connection being closed.
+                        final SortOptions options = this.sortOptions().limit(limit);
+                        final CompletableFuture<List<File>> sortedRuns = CompletableFuture.supplyAsync(
+                                () -> createSortedRuns(inputFileName, chunkSizeInBytes, options),
+                                RemoteFileSorterServer.this.sortExecutor);
+                        // The final merge is paced by the client, so it must not block one of the sort threads
+                        this.respondWithRecords(requestId, sortedRuns, (runs, output) ->
+                                streamSortedRuns(runs, chunkSizeInBytes, output, options));
+                        break;
+                    }
+                    case CHUNK_CMD: {
+                        final String inputFileName = readString(commandReceiver);
+                        final long chunkSizeInBytes = commandReceiver.readLong();
+                        // Chunk the output of sorts that were requested before
+                        final CompletableFuture<Void> previousJobs = this.allPendingJobs();
+                        this.startJob(requestId, previousJobs.thenRunAsync(
+                                () -> this.chunkFile(inputFileName, chunkSizeInBytes),
+                                RemoteFileSorterServer.this.sortExecutor));
+                        break;
+                    }
+                    case GET_CHUNK_CMD: {
+                        if (!this.awaitPendingJobs()) {
+                            this.respondFailed(requestId, "Cannot send chunk, a previous command failed");
+                            break;
+                        }
+                        this.sendFileChunk(requestId);
+                        break;
+                    }
+                    case SAMPLE_CMD: {
+                        final String inputFileName = readString(commandReceiver);
+                        final int sampleSize = commandReceiver.readInt();
+                        final CompletableFuture<List<byte[]>> sample = CompletableFuture.supplyAsync(
+                                () -> sample(inputFileName, sampleSize), RemoteFileSorterServer.this.sortExecutor);
+                        // The sample is in random order, so front coding would not share prefixes
+                        this.respondWithRecords(requestId, sample, false, (records, output) -> {
+                            for (final byte[] record : records) {
+                                output.write(record, 0, record.length);
+                            }
+                            output.close();
+                        });
+                        break;
+                    }
+                    case PARTITION_CMD: {
+                        final String inputFileName = readString(commandReceiver);
+                        final String jobId = readString(commandReceiver);
+                        final int nodeIndex = commandReceiver.readInt();
+                        final List<String> nodes = readStrings(commandReceiver);
+                        final List<byte[]> splitters = new ArrayList<>();
+                        try (final RecordSource splitterSource = this.wireReader(commandReceiver)) {
+                            while (splitterSource.next()) {
+                                splitters.add(SampleSort.copyOf(splitterSource));
+                            }
+                        }
+                        this.startJob(requestId, CompletableFuture.runAsync(() -> addPartition(jobId,
+                                partition(inputFileName, jobId, nodeIndex, nodes, splitters)),
+                                RemoteFileSorterServer.this.sortExecutor));
+                        break;
+                    }
+                    case PUT_PARTITION_CMD: {
+                        final String jobId = readString(commandReceiver);
+                        addPartition(jobId, receivePartition(commandReceiver));
+                        this.respond(requestId, response -> { });
+                        break;
+                    }
+                    case SORT_RANGE_CMD: {
+                        final String jobId = readString(commandReceiver);
+                        final int chunkSizeInBytes = commandReceiver.readInt();
+                        final List<File> rangeFiles = RemoteFileSorterServer.this.partitions.remove(jobId);
+                        final SortOptions options = this.sortOptions();
+                        final CompletableFuture<List<File>> sortedRuns = CompletableFuture.supplyAsync(
+                                () -> createSortedRuns(rangeFiles, chunkSizeInBytes, options),
+                                RemoteFileSorterServer.this.sortExecutor);
+                        this.respondWithRecords(requestId, sortedRuns, (runs, output) ->
+                                streamSortedRuns(runs, chunkSizeInBytes, output, options));
+                        break;
+                    }
+                    case SORT_TREE_CMD: {
+                        final String inputFileName = readString(commandReceiver);
+                        final int chunkSizeInBytes = commandReceiver.readInt();
+                        final int nodeIndex = commandReceiver.readInt();
+                        final int fanIn = commandReceiver.readInt();
+                        final List<String> nodes = readStrings(commandReceiver);
+                        this.sortTree(requestId, inputFileName, chunkSizeInBytes, nodeIndex, fanIn, nodes);
+                        break;
+                    }
+                    case END_SESSION_CMD: {
+                        return;
+                    }
+                    case SHUTDOWN_CMD: {
+                        RemoteFileSorterServer.this.shutdown();
+                        return;
+                    }
+                    default: {
+                        throw new RuntimeException("Unknown command from remote file sorter! " + command);
+                    }
                 }
-                case CHUNK_CMD: {
-                    assert cmdParts.length == 3 : CHUNK_CMD + " requires 2 args, got " + (cmdParts.length - 1);
-                    final String inputFileName = cmdParts[1];
-                    final int chunkSizeInBytes = Integer.parseInt(cmdParts[2]);
-                    this.chunkFile(inputFileName, chunkSizeInBytes);
-                    break;
+            }
+        }
+
+        /**
+         * Sorts the subtree of this node in a merge tree, see `MergeTree`: The children sort their subtrees while this
+         * node sorts its own file, then the own runs and the streams of the children are merged into the response.
+         * Half of the memory buffers the streams of the children, the other half the merge of the own runs.
+         */
+        private void sortTree(final int requestId, final String inputFileName, final int chunkSizeInBytes,
+                              final int nodeIndex, final int fanIn, final List<String> nodes) throws IOException {
+            final int numChildren = MergeTree.children(nodeIndex, fanIn, nodes.size()).size();
+            final long childMemory = numChildren == 0 ? 0 : chunkSizeInBytes / 2;
+            final List<RemoteFileSorterClient> children = new ArrayList<>(numChildren);
+            final SortOptions options = this.sortOptions();
+            try {
+                final List<CompletableFuture<RecordSource>> subtrees = MergeTree.requestSubtrees(inputFileName,
+                        chunkSizeInBytes, nodeIndex, fanIn, nodes, child -> {
+                            final RemoteFileSorterClient client = RemoteFileSorterClient.connect(nodes.get(child),
+                                    this.wireFormat, this.duplicates);
+                            children.add(client);
+                            return client;
+                        }, MergePlanner.bufferSize(numChildren, childMemory, 2));
+                final CompletableFuture<List<File>> sortedRuns = CompletableFuture.supplyAsync(
+                        () -> createSortedRuns(inputFileName, chunkSizeInBytes, options),
+                        RemoteFileSorterServer.this.sortExecutor);
+                // Answer only once the children answered, so that their failures are reported, too
+                final CompletableFuture<List<File>> allSorted = sortedRuns.thenCombine(
+                        CompletableFuture.allOf(subtrees.toArray(new CompletableFuture<?>[0])), (runs, done) -> runs);
+                this.respondWithRecords(requestId, allSorted, (runs, output) -> {
+                    final List<RecordSource> streams = new ArrayList<>(numChildren);
+                    subtrees.forEach(subtree -> streams.add(subtree.join()));
+                    MergePlanner.mergeAll(runs, streams, output, chunkSizeInBytes - childMemory, options);
+                });
+            } finally {
+                for (final RemoteFileSorterClient child : children) {
+                    final long[] counters = child.transferCounters();
+                    options.metrics().addNode(child.address(), counters[0], counters[1], counters[2]);
+                    child.disconnect();
                 }
-                case GET_CHUNK_CMD: {
-                    this.getAndSendFileChunk(responseSender);
-                    break;
+            }
+        }
+
+        /**
+         * Runs a job in the background and answers the request once it is done, possibly before the responses to
+         * earlier requests. The answer is sent from a session thread, so that sort threads never wait for the
+         * connection.
+         */
+        private void startJob(final int requestId, final CompletableFuture<Void> job) {
+            this.pendingJobs.add(job);
+            job.whenCompleteAsync((result, failure) -> {
+                try {
+                    if (failure == null) {
+                        this.respond(requestId, response -> { });
+                    } else {
+                        this.respondFailed(requestId, String.valueOf(unwrap(failure)));
+                    }
+                } catch (final IOException e) {
+                    System.out.println("Cannot answer remote file sorter: " + e);
                 }
-                case SHUTDOWN_CMD: {
+            }, RemoteFileSorterServer.this.sessionExecutor);
+        }
+
+        /**
+         * Waits for a job and streams its result as records in the negotiated wire format, or answers that it failed.
+         * The stream must close the sink.
+         */
+        private <T> void respondWithRecords(final int requestId, final CompletableFuture<T> job,
+                                            final RecordStream<T> stream) throws IOException {
+            this.respondWithRecords(requestId, job, true, stream);
+        }
+
+        /**
+         * @param sorted Whether the records are streamed in sorted order. Other records are always sent as text.
+         */
+        private <T> void respondWithRecords(final int requestId, final CompletableFuture<T> job, final boolean sorted,
+                                            final RecordStream<T> stream) throws IOException {
+            try {
+                job.join();
+            } catch (final CompletionException e) {
+                System.out.println("Remote sort job failed: " + e.getCause());
+                this.respondFailed(requestId, String.valueOf(e.getCause()));
+                return;
+            }
+            this.respond(requestId, response -> stream.write(job.join(),
+                    sorted ? this.wireWriter(response) : this.textWriter(response)));
+        }
+
+        /**
+         * Sends a successful response. Responses are written as a whole, so that responses from several threads do
+         * not interleave.
+         */
+        private void respond(final int requestId, final ResponseWriter payload) throws IOException {
+            synchronized (this.responseSender) {
+                this.responseSender.writeInt(requestId);
+                this.responseSender.writeByte(RESPONSE_OK);
+                payload.write(this.responseSender);
+                this.responseSender.flush();
+            }
+        }
+
+        private void respondFailed(final int requestId, final String message) throws IOException {
+            synchronized (this.responseSender) {
+                this.responseSender.writeInt(requestId);
+                this.responseSender.writeByte(RESPONSE_FAILED);
+                writeString(this.responseSender, message);
+                this.responseSender.flush();
+            }
+        }
+
+        /**
+         * Streams records to the client in the negotiated wire format.
+         */
+        private RecordSink wireWriter(final DataOutputStream responseSender) throws IOException {
+            return RunFiles.writer(new FramedOutputChannel(responseSender), this.wireFormat, this.counted(),
+                    LocalFileSorter.MERGE_BUFFER_SIZE);
+        }
+
+        /**
+         * Streams unsorted records to the client, see `SortOptions.wireFormat()`.
+         */
+        private RecordSink textWriter(final DataOutputStream responseSender) throws IOException {
+            return RunFiles.writer(new FramedOutputChannel(responseSender), RunFormat.TEXT,
+                    LocalFileSorter.MERGE_BUFFER_SIZE);
+        }
+
+        /**
+         * Reads records that the client streams in the negotiated wire format.
+         */
+        private RecordSource wireReader(final DataInputStream commandReceiver) throws IOException {
+            return RunFiles.reader(new FramedInputChannel(commandReceiver), this.wireFormat, this.counted(),
+                    LocalFileSorter.MERGE_BUFFER_SIZE);
+        }
+
+        /**
+         * Whether records are sent with their counts, see `SortOptions.duplicates()`.
+         */
+        private boolean counted() {
+            return this.duplicates == Duplicates.COUNT;
+        }
+
+        /**
+         * The options for sorts of this session whose records are streamed to the client.
+         */
+        private SortOptions sortOptions() {
+            return SortOptions.defaults().metrics(RemoteFileSorterServer.this.metrics).duplicates(this.duplicates);
+        }
+
+        private CompletableFuture<Void> allPendingJobs() {
+            return CompletableFuture.allOf(this.pendingJobs.toArray(new CompletableFuture<?>[0]));
+        }
+
+        /**
+         * Waits for all background jobs of this session.
+         * @return false if one of them failed.
+         */
+        private boolean awaitPendingJobs() {
+            final CompletableFuture<Void> jobs = this.allPendingJobs();
+            this.pendingJobs.clear();
+            try {
+                jobs.join();
+                return true;
+            } catch (final CompletionException e) {
+                System.out.println("Remote sort job failed: " + e.getCause());
+                return false;
+            }
+        }
+
+        private void chunkFile(final String fileName, final long chunkSizeInBytes) {
+            this.deleteChunkFiles();
+            try {
+                this.chunkFiles = LocalFileSorter.chunkFile(fileName, chunkSizeInBytes,
+                        RemoteFileSorterServer.this.metrics);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.currentChunkFile = 0;
+        }
+
+        private Optional<File> getFileChunk() {
+            if (this.currentChunkFile >= this.chunkFiles.size()) {
+                return Optional.empty();
+            }
+
+            return Optional.of(this.chunkFiles.get(this.currentChunkFile++));
+        }
+
+        /**
+         * Answers with the 64-bit length of the next chunk, or -1 if there is none, followed by the chunk. The chunk
+         * is sent with `transferTo()`, so the operating system copies it from the page cache to the socket. With
+         * another wire format than text, the records of the chunk are encoded as a stream instead.
+         */
+        private void sendFileChunk(final int requestId) throws IOException {
+            final Optional<File> chunkFileOpt = this.getFileChunk();
+            if (chunkFileOpt.isEmpty()) {
+                this.respond(requestId, response -> response.writeLong(-1));
+                return;
+            }
+
+            final File chunkFile = chunkFileOpt.get();
+            final long startNanos = System.nanoTime();
+            this.respond(requestId, response -> {
+                if (this.wireFormat != RunFormat.TEXT || this.counted()) {
+                    // The encoded length is not known up front, so the records follow as a stream
+                    response.writeLong(chunkFile.length());
+                    try (final LineReader chunk = LineReader.open(chunkFile.getPath());
+                         final RecordSink output = this.wireWriter(response)) {
+                        while (chunk.next()) {
+                            chunk.writeTo(output);
+                        }
+                    }
                     return;
                 }
-                default: {
-                    throw new RuntimeException("Unknown command from remote file sorter! " + operation);
+                try (final FileChannel chunk = FileChannel.open(chunkFile.toPath(), StandardOpenOption.READ)) {
+                    final long fileLength = chunk.size();
+                    response.writeLong(fileLength);
+                    response.flush();
+                    long position = 0;
+                    while (position < fileLength) {
+                        position += chunk.transferTo(position, fileLength - position, this.channel);
+                    }
                 }
+            });
+            // An encoded chunk is sent as a stream of unknown length, so only the text of the chunk is counted
+            RemoteFileSorterServer.this.metrics.record(Phase.CHUNK_SEND, startNanos, chunkFile.length(), 0, 0);
+            chunkFile.delete();
+        }
+
+        private void deleteChunkFiles() {
+            for (int i = this.currentChunkFile; i < this.chunkFiles.size(); i++) {
+                this.chunkFiles.get(i).delete();
             }
+            this.chunkFiles = new ArrayList<>();
+            this.currentChunkFile = 0;
         }
     }
 
-    @Override
-    public void run() {
-        try (final ServerSocket serverSocket = new ServerSocket()) {
-            serverSocket.bind(new InetSocketAddress(this.port));
-            final Socket socket = serverSocket.accept();
-            final DataOutputStream responseSender = new DataOutputStream(socket.getOutputStream());
-            final DataInputStream commandReceiver = new DataInputStream(socket.getInputStream());
+    /**
+     * Writes strings with an int length, so that they are not limited to 64 KiB like `writeUTF()`.
+     */
+    static void writeString(final DataOutput output, final String string) throws IOException {
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
 
-            // Run until shutdown command
-            this.receiveCommands(responseSender, commandReceiver);
+    /**
+     * Reads a string written by `writeString()`. The length is checked before anything is allocated, so that a broken
+     * message cannot exhaust the memory.
+     */
+    static String readString(final DataInput input) throws IOException {
+        final byte[] bytes = new byte[checkedLength(input.readInt(), MAX_STRING_LENGTH, "string")];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
 
-            responseSender.close();
-            commandReceiver.close();
-        } catch (final IOException e) {
-            throw new RuntimeException("Cannot open socket on remote file sorter client!", e);
+    /**
+     * Writes a list of strings with an int count.
+     */
+    static void writeStrings(final DataOutput output, final List<String> strings) throws IOException {
+        output.writeInt(strings.size());
+        for (final String string : strings) {
+            writeString(output, string);
         }
     }
 
-    private void sortFile(final String inputFileName, final String outputFileName, final int chunkSizeInBytes)
-            throws IOException {
-        LocalFileSorter.sortFile(inputFileName, outputFileName, chunkSizeInBytes);
+    static List<String> readStrings(final DataInput input) throws IOException {
+        final int numStrings = checkedLength(input.readInt(), MAX_STRINGS, "string list");
+        final List<String> strings = new ArrayList<>(numStrings);
+        for (int i = 0; i < numStrings; i++) {
+            strings.add(readString(input));
+        }
+        return strings;
     }
 
-    private void chunkFile(final String fileName, final int chunkSizeInBytes) throws IOException {
-        this.chunkFiles = LocalFileSorter.chunkFile(fileName, chunkSizeInBytes);
-        this.currentChunkFile = 0;
+    private static int checkedLength(final int length, final int maxLength, final String what) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid " + what + " length " + length);
+        }
+        return length;
     }
 
-    private Optional<File> getFileChunk() {
-        if (this.currentChunkFile >= this.chunkFiles.size()) {
-            return Optional.empty();
+    private static Throwable unwrap(final Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private static void sortFile(final String inputFileName, final String outputFileName,
+                                 final int chunkSizeInBytes, final SortOptions options) {
+        try {
+            LocalFileSorter.sortFile(inputFileName, outputFileName, chunkSizeInBytes, options);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
-        return Optional.of(this.chunkFiles.get(this.currentChunkFile++));
+    private void addPartition(final String jobId, final File partition) {
+        this.partitions.computeIfAbsent(jobId, id -> Collections.synchronizedList(new ArrayList<>())).add(partition);
     }
 
-    private void getAndSendFileChunk(final DataOutputStream responseSender) {
-        final Optional<File> chunkFileOpt = this.getFileChunk();
+    /**
+     * Copies a range that another node sends during its partitioning into a local file. Ranges are unsorted, so they
+     * are always sent as text and copied as they are, see `RemoteFileSorterClient.putPartition()`.
+     */
+    private static File receivePartition(final DataInputStream commandReceiver) throws IOException {
+        final File partition = File.createTempFile("range", ".tmp");
+        try (final FramedInputChannel input = new FramedInputChannel(commandReceiver);
+             final FileChannel output = FileChannel.open(partition.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(LocalFileSorter.MERGE_BUFFER_SIZE);
+            while (input.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+        return partition;
+    }
 
+    private static List<byte[]> sample(final String inputFileName, final int sampleSize) {
         try {
-            if (chunkFileOpt.isEmpty()) {
-                responseSender.writeInt(-1);
-                return;
-            }
+            return SampleSort.sample(inputFileName, sampleSize);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-            final File chunkFile = chunkFileOpt.get();
-            final int fileLength = (int) chunkFile.length();
-            responseSender.writeInt(fileLength);
-            Files.copy(chunkFile.toPath(), responseSender);
+    private static File partition(final String inputFileName, final String jobId, final int nodeIndex,
+                                  final List<String> nodes, final List<byte[]> splitters) {
+        try {
+            return SampleSort.partition(inputFileName, jobId, nodeIndex, nodes, splitters);
         } catch (final IOException e) {
-            throw new RuntimeException("Error sending file chunk to remote file sorter!", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sorts every received part of a range into runs, so that they can be merged together.
+     */
+    private static List<File> createSortedRuns(final List<File> rangeFiles, final int chunkSizeInBytes,
+                                               final SortOptions options) {
+        final List<File> sortedRuns = new ArrayList<>();
+        if (rangeFiles == null) {
+            return sortedRuns;
+        }
+        for (final File rangeFile : rangeFiles) {
+            sortedRuns.addAll(createSortedRuns(rangeFile.getPath(), chunkSizeInBytes, options));
+            rangeFile.delete();
         }
+        return sortedRuns;
     }
 
-    private void ackSortComplete(final DataOutputStream responseSender) {
+    private static List<File> createSortedRuns(final String inputFileName, final int chunkSizeInBytes,
+                                               final SortOptions options) {
         try {
-            responseSender.writeBoolean(true);
+            return LocalFileSorter.createSortedRuns(inputFileName, chunkSizeInBytes, options);
         } catch (final IOException e) {
-            throw new RuntimeException("Error sending sort completion to remote file sorter!", e);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Formats that the client may request with `NEGOTIATE`, unknown ones fall back to text.
+     */
+    private static RunFormat acceptedWireFormat(final String requestedFormat) {
+        try {
+            return RunFormat.valueOf(requestedFormat);
+        } catch (final IllegalArgumentException e) {
+            return RunFormat.TEXT;
         }
     }
+
+    /**
+     * Writes the final merge of the sorted runs directly to the connection instead of an output file, see the
+     * FramedOutputChannel for the framing.
+     */
+    private static void streamSortedRuns(final List<File> sortedRuns, final int chunkSizeInBytes,
+                                         final RecordSink output, final SortOptions options) throws IOException {
+        MergePlanner.mergeAll(sortedRuns, output, chunkSizeInBytes, options);
+    }
+
+    /**
+     * The payload of a successful response.
+     */
+    private interface ResponseWriter {
+        void write(DataOutputStream response) throws IOException;
+    }
+
+    /**
+     * Writes the result of a job as records into the sink and closes it.
+     */
+    private interface RecordStream<T> {
+        void write(T result, RecordSink output) throws IOException;
+    }
 }
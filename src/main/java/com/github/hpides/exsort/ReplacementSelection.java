@@ -0,0 +1,179 @@
+package com.github.hpides.exsort;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Creates sorted runs with replacement selection. The memory is filled with a min-heap of records. The smallest
+ * record is written to the current run and replaced by the next input record. If the new record is smaller than the
+ * last written one, it cannot be part of the current run anymore and is tagged for the next run instead.
+ *
+ * On random input, the runs are about twice as long as the memory. Already sorted or nearly sorted input (e.g.,
+ * sorted data with some appended records) results in a single run, so there is nothing left to merge.
+ */
+final class ReplacementSelection {
+    private static final int INITIAL_HEAP_SIZE = 1 << 10;
+    // A reference, a prefix, and a run number per heap slot
+    private static final int SLOT_SIZE = 16;
+
+    private final MemoryBudget budget;
+    private final SortOptions options;
+    private final int bufferSize;
+
+    // Min-heap ordered by (run, record), the key prefixes of the records are kept next to them
+    private byte[][] records = new byte[INITIAL_HEAP_SIZE][];
+    private long[] prefixes = new long[INITIAL_HEAP_SIZE];
+    private int[] runs = new int[INITIAL_HEAP_SIZE];
+    private int size;
+
+    private ReplacementSelection(final MemoryBudget budget, final SortOptions options) {
+        this.budget = budget;
+        this.options = options;
+        this.bufferSize = LocalFileSorter.reserveIoBuffers(budget, options, 1);
+        budget.reserve((long) INITIAL_HEAP_SIZE * SLOT_SIZE);
+    }
+
+    /**
+     * Reads the input file once and writes it as sorted runs with replacement selection.
+     * The heap, its records, and the I/O buffers are reserved in the budget, the heap fills up until it is used up.
+     */
+    static List<File> createSortedRuns(final String inputFileName, final MemoryBudget budget,
+                                       final SortOptions options) throws IOException {
+        return new ReplacementSelection(budget, options).createRuns(inputFileName);
+    }
+
+    private List<File> createRuns(final String inputFileName) throws IOException {
+        final long startNanos = System.nanoTime();
+        final List<File> sortedRuns = new ArrayList<>();
+        final long recordsRead;
+        RecordSink output = null;
+        int currentRun = 0;
+        byte[] lastWritten = null;
+
+        try (final LineReader input = LineReader.open(new File(inputFileName), this.bufferSize)) {
+            boolean hasInput = input.next();
+            while (hasInput || this.size > 0) {
+                // Make room for the next input record, or drain the heap if the input is exhausted
+                while (this.size > 0 && (!hasInput || this.isFull(input))) {
+                    final int run = this.runs[0];
+                    final byte[] smallest = this.poll();
+                    if (output == null || run != currentRun) {
+                        if (output != null) {
+                            output.close();
+                        }
+                        final File runFile = File.createTempFile("sorted", ".tmp");
+                        sortedRuns.add(runFile);
+                        output = RunFiles.create(runFile, this.options, this.bufferSize);
+                        currentRun = run;
+                    }
+                    output.write(smallest, 0, smallest.length);
+                    lastWritten = smallest;
+                }
+                if (!hasInput) {
+                    break;
+                }
+
+                // Records smaller than the last written one have to wait for the next run
+                final boolean fitsIntoCurrentRun = lastWritten == null || Records.compare(input.array(),
+                        input.offset(), input.length(), lastWritten, 0, lastWritten.length) >= 0;
+                this.add(Arrays.copyOfRange(input.array(), input.offset(), input.offset() + input.length()),
+                        input.prefix(), fitsIntoCurrentRun ? currentRun : currentRun + 1);
+                hasInput = input.next();
+            }
+            recordsRead = input.recordsRead();
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+        }
+        return LocalFileSorter.recordRunGeneration(this.options, startNanos, inputFileName, recordsRead, sortedRuns);
+    }
+
+    /**
+     * While the memory is filled initially, nothing is written. Once it is full, every new record first requires
+     * writing records from the heap until there is enough space for its copy, and for growing the heap if it is full.
+     */
+    private boolean isFull(final LineReader input) {
+        // Growing the heap holds the old and the new arrays at once
+        final long grownSlots = this.size == this.records.length ? 2L * this.size : 0;
+        return this.budget.reserved() + MemoryBudget.arraySize(input.length()) + grownSlots * SLOT_SIZE
+                > this.budget.limit();
+    }
+
+    private void add(final byte[] record, final long prefix, final int run) {
+        if (this.size == this.records.length) {
+            this.budget.reserve(2L * this.size * SLOT_SIZE);
+            this.records = Arrays.copyOf(this.records, this.size * 2);
+            this.prefixes = Arrays.copyOf(this.prefixes, this.size * 2);
+            this.runs = Arrays.copyOf(this.runs, this.size * 2);
+            this.budget.release((long) this.size * SLOT_SIZE);
+        }
+        int child = this.size++;
+        this.budget.reserve(MemoryBudget.arraySize(record.length));
+        while (child > 0) {
+            final int parent = (child - 1) >>> 1;
+            if (this.compare(record, prefix, run, parent) >= 0) {
+                break;
+            }
+            this.move(parent, child);
+            child = parent;
+        }
+        this.records[child] = record;
+        this.prefixes[child] = prefix;
+        this.runs[child] = run;
+    }
+
+    private byte[] poll() {
+        final byte[] smallest = this.records[0];
+        this.budget.release(MemoryBudget.arraySize(smallest.length));
+        final int last = --this.size;
+        final byte[] record = this.records[last];
+        final long prefix = this.prefixes[last];
+        final int run = this.runs[last];
+        this.records[last] = null;
+
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= last) {
+                break;
+            }
+            if (child + 1 < last && this.compare(this.records[child + 1], this.prefixes[child + 1],
+                    this.runs[child + 1], child) < 0) {
+                child++;
+            }
+            if (this.compare(record, prefix, run, child) <= 0) {
+                break;
+            }
+            this.move(child, parent);
+            parent = child;
+        }
+        if (last > 0) {
+            this.records[parent] = record;
+            this.prefixes[parent] = prefix;
+            this.runs[parent] = run;
+        }
+        return smallest;
+    }
+
+    private void move(final int from, final int to) {
+        this.records[to] = this.records[from];
+        this.prefixes[to] = this.prefixes[from];
+        this.runs[to] = this.runs[from];
+    }
+
+    private int compare(final byte[] record, final long prefix, final int run, final int heapIndex) {
+        if (run != this.runs[heapIndex]) {
+            return Integer.compare(run, this.runs[heapIndex]);
+        }
+        if (prefix != this.prefixes[heapIndex]) {
+            return Long.compareUnsigned(prefix, this.prefixes[heapIndex]);
+        }
+        final byte[] other = this.records[heapIndex];
+        final int skip = Records.prefixLength(record.length, other.length);
+        return Records.compare(record, skip, record.length - skip, other, skip, other.length - skip);
+    }
+}
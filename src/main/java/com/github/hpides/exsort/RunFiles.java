@@ -0,0 +1,168 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates readers and writers for temporary run files in the configured run format.
+ * If an I/O executor is given, the files are read ahead and written behind in the background, see the
+ * ReadAheadChannel and WriteBehindChannel. Text runs can also be read through memory mappings, see MappedRunReader.
+ * The same formats encode records on the connections between remote nodes, see `SortOptions.wireFormat()`.
+ *
+ * Runs and streams that count duplicates (see `SortOptions.duplicates()`) are always front coded, with the counts
+ * stored next to the records. A configured text format is replaced by `FRONT_CODED` then.
+ */
+final class RunFiles {
+
+    private RunFiles() {
+    }
+
+    /**
+     * Whether runs are plain text as configured in the options, so that a single run is already the sorted output.
+     */
+    static boolean isText(final SortOptions options) {
+        return options.runFormat() == RunFormat.TEXT && options.duplicates() != Duplicates.COUNT;
+    }
+
+    /**
+     * The memory of a run writer created with `create()` besides the I/O executor: the buffer of a text run, or the
+     * block buffers of a front coded run.
+     */
+    static long writerSize(final SortOptions options, final int bufferSize) {
+        return isText(options) ? bufferSize : blockBuffersSize(options);
+    }
+
+    /**
+     * The memory that a front coded reader or writer needs besides its channel: the block, for deflated runs also the
+     * compressed block and the state of the Deflater or Inflater. Text runs need none.
+     */
+    static long blockBuffersSize(final SortOptions options) {
+        if (isText(options)) {
+            return 0;
+        }
+        final long block = MemoryBudget.arraySize(FrontCodedWriter.BLOCK_SIZE + 64);
+        return options.runFormat() == RunFormat.FRONT_CODED_DEFLATE ? 2 * block + MemoryBudget.DEFLATER_SIZE : block;
+    }
+
+    /**
+     * Creates a run as configured in the options, duplicates are collapsed while writing it and records beyond the
+     * limit are dropped.
+     */
+    static RecordSink create(final File file, final SortOptions options, final int bufferSize) throws IOException {
+        return create(file, options, bufferSize, null);
+    }
+
+    static RecordSink create(final File file, final SortOptions options, final int bufferSize,
+                             final ExecutorService ioExecutor) throws IOException {
+        final RecordSink run = writer(openForWriting(file, bufferSize, ioExecutor), options.runFormat(),
+                options.duplicates() == Duplicates.COUNT, bufferSize);
+        return DuplicateFilter.collapse(LimitedSink.wrap(run, options), options.duplicates());
+    }
+
+    static RecordSink create(final File file, final RunFormat format, final int bufferSize) throws IOException {
+        return create(file, format, bufferSize, null);
+    }
+
+    static RecordSink create(final File file, final RunFormat format, final int bufferSize,
+                             final ExecutorService ioExecutor) throws IOException {
+        return writer(openForWriting(file, bufferSize, ioExecutor), format, bufferSize);
+    }
+
+    private static WritableByteChannel openForWriting(final File file, final int bufferSize,
+                                                      final ExecutorService ioExecutor) throws IOException {
+        final WritableByteChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        return ioExecutor == null ? channel : new WriteBehindChannel(channel, bufferSize, ioExecutor);
+    }
+
+    /**
+     * Writes records in the given format to any channel, e.g., to a connection. Closing the sink closes the channel.
+     */
+    static RecordSink writer(final WritableByteChannel channel, final RunFormat format, final int bufferSize)
+            throws IOException {
+        return writer(channel, format, false, bufferSize);
+    }
+
+    /**
+     * @param counted Whether the records are written with their counts, see `SortOptions.duplicates()`.
+     */
+    static RecordSink writer(final WritableByteChannel channel, final RunFormat format, final boolean counted,
+                             final int bufferSize) throws IOException {
+        if (counted) {
+            return new FrontCodedWriter(channel, format == RunFormat.FRONT_CODED_DEFLATE, true);
+        }
+        switch (format) {
+            case TEXT:
+                return new LineWriter(channel, bufferSize);
+            case FRONT_CODED:
+            case FRONT_CODED_DEFLATE:
+                return new FrontCodedWriter(channel, format == RunFormat.FRONT_CODED_DEFLATE);
+            default:
+                channel.close();
+                throw new IllegalArgumentException("Unknown run format " + format);
+        }
+    }
+
+    /**
+     * Opens a run for merging as configured in the options.
+     */
+    static RecordSource open(final File file, final SortOptions options, final int bufferSize,
+                             final ExecutorService ioExecutor) throws IOException {
+        if (options.mappedRuns() && isText(options)) {
+            // A LineReader would hold a direct and a heap buffer, map the same amount at once
+            return new MappedRunReader(file, 2 * bufferSize);
+        }
+        return reader(openForReading(file, bufferSize, ioExecutor), options.runFormat(),
+                options.duplicates() == Duplicates.COUNT, bufferSize);
+    }
+
+    static RecordSource open(final File file, final RunFormat format, final int bufferSize) throws IOException {
+        return open(file, format, bufferSize, null);
+    }
+
+    static RecordSource open(final File file, final RunFormat format, final int bufferSize,
+                             final ExecutorService ioExecutor) throws IOException {
+        return reader(openForReading(file, bufferSize, ioExecutor), format, bufferSize);
+    }
+
+    private static ReadableByteChannel openForReading(final File file, final int bufferSize,
+                                                      final ExecutorService ioExecutor) throws IOException {
+        final ReadableByteChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return ioExecutor == null ? channel : new ReadAheadChannel(channel, bufferSize, ioExecutor);
+    }
+
+    /**
+     * Reads records in the given format from any channel. Closing the source closes the channel.
+     */
+    static RecordSource reader(final ReadableByteChannel channel, final RunFormat format, final int bufferSize)
+            throws IOException {
+        return reader(channel, format, false, bufferSize);
+    }
+
+    /**
+     * @param counted Whether the records were written with their counts, see `SortOptions.duplicates()`.
+     */
+    static RecordSource reader(final ReadableByteChannel channel, final RunFormat format, final boolean counted,
+                               final int bufferSize) throws IOException {
+        if (counted) {
+            return new FrontCodedReader(channel, format == RunFormat.FRONT_CODED_DEFLATE, true);
+        }
+        switch (format) {
+            case TEXT:
+                return new LineReader(channel, bufferSize);
+            case FRONT_CODED:
+            case FRONT_CODED_DEFLATE:
+                return new FrontCodedReader(channel, format == RunFormat.FRONT_CODED_DEFLATE);
+            default:
+                channel.close();
+                throw new IllegalArgumentException("Unknown run format " + format);
+        }
+    }
+}
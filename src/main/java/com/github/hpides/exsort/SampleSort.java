@@ -0,0 +1,204 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sorts the files of several nodes by key range instead of merging everything on the collector:
+ *   1. Every node sends a random sample of its records (`SAMPLE`).
+ *   2. The collector sorts the samples and picks one splitter per range boundary, so that every node gets about the
+ *      same share of the records.
+ *   3. Every node splits its input by these splitters and sends each range directly to the node that owns it
+ *      (`PARTITION`, which sends `PUT_PARTITION` to the other nodes).
+ *   4. Every node sorts the records of its range and streams them to the collector (`SORT_RANGE`). All ranges are
+ *      sorted in parallel, and the collector only appends them to the output in range order, there is no global
+ *      merge.
+ *
+ * Range i holds the records that are larger than splitter i - 1 and not larger than splitter i. Skewed data with very
+ * many copies of a splitter makes the ranges uneven, but the output is correct in any case.
+ */
+final class SampleSort {
+    // Samples per range, more samples give more even ranges
+    static final int SAMPLES_PER_RANGE = 1024;
+
+    private SampleSort() {
+    }
+
+    /**
+     * Sorts the input files of all remote nodes into the local output file, see the class comment. The nodes already
+     * collapse the duplicates within their ranges as negotiated, all copies of a record end up in the same range.
+     */
+    static void sortFile(final String inputFileName, final String outputFileName, final int chunkSizeInBytes,
+                         final List<RemoteFileSorterClient> remoteFileSorters, final Duplicates duplicates)
+            throws IOException {
+        final int numRanges = remoteFileSorters.size();
+        // At most one source is read at a time, but all of them hold their buffers
+        final int bufferSize = MergePlanner.bufferSize(numRanges, chunkSizeInBytes, 2);
+
+        // All requests are sent before waiting for the first response, so that the nodes work in parallel
+        final List<CompletableFuture<RecordSource>> samples = new ArrayList<>(numRanges);
+        for (final RemoteFileSorterClient sorter : remoteFileSorters) {
+            samples.add(sorter.sampleRemoteFileAsync(inputFileName, SAMPLES_PER_RANGE, bufferSize));
+        }
+        final List<byte[]> splitters = chooseSplitters(readAll(samples), numRanges);
+
+        final String jobId = UUID.randomUUID().toString();
+        final List<String> nodes = new ArrayList<>(numRanges);
+        remoteFileSorters.forEach(sorter -> nodes.add(sorter.address()));
+        for (int i = 0; i < numRanges; i++) {
+            remoteFileSorters.get(i).partitionRemoteFile(inputFileName, jobId, i, nodes, splitters);
+        }
+        remoteFileSorters.forEach(RemoteFileSorterClient::waitForCommandToComplete);
+
+        final List<CompletableFuture<RecordSource>> ranges = new ArrayList<>(numRanges);
+        for (final RemoteFileSorterClient sorter : remoteFileSorters) {
+            ranges.add(sorter.streamSortedRangeAsync(jobId, chunkSizeInBytes, bufferSize));
+        }
+        try (final RecordSink output = DuplicateFilter.output(LineWriter.open(new File(outputFileName), bufferSize),
+                duplicates)) {
+            for (final CompletableFuture<RecordSource> pendingRange : ranges) {
+                final RecordSource range = pendingRange.join();
+                while (range.next()) {
+                    range.writeTo(output);
+                }
+                range.close();
+            }
+        }
+    }
+
+    private static List<byte[]> readAll(final List<CompletableFuture<RecordSource>> sources) throws IOException {
+        final List<byte[]> records = new ArrayList<>();
+        for (final CompletableFuture<RecordSource> pendingSource : sources) {
+            final RecordSource source = pendingSource.join();
+            while (source.next()) {
+                records.add(copyOf(source));
+            }
+            source.close();
+        }
+        return records;
+    }
+
+    /**
+     * Copies the current record of a source out of its buffer.
+     */
+    static byte[] copyOf(final RecordSource source) {
+        final ByteBuffer buffer = source.buffer();
+        if (buffer.hasArray()) {
+            final int offset = buffer.arrayOffset() + source.offset();
+            return Arrays.copyOfRange(buffer.array(), offset, offset + source.length());
+        }
+        final byte[] record = new byte[source.length()];
+        buffer.position(source.offset());
+        buffer.get(record);
+        buffer.clear();
+        return record;
+    }
+
+    /**
+     * Picks `numRanges - 1` splitters at evenly spaced positions of the sorted samples.
+     */
+    static List<byte[]> chooseSplitters(final List<byte[]> samples, final int numRanges) {
+        final byte[][] sorted = samples.toArray(new byte[0][]);
+        Arrays.sort(sorted, (left, right) -> Records.compare(left, 0, left.length, right, 0, right.length));
+        final List<byte[]> splitters = new ArrayList<>(numRanges - 1);
+        for (int i = 1; i < numRanges; i++) {
+            splitters.add(sorted.length == 0 ? new byte[0] : sorted[(int) ((long) i * sorted.length / numRanges)]);
+        }
+        return splitters;
+    }
+
+    /**
+     * Draws a uniform random sample of the records of a file with reservoir sampling, in one pass over the file.
+     */
+    static List<byte[]> sample(final String inputFileName, final int sampleSize) throws IOException {
+        final List<byte[]> sample = new ArrayList<>(sampleSize);
+        final Random random = new Random();
+        long numRecords = 0;
+        try (final LineReader input = LineReader.open(inputFileName)) {
+            while (input.next()) {
+                numRecords++;
+                if (sample.size() < sampleSize) {
+                    sample.add(copyOf(input));
+                } else {
+                    final long slot = (long) (random.nextDouble() * numRecords);
+                    if (slot < sampleSize) {
+                        sample.set((int) slot, copyOf(input));
+                    }
+                }
+            }
+        }
+        return sample;
+    }
+
+    /**
+     * Splits a file into the ranges given by the splitters. The range of this node is written to a local file, the
+     * other ranges are sent to the node that owns them.
+     * @param nodes The addresses of all nodes, in range order.
+     * @return The local file with the records of this node's range.
+     */
+    static File partition(final String inputFileName, final String jobId, final int nodeIndex,
+                          final List<String> nodes, final List<byte[]> splitters) throws IOException {
+        final File localRange = File.createTempFile("range", ".tmp");
+        final RemoteFileSorterClient[] peers = new RemoteFileSorterClient[nodes.size()];
+        final RecordSink[] ranges = new RecordSink[nodes.size()];
+        try {
+            for (int i = 0; i < nodes.size(); i++) {
+                if (i == nodeIndex) {
+                    ranges[i] = LineWriter.open(localRange, LocalFileSorter.MERGE_BUFFER_SIZE);
+                } else {
+                    // Ranges are exchanged unsorted, so there is nothing to collapse yet and front coding would not
+                    // share prefixes, see `RemoteFileSorterClient.putPartition()`
+                    peers[i] = RemoteFileSorterClient.connect(nodes.get(i), RunFormat.TEXT, Duplicates.KEEP);
+                    ranges[i] = peers[i].putPartition(jobId, LocalFileSorter.MERGE_BUFFER_SIZE);
+                }
+            }
+
+            final byte[][] splitterArray = splitters.toArray(new byte[0][]);
+            try (final LineReader input = LineReader.open(inputFileName)) {
+                while (input.next()) {
+                    final int range = rangeOf(splitterArray, input.array(), input.offset(), input.length());
+                    ranges[range].write(input.array(), input.offset(), input.length());
+                }
+            }
+        } finally {
+            for (int i = 0; i < nodes.size(); i++) {
+                if (ranges[i] != null) {
+                    ranges[i].close();
+                }
+                if (peers[i] != null) {
+                    // The peer acknowledges once it stored the whole partition
+                    peers[i].waitForCommandToComplete();
+                    peers[i].disconnect();
+                }
+            }
+        }
+        return localRange;
+    }
+
+    /**
+     * The index of the first splitter that is not smaller than the record, or the number of splitters.
+     */
+    static int rangeOf(final byte[][] splitters, final byte[] array, final int offset, final int length) {
+        int low = 0;
+        int high = splitters.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            final byte[] splitter = splitters[middle];
+            if (Records.compare(splitter, 0, splitter.length, array, offset, length) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
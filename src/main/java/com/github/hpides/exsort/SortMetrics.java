@@ -0,0 +1,275 @@
+package com.github.hpides.exsort;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts where the time of sorts goes: the wall time, bytes and records of every phase, the runs and merge passes,
+ * the highest memory reservation of a phase (see `MemoryBudget`), and for a collector the transfer and idle time per
+ * remote node. The sorters record into the metrics of their `SortOptions`, so the metrics of several sorts add up if
+ * their options share them, e.g., on a server.
+ *
+ * Phases are recorded as a whole, e.g., once per run or merge pass, and bytes are taken from file lengths where
+ * possible, so nothing is added per record except for counting it.
+ *
+ * The metrics can be watched through JMX, see `register()`, and written as JSON, see `toJson()`.
+ */
+public final class SortMetrics implements SortMetricsMXBean {
+    public static final String JMX_DOMAIN = "com.github.hpides.exsort";
+
+    public enum Phase {
+        /** Splitting a file into chunk files with `chunkFile()`. */
+        CHUNKING,
+        /** Reading the input and writing sorted runs, including their in-memory sort. */
+        RUN_GENERATION,
+        /** Sorting records in memory. Summed over all threads, so it can exceed the wall time. */
+        IN_MEMORY_SORT,
+        /** Intermediate and final merge passes of local runs, also into a stream to a collector. */
+        MERGE,
+        /** A collector waiting for the remote nodes to answer the sort requests with their first records. */
+        REMOTE_WAIT,
+        /** A collector merging the sorted data of the remote nodes into the output, including its transfer. */
+        REMOTE_MERGE,
+        /** A server sending chunks of a sorted file to a collector. */
+        CHUNK_SEND
+    }
+
+    private final Map<Phase, PhaseCounters> phases = new EnumMap<>(Phase.class);
+    private final LongAdder runsCreated = new LongAdder();
+    private final LongAdder mergePasses = new LongAdder();
+    private final AtomicInteger maxMergeFanIn = new AtomicInteger();
+    private final AtomicLong peakReservedBytes = new AtomicLong();
+    private final Map<String, NodeCounters> nodes = new ConcurrentHashMap<>();
+
+    private ObjectName objectName;
+
+    public SortMetrics() {
+        for (final Phase phase : Phase.values()) {
+            this.phases.put(phase, new PhaseCounters());
+        }
+    }
+
+    /**
+     * Adds a run of a phase that started at `startNanos` (see `System.nanoTime()`) and ends now.
+     */
+    public void record(final Phase phase, final long startNanos, final long bytesRead, final long bytesWritten,
+                       final long records) {
+        final PhaseCounters counters = this.phases.get(phase);
+        counters.nanos.add(System.nanoTime() - startNanos);
+        counters.bytesRead.add(bytesRead);
+        counters.bytesWritten.add(bytesWritten);
+        counters.records.add(records);
+        counters.runs.increment();
+    }
+
+    public void addRuns(final long runs) {
+        this.runsCreated.add(runs);
+    }
+
+    /**
+     * Adds a merge pass over `fanIn` runs and streams.
+     */
+    public void addMergePass(final int fanIn) {
+        this.mergePasses.increment();
+        this.maxMergeFanIn.accumulateAndGet(fanIn, Math::max);
+    }
+
+    /**
+     * Adds the peak of a memory budget, only the highest one is kept.
+     */
+    public void recordPeakReserved(final long bytes) {
+        this.peakReservedBytes.accumulateAndGet(bytes, Math::max);
+    }
+
+    /**
+     * Adds the transfer from a remote node, see `RemoteFileSorterClient.transferCounters()`.
+     */
+    public void addNode(final String address, final long bytesReceived, final long transferNanos,
+                        final long idleNanos) {
+        final NodeCounters counters = this.nodes.computeIfAbsent(address, key -> new NodeCounters());
+        counters.bytesReceived.add(bytesReceived);
+        counters.transferNanos.add(transferNanos);
+        counters.idleNanos.add(idleNanos);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server as `com.github.hpides.exsort:type=SortMetrics,name=...`.
+     */
+    public void register(final String name) {
+        try {
+            this.objectName = new ObjectName(JMX_DOMAIN + ":type=SortMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.objectName);
+        } catch (final JMException e) {
+            throw new IllegalStateException("Cannot register sort metrics " + name, e);
+        }
+    }
+
+    public void unregister() {
+        if (this.objectName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(this.objectName);
+        } catch (final JMException e) {
+            System.out.println("Cannot unregister sort metrics. Ignoring.");
+        }
+        this.objectName = null;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMillis() {
+        return this.byPhase(counters -> TimeUnit.NANOSECONDS.toMillis(counters.nanos.sum()));
+    }
+
+    @Override
+    public Map<String, Long> getPhaseBytesRead() {
+        return this.byPhase(counters -> counters.bytesRead.sum());
+    }
+
+    @Override
+    public Map<String, Long> getPhaseBytesWritten() {
+        return this.byPhase(counters -> counters.bytesWritten.sum());
+    }
+
+    @Override
+    public Map<String, Long> getPhaseRecords() {
+        return this.byPhase(counters -> counters.records.sum());
+    }
+
+    @Override
+    public Map<String, Double> getPhaseRecordsPerSecond() {
+        return this.byPhase(PhaseCounters::recordsPerSecond);
+    }
+
+    @Override
+    public long getRunsCreated() {
+        return this.runsCreated.sum();
+    }
+
+    @Override
+    public long getMergePasses() {
+        return this.mergePasses.sum();
+    }
+
+    @Override
+    public int getMaxMergeFanIn() {
+        return this.maxMergeFanIn.get();
+    }
+
+    @Override
+    public long getPeakReservedBytes() {
+        return this.peakReservedBytes.get();
+    }
+
+    @Override
+    public Map<String, Long> getNodeBytesReceived() {
+        return this.byNode(counters -> counters.bytesReceived.sum());
+    }
+
+    @Override
+    public Map<String, Long> getNodeTransferMillis() {
+        return this.byNode(counters -> TimeUnit.NANOSECONDS.toMillis(counters.transferNanos.sum()));
+    }
+
+    @Override
+    public Map<String, Long> getNodeIdleMillis() {
+        return this.byNode(counters -> TimeUnit.NANOSECONDS.toMillis(counters.idleNanos.sum()));
+    }
+
+    /**
+     * The phases that ran, in the order of `Phase`.
+     */
+    private <T> Map<String, T> byPhase(final Function<PhaseCounters, T> value) {
+        final Map<String, T> values = new LinkedHashMap<>();
+        this.phases.forEach((phase, counters) -> {
+            if (counters.runs.sum() > 0) {
+                values.put(phase.name(), value.apply(counters));
+            }
+        });
+        return values;
+    }
+
+    private <T> Map<String, T> byNode(final Function<NodeCounters, T> value) {
+        final Map<String, T> values = new TreeMap<>();
+        this.nodes.forEach((address, counters) -> values.put(address, value.apply(counters)));
+        return values;
+    }
+
+    /**
+     * A summary of all metrics as a single JSON object, with times in milliseconds.
+     */
+    public String toJson() {
+        final StringBuilder json = new StringBuilder("{\"phases\":{");
+        final Map<String, Long> millis = this.getPhaseMillis();
+        final Map<String, Long> bytesRead = this.getPhaseBytesRead();
+        final Map<String, Long> bytesWritten = this.getPhaseBytesWritten();
+        final Map<String, Long> records = this.getPhaseRecords();
+        final Map<String, Double> recordsPerSecond = this.getPhaseRecordsPerSecond();
+        String separator = "";
+        for (final String phase : millis.keySet()) {
+            json.append(separator).append('"').append(phase).append("\":{")
+                    .append("\"millis\":").append(millis.get(phase))
+                    .append(",\"bytesRead\":").append(bytesRead.get(phase))
+                    .append(",\"bytesWritten\":").append(bytesWritten.get(phase))
+                    .append(",\"records\":").append(records.get(phase))
+                    .append(",\"recordsPerSecond\":").append(Math.round(recordsPerSecond.get(phase)))
+                    .append('}');
+            separator = ",";
+        }
+        json.append("},\"runsCreated\":").append(this.getRunsCreated())
+                .append(",\"mergePasses\":").append(this.getMergePasses())
+                .append(",\"maxMergeFanIn\":").append(this.getMaxMergeFanIn())
+                .append(",\"peakReservedBytes\":").append(this.getPeakReservedBytes())
+                .append(",\"nodes\":{");
+        final Map<String, Long> transferMillis = this.getNodeTransferMillis();
+        final Map<String, Long> idleMillis = this.getNodeIdleMillis();
+        separator = "";
+        for (final Map.Entry<String, Long> node : this.getNodeBytesReceived().entrySet()) {
+            json.append(separator).append('"').append(node.getKey()).append("\":{")
+                    .append("\"bytesReceived\":").append(node.getValue())
+                    .append(",\"transferMillis\":").append(transferMillis.get(node.getKey()))
+                    .append(",\"idleMillis\":").append(idleMillis.get(node.getKey()))
+                    .append('}');
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return this.toJson();
+    }
+
+    private static final class PhaseCounters {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder bytesWritten = new LongAdder();
+        private final LongAdder records = new LongAdder();
+        // How often the phase was recorded
+        private final LongAdder runs = new LongAdder();
+
+        private double recordsPerSecond() {
+            final long nanos = this.nanos.sum();
+            return nanos == 0 ? 0 : this.records.sum() * 1e9 / nanos;
+        }
+    }
+
+    private static final class NodeCounters {
+        private final LongAdder bytesReceived = new LongAdder();
+        private final LongAdder transferNanos = new LongAdder();
+        private final LongAdder idleNanos = new LongAdder();
+    }
+}
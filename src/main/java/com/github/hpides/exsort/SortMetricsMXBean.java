@@ -0,0 +1,32 @@
+package com.github.hpides.exsort;
+
+import java.util.Map;
+
+/**
+ * The attributes of `SortMetrics` that JMX clients see. Maps are by phase or by node address.
+ */
+public interface SortMetricsMXBean {
+    Map<String, Long> getPhaseMillis();
+
+    Map<String, Long> getPhaseBytesRead();
+
+    Map<String, Long> getPhaseBytesWritten();
+
+    Map<String, Long> getPhaseRecords();
+
+    Map<String, Double> getPhaseRecordsPerSecond();
+
+    long getRunsCreated();
+
+    long getMergePasses();
+
+    int getMaxMergeFanIn();
+
+    long getPeakReservedBytes();
+
+    Map<String, Long> getNodeBytesReceived();
+
+    Map<String, Long> getNodeTransferMillis();
+
+    Map<String, Long> getNodeIdleMillis();
+}
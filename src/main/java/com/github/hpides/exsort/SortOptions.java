@@ -0,0 +1,343 @@
+package com.github.hpides.exsort;
+
+import java.util.List;
+
+/**
+ * Tuning knobs for the LocalFileSorter and the RemoteFileSorter. The defaults are used by `sortFile()` without
+ * options.
+ *
+ * Usage:
+ *   LocalFileSorter.sortFile(input, output, chunkSize, SortOptions.defaults().runGeneration(RunGeneration.CHUNKED));
+ *
+ * The executables accept the same options as `name=value` arguments, see `fromArguments()`.
+ */
+public final class SortOptions {
+
+    /**
+     * How the sorted runs for the final merge are created.
+     */
+    public enum RunGeneration {
+        /** Split the input with `chunkFile()` and sort every chunk file into a run. Writes the data twice. */
+        CHUNKED,
+        /** Fill the memory directly from the input, sort it and only write the sorted run. */
+        SINGLE_PASS,
+        /** Stream the input through a heap in memory. Creates longer runs, see `ReplacementSelection`. */
+        REPLACEMENT_SELECTION
+    }
+
+    /**
+     * How sorted runs are stored in temporary files. The final output is always text.
+     */
+    public enum RunFormat {
+        /** Newline separated records, like the input. */
+        TEXT,
+        /** Blocks of front coded records, see `FrontCodedWriter`. Shared prefixes of neighbours are stored once. */
+        FRONT_CODED,
+        /** Like `FRONT_CODED`, but every block is also compressed with a Deflater. */
+        FRONT_CODED_DEFLATE
+    }
+
+    /**
+     * How the RemoteFileSorter gets the sorted data from the remote nodes.
+     */
+    public enum RemoteTransfer {
+        /** The remote nodes sort into a file and chunk it, every chunk is copied into a local temporary file. */
+        CHUNKS,
+        /** The remote nodes stream their final merge through the connection, see `streamSortedRemoteFile()`. */
+        STREAM,
+        /**
+         * The remote nodes exchange their records by key range and each sorts one range, which the collector only
+         * concatenates, see `SampleSort`.
+         */
+        RANGES,
+        /**
+         * The remote nodes form a tree in which inner nodes merge the streams of their children with their own
+         * records, so this node only merges `mergeTreeFanIn` streams, see `MergeTree`.
+         */
+        TREE
+    }
+
+    /**
+     * What happens to records that occur more than once.
+     */
+    public enum Duplicates {
+        /** Every copy is written to the output, like `sort`. */
+        KEEP,
+        /** Every record is written once, like `sort -u`. */
+        UNIQUE,
+        /** Every record is written once, followed by a tab and the number of its copies. */
+        COUNT
+    }
+
+    private RunGeneration runGeneration = RunGeneration.SINGLE_PASS;
+    private RunFormat runFormat = RunFormat.TEXT;
+    private boolean asyncIo = false;
+    private boolean mappedRuns = false;
+    private RemoteTransfer remoteTransfer = RemoteTransfer.STREAM;
+    private int prefetchDepth = 2;
+    private RunFormat wireFormat = RunFormat.TEXT;
+    private int mergeTreeFanIn = 4;
+    private int parallelism = 1;
+    private Duplicates duplicates = Duplicates.KEEP;
+    private long limit = 0;
+    private long responseTimeout = RemoteFileSorterClient.DEFAULT_RESPONSE_TIMEOUT;
+    private SortMetrics metrics = new SortMetrics();
+
+    public static SortOptions defaults() {
+        return new SortOptions();
+    }
+
+    /**
+     * Parses options given as `name=value` arguments, e.g., `parallelism=8` or `runGeneration=CHUNKED`.
+     */
+    public static SortOptions fromArguments(final List<String> arguments) {
+        final SortOptions options = defaults();
+        for (final String argument : arguments) {
+            final String[] nameValue = argument.split("=", 2);
+            if (nameValue.length != 2) {
+                throw new IllegalArgumentException("Bad option " + argument + ", expected name=value");
+            }
+            final String value = nameValue[1];
+            switch (nameValue[0]) {
+                case "runGeneration":
+                    options.runGeneration(RunGeneration.valueOf(value));
+                    break;
+                case "parallelism":
+                    options.parallelism(Integer.parseInt(value));
+                    break;
+                case "runFormat":
+                    options.runFormat(RunFormat.valueOf(value));
+                    break;
+                case "asyncIo":
+                    options.asyncIo(Boolean.parseBoolean(value));
+                    break;
+                case "mappedRuns":
+                    options.mappedRuns(Boolean.parseBoolean(value));
+                    break;
+                case "remoteTransfer":
+                    options.remoteTransfer(RemoteTransfer.valueOf(value));
+                    break;
+                case "prefetchDepth":
+                    options.prefetchDepth(Integer.parseInt(value));
+                    break;
+                case "wireFormat":
+                    options.wireFormat(RunFormat.valueOf(value));
+                    break;
+                case "mergeTreeFanIn":
+                    options.mergeTreeFanIn(Integer.parseInt(value));
+                    break;
+                case "duplicates":
+                    options.duplicates(Duplicates.valueOf(value));
+                    break;
+                case "limit":
+                    options.limit(Long.parseLong(value));
+                    break;
+                case "responseTimeout":
+                    options.responseTimeout(Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + nameValue[0]);
+            }
+        }
+        return options;
+    }
+
+    public RunGeneration runGeneration() {
+        return this.runGeneration;
+    }
+
+    public SortOptions runGeneration(final RunGeneration runGeneration) {
+        this.runGeneration = runGeneration;
+        return this;
+    }
+
+    public int parallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Number of runs that are sorted and written concurrently during `SINGLE_PASS` run generation. The memory limit is
+     * shared between them, so every run is at most `chunkSizeInBytes / parallelism` bytes long. More parallelism uses
+     * more cores, but creates shorter and therefore more runs for the merge.
+     */
+    public SortOptions parallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive, got " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public RunFormat runFormat() {
+        return this.runFormat;
+    }
+
+    public SortOptions runFormat(final RunFormat runFormat) {
+        this.runFormat = runFormat;
+        return this;
+    }
+
+    public boolean asyncIo() {
+        return this.asyncIo;
+    }
+
+    /**
+     * Whether the merge reads its runs ahead and writes its output behind on background threads. This overlaps disk
+     * latency with the merge work, but every open file needs twice the buffer memory.
+     */
+    public SortOptions asyncIo(final boolean asyncIo) {
+        this.asyncIo = asyncIo;
+        return this;
+    }
+
+    public boolean mappedRuns() {
+        return this.mappedRuns;
+    }
+
+    /**
+     * Whether the merge reads `TEXT` runs through memory-mapped windows, see `MappedRunReader`. Other run formats have
+     * to be decoded anyway and are read through buffers. Takes precedence over `asyncIo()` for reading the runs.
+     */
+    public SortOptions mappedRuns(final boolean mappedRuns) {
+        this.mappedRuns = mappedRuns;
+        return this;
+    }
+
+    public RemoteTransfer remoteTransfer() {
+        return this.remoteTransfer;
+    }
+
+    public SortOptions remoteTransfer(final RemoteTransfer remoteTransfer) {
+        this.remoteTransfer = remoteTransfer;
+        return this;
+    }
+
+    public int prefetchDepth() {
+        return this.prefetchDepth;
+    }
+
+    /**
+     * Number of chunks per remote node that are fetched in the background during a `CHUNKS` transfer, see the
+     * ChunkPrefetcher. The memory limit is shared between the prefetched chunks and the ones being merged, so every
+     * node sends chunks of `chunkSizeInBytes / (nodes * (prefetchDepth + 1))` bytes. 0 fetches chunks on demand.
+     */
+    public SortOptions prefetchDepth(final int prefetchDepth) {
+        if (prefetchDepth < 0) {
+            throw new IllegalArgumentException("Prefetch depth must not be negative, got " + prefetchDepth);
+        }
+        this.prefetchDepth = prefetchDepth;
+        return this;
+    }
+
+    public RunFormat wireFormat() {
+        return this.wireFormat;
+    }
+
+    /**
+     * How records are encoded on the connections to the remote nodes, it is negotiated at the start of every session.
+     * Sorted records share long prefixes, so `FRONT_CODED_DEFLATE` sends a fraction of the bytes for some CPU time on
+     * both sides. This pays off if the network is slower than compressing, e.g., on 1 GbE links. Unsorted records,
+     * i.e., samples and the ranges that nodes exchange during a `RANGES` transfer, are always sent as text.
+     */
+    public SortOptions wireFormat(final RunFormat wireFormat) {
+        this.wireFormat = wireFormat;
+        return this;
+    }
+
+    public int mergeTreeFanIn() {
+        return this.mergeTreeFanIn;
+    }
+
+    /**
+     * Number of children per node in a `TREE` transfer, including the collecting node. Smaller fan-ins take load off
+     * the collector, but make the tree deeper, so that the records pass through more nodes.
+     */
+    public SortOptions mergeTreeFanIn(final int mergeTreeFanIn) {
+        if (mergeTreeFanIn < 2) {
+            throw new IllegalArgumentException("Merge tree fan-in must be at least 2, got " + mergeTreeFanIn);
+        }
+        this.mergeTreeFanIn = mergeTreeFanIn;
+        return this;
+    }
+
+    public Duplicates duplicates() {
+        return this.duplicates;
+    }
+
+    /**
+     * Whether duplicates are kept, removed or counted, see `DuplicateFilter`. Duplicates are collapsed whenever sorted
+     * records are written, i.e., in every run, every merge pass and on the remote nodes before sending their records,
+     * so that duplicate-heavy inputs produce smaller runs and less network traffic. Counted runs and streams are
+     * always front coded, as text cannot hold the counts.
+     */
+    public SortOptions duplicates(final Duplicates duplicates) {
+        this.duplicates = duplicates;
+        return this;
+    }
+
+    public long limit() {
+        return this.limit;
+    }
+
+    /**
+     * Only the first `limit` records of the sorted output are written, 0 writes all of them. With `UNIQUE` or `COUNT`
+     * duplicates, the limit counts distinct records. If the first records fit into memory, the input is read once
+     * into a bounded heap without writing any runs, see `TopK`. Otherwise, every run and merge pass is cut off after
+     * `limit` records. Remote nodes always stream only their own first records, whatever the `remoteTransfer()`.
+     */
+    public SortOptions limit(final long limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Limit must not be negative, got " + limit);
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public long responseTimeout() {
+        return this.responseTimeout;
+    }
+
+    /**
+     * Milliseconds that every request to a remote node waits for its response, 0 waits forever. Sorts and streams
+     * only answer once the remote node has sorted its input, which takes longer than the default 15 seconds for inputs
+     * of a few GB. Requests between the remote nodes themselves never time out, they are covered by this deadline.
+     */
+    public SortOptions responseTimeout(final long responseTimeout) {
+        if (responseTimeout < 0) {
+            throw new IllegalArgumentException("Response timeout must not be negative, got " + responseTimeout);
+        }
+        this.responseTimeout = responseTimeout;
+        return this;
+    }
+
+    public SortMetrics metrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Where the sorts with these options record their phases, see `SortMetrics`. Every options object starts with its
+     * own metrics, pass shared ones to add up several sorts. This is not a knob, so it is not part of `toString()`.
+     */
+    public SortOptions metrics(final SortMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "SortOptions{" +
+                "runGeneration=" + this.runGeneration +
+                ", parallelism=" + this.parallelism +
+                ", runFormat=" + this.runFormat +
+                ", asyncIo=" + this.asyncIo +
+                ", mappedRuns=" + this.mappedRuns +
+                ", remoteTransfer=" + this.remoteTransfer +
+                ", prefetchDepth=" + this.prefetchDepth +
+                ", wireFormat=" + this.wireFormat +
+                ", mergeTreeFanIn=" + this.mergeTreeFanIn +
+                ", duplicates=" + this.duplicates +
+                ", limit=" + this.limit +
+                ", responseTimeout=" + this.responseTimeout +
+                '}';
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.hpides.exsort;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Selects the first `SortOptions.limit()` records of a file in one pass, without writing any runs. The smallest
+ * records seen so far are kept in a sorted map that works as a bounded heap: once it holds `limit` records, a new
+ * record either replaces the largest one or is dropped right away after one comparison with it, which is the common
+ * case for large inputs.
+ *
+ * Copies of a record are kept as one entry with a count, so duplicate-heavy inputs need little memory. With `UNIQUE`
+ * or `COUNT` duplicates, the limit counts distinct records, otherwise copies.
+ */
+final class TopK {
+    // Estimated heap bytes per distinct record besides its array: tree map entry and the count
+    private static final int ENTRY_OVERHEAD = 80;
+
+    private final long limit;
+    private final MemoryBudget budget;
+    private final Duplicates duplicates;
+
+    private final TreeMap<byte[], long[]> records = new TreeMap<>(
+            (left, right) -> Records.compare(left, 0, left.length, right, 0, right.length));
+    // Copies if duplicates are kept, distinct records otherwise
+    private long numRecords;
+    private byte[] largest;
+    private long recordsRead;
+
+    private TopK(final long limit, final MemoryBudget budget, final Duplicates duplicates) {
+        this.limit = limit;
+        this.budget = budget;
+        this.duplicates = duplicates;
+    }
+
+    /**
+     * Reads the input and keeps its first `options.limit()` records.
+     * The kept records are reserved in the budget, the input is read with buffers of `bufferSize`.
+     * @return Empty if these records do not fit into the budget, so that a full external sort is needed.
+     */
+    static Optional<TopK> select(final String inputFileName, final MemoryBudget budget, final int bufferSize,
+                                 final SortOptions options) throws IOException {
+        final TopK top = new TopK(options.limit(), budget, options.duplicates());
+        try (final LineReader input = LineReader.open(new File(inputFileName), bufferSize)) {
+            while (input.next()) {
+                if (!top.add(input.array(), input.offset(), input.length())) {
+                    return Optional.empty();
+                }
+            }
+            top.recordsRead = input.recordsRead();
+        }
+        return Optional.of(top);
+    }
+
+    /**
+     * The number of input records, including the ones that were not kept.
+     */
+    long recordsRead() {
+        return this.recordsRead;
+    }
+
+    /**
+     * @return false if the kept records do not fit into the budget anymore.
+     */
+    private boolean add(final byte[] array, final int offset, final int length) {
+        if (this.numRecords == this.limit) {
+            final int comparison = Records.compare(array, offset, length, this.largest, 0, this.largest.length);
+            if (comparison > 0) {
+                return true;
+            }
+            if (comparison == 0) {
+                // Another copy of the largest record only matters for its count
+                if (this.duplicates == Duplicates.COUNT) {
+                    this.records.lastEntry().getValue()[0]++;
+                }
+                return true;
+            }
+        }
+
+        final byte[] record = Arrays.copyOfRange(array, offset, offset + length);
+        final long[] count = this.records.get(record);
+        if (count == null) {
+            this.records.put(record, new long[] {1});
+            this.budget.reserve(entrySize(length));
+            this.numRecords++;
+        } else {
+            count[0]++;
+            if (this.duplicates == Duplicates.KEEP) {
+                this.numRecords++;
+            }
+        }
+
+        if (this.numRecords > this.limit) {
+            // Drop the largest record, or one copy of it
+            final Map.Entry<byte[], long[]> largestEntry = this.records.lastEntry();
+            if (this.duplicates == Duplicates.KEEP && largestEntry.getValue()[0] > 1) {
+                largestEntry.getValue()[0]--;
+            } else {
+                this.records.pollLastEntry();
+                this.budget.release(entrySize(largestEntry.getKey().length));
+            }
+            this.numRecords--;
+        }
+        if (this.numRecords == this.limit) {
+            this.largest = this.records.lastKey();
+        }
+        return this.budget.reserved() <= this.budget.limit();
+    }
+
+    private static long entrySize(final int length) {
+        return MemoryBudget.arraySize(length) + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Writes the records in sorted order, every record with the number of its copies, see `RecordSink.write()`.
+     */
+    void writeTo(final RecordSink output) throws IOException {
+        for (final Map.Entry<byte[], long[]> entry : this.records.entrySet()) {
+            if (output.isFull()) {
+                return;
+            }
+            final byte[] record = entry.getKey();
+            output.write(record, 0, record.length, entry.getValue()[0]);
+        }
+    }
+}
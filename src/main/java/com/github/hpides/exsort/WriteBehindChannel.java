@@ -0,0 +1,84 @@
+package com.github.hpides.exsort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Wraps a channel and writes full blocks in the background while the next block is filled (double buffering).
+ * Writing only blocks if the previous block is not written yet when the next one is full, i.e., if the disk is slower
+ * than the producer. Blocks are written in order, there is at most one background write at a time.
+ */
+final class WriteBehindChannel implements WritableByteChannel {
+    private final WritableByteChannel channel;
+    private final ExecutorService executor;
+
+    // The block that is filled right now and the block that is written in the background
+    private ByteBuffer current;
+    private ByteBuffer writing;
+    private Future<?> pendingWrite;
+
+    WriteBehindChannel(final WritableByteChannel channel, final int blockSize, final ExecutorService executor) {
+        this.channel = channel;
+        this.executor = executor;
+        this.current = ByteBuffer.allocateDirect(blockSize);
+        this.writing = ByteBuffer.allocateDirect(blockSize);
+    }
+
+    @Override
+    public int write(final ByteBuffer source) throws IOException {
+        final int bytesWritten = source.remaining();
+        while (source.hasRemaining()) {
+            if (!this.current.hasRemaining()) {
+                this.writeInBackground();
+            }
+            final int bytesToCopy = Math.min(source.remaining(), this.current.remaining());
+            final int limit = source.limit();
+            source.limit(source.position() + bytesToCopy);
+            this.current.put(source);
+            source.limit(limit);
+        }
+        return bytesWritten;
+    }
+
+    private void writeInBackground() throws IOException {
+        this.awaitPendingWrite();
+        final ByteBuffer block = this.current;
+        this.current = this.writing;
+        this.current.clear();
+        this.writing = block;
+        block.flip();
+        this.pendingWrite = this.executor.submit(() -> {
+            while (block.hasRemaining()) {
+                this.channel.write(block);
+            }
+            return null;
+        });
+    }
+
+    private void awaitPendingWrite() throws IOException {
+        if (this.pendingWrite != null) {
+            ReadAheadChannel.await(this.pendingWrite);
+            this.pendingWrite = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.current.position() > 0) {
+                this.writeInBackground();
+            }
+            this.awaitPendingWrite();
+        } finally {
+            this.channel.close();
+        }
+    }
+}
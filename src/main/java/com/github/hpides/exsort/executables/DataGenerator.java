@@ -0,0 +1,259 @@
+package com.github.hpides.exsort.executables;
+
+import com.github.hpides.exsort.LineWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Generates input files in the line format of the data files: one key of lowercase letters per line. The same options
+ * always generate the same file, so that measurements on large generated inputs can be repeated.
+ *
+ * Every record is drawn in this order:
+ *   1. With probability `presorted`, it is the next key of an ascending sequence (a counter in base 26, as long as
+ *      `maxKeyLength`). A file with `presorted=1` is already sorted, as long as the counter does not overflow.
+ *   2. Otherwise, with probability `duplicateRatio`, it repeats one of the last distinct records.
+ *   3. Otherwise, it is a new key. With `distinctKeys=0`, every new key is random. Otherwise, it is one of
+ *      `distinctKeys` keys, picked with a Zipf distribution of exponent `zipf` (0 picks all keys equally often).
+ *
+ * Key lengths are uniformly or normally distributed between `minKeyLength` and `maxKeyLength`.
+ *
+ * Options are given as `name=value` arguments, see `fromArguments()`.
+ */
+public final class DataGenerator {
+
+    public enum KeyLengthDistribution {
+        UNIFORM,
+        /** Centered between the bounds, with 99.7% of the lengths within them. Outliers are clamped. */
+        NORMAL
+    }
+
+    static final List<String> OPTION_NAMES = List.of("seed", "minKeyLength", "maxKeyLength", "keyLengthDistribution",
+            "distinctKeys", "zipf", "duplicateRatio", "presorted");
+
+    // Number of recent distinct records that duplicates are drawn from
+    private static final int DUPLICATE_POOL_SIZE = 1 << 12;
+    private static final int ALPHABET_SIZE = 26;
+
+    private long seed = 42;
+    private int minKeyLength = 8;
+    private int maxKeyLength = 32;
+    private KeyLengthDistribution keyLengthDistribution = KeyLengthDistribution.UNIFORM;
+    private long distinctKeys = 0;
+    private double zipf = 0;
+    private double duplicateRatio = 0;
+    private double presorted = 0;
+
+    /**
+     * Parses the generator options out of `name=value` arguments, other arguments are ignored.
+     */
+    public static DataGenerator fromArguments(final List<String> arguments) {
+        final DataGenerator generator = new DataGenerator();
+        for (final String argument : arguments) {
+            final String[] nameValue = argument.split("=", 2);
+            if (nameValue.length != 2) {
+                throw new IllegalArgumentException("Bad option " + argument + ", expected name=value");
+            }
+            final String value = nameValue[1];
+            switch (nameValue[0]) {
+                case "seed":
+                    generator.seed = Long.parseLong(value);
+                    break;
+                case "minKeyLength":
+                    generator.minKeyLength = Integer.parseInt(value);
+                    break;
+                case "maxKeyLength":
+                    generator.maxKeyLength = Integer.parseInt(value);
+                    break;
+                case "keyLengthDistribution":
+                    generator.keyLengthDistribution = KeyLengthDistribution.valueOf(value);
+                    break;
+                case "distinctKeys":
+                    generator.distinctKeys = Long.parseLong(value);
+                    break;
+                case "zipf":
+                    generator.zipf = Double.parseDouble(value);
+                    break;
+                case "duplicateRatio":
+                    generator.duplicateRatio = Double.parseDouble(value);
+                    break;
+                case "presorted":
+                    generator.presorted = Double.parseDouble(value);
+                    break;
+                default:
+                    // Not a generator option
+            }
+        }
+        if (generator.minKeyLength < 1 || generator.maxKeyLength < generator.minKeyLength) {
+            throw new IllegalArgumentException("Bad key lengths " + generator.minKeyLength + ".."
+                    + generator.maxKeyLength);
+        }
+        if (generator.distinctKeys < 0 || generator.zipf < 0) {
+            throw new IllegalArgumentException("Distinct keys and Zipf exponent must not be negative");
+        }
+        return generator;
+    }
+
+    /**
+     * Writes records to the file until it is at least `sizeInBytes` long.
+     * @return The size of the file.
+     */
+    public long generate(final File file, final long sizeInBytes) throws IOException {
+        final SplittableRandom random = new SplittableRandom(this.seed);
+        final ZipfSampler zipfSampler = this.distinctKeys > 0 && this.zipf > 0
+                ? new ZipfSampler(this.distinctKeys, this.zipf) : null;
+        final byte[][] pool = new byte[DUPLICATE_POOL_SIZE][];
+        int poolSize = 0;
+        final byte[] sortedKey = new byte[this.maxKeyLength];
+        long counter = 0;
+
+        long written = 0;
+        try (final LineWriter output = LineWriter.open(file)) {
+            while (written < sizeInBytes) {
+                final byte[] record;
+                if (random.nextDouble() < this.presorted) {
+                    toBase26(counter++, sortedKey);
+                    record = sortedKey;
+                } else if (poolSize > 0 && random.nextDouble() < this.duplicateRatio) {
+                    record = pool[random.nextInt(poolSize)];
+                } else {
+                    if (this.distinctKeys == 0) {
+                        record = this.key(random);
+                    } else {
+                        final long key = zipfSampler == null
+                                ? random.nextLong(this.distinctKeys) : zipfSampler.sample(random) - 1;
+                        record = this.key(new SplittableRandom(this.seed ^ (key * 0x9E3779B97F4A7C15L)));
+                    }
+                    if (poolSize < DUPLICATE_POOL_SIZE) {
+                        pool[poolSize++] = record;
+                    } else {
+                        pool[random.nextInt(DUPLICATE_POOL_SIZE)] = record;
+                    }
+                }
+                output.write(record, 0, record.length);
+                written += record.length + 1;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * A random key, its length and letters are taken from the given generator.
+     */
+    private byte[] key(final SplittableRandom random) {
+        final byte[] key = new byte[this.keyLength(random)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte) ('a' + random.nextInt(ALPHABET_SIZE));
+        }
+        return key;
+    }
+
+    private int keyLength(final SplittableRandom random) {
+        final int range = this.maxKeyLength - this.minKeyLength;
+        switch (this.keyLengthDistribution) {
+            case UNIFORM:
+                return this.minKeyLength + random.nextInt(range + 1);
+            case NORMAL: {
+                final long length = Math.round(this.minKeyLength + range / 2.0 + gaussian(random) * range / 6.0);
+                return (int) Math.max(this.minKeyLength, Math.min(this.maxKeyLength, length));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown key length distribution " + this.keyLengthDistribution);
+        }
+    }
+
+    /**
+     * A standard normally distributed value, with the Box-Muller transform.
+     */
+    private static double gaussian(final SplittableRandom random) {
+        return Math.sqrt(-2 * Math.log(1 - random.nextDouble())) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * Writes the number with the digits 'a' to 'z', padded to the length of the key.
+     */
+    private static void toBase26(long value, final byte[] key) {
+        for (int i = key.length - 1; i >= 0; i--) {
+            key[i] = (byte) ('a' + value % ALPHABET_SIZE);
+            value /= ALPHABET_SIZE;
+        }
+    }
+
+    /**
+     * Whether the `name=value` argument is a generator option.
+     */
+    static boolean isOption(final String argument) {
+        return OPTION_NAMES.contains(argument.split("=", 2)[0]);
+    }
+
+    @Override
+    public String toString() {
+        return "DataGenerator{" +
+                "seed=" + this.seed +
+                ", minKeyLength=" + this.minKeyLength +
+                ", maxKeyLength=" + this.maxKeyLength +
+                ", keyLengthDistribution=" + this.keyLengthDistribution +
+                ", distinctKeys=" + this.distinctKeys +
+                ", zipf=" + this.zipf +
+                ", duplicateRatio=" + this.duplicateRatio +
+                ", presorted=" + this.presorted +
+                '}';
+    }
+
+    /**
+     * Draws numbers from 1 to n with a Zipf distribution in constant time, with the rejection-inversion method of
+     * Hoermann and Derflinger ("Rejection-inversion to generate variates from monotone discrete distributions", 1996).
+     */
+    private static final class ZipfSampler {
+        private final long numElements;
+        private final double exponent;
+        private final double hIntegralX1;
+        private final double hIntegralNumElements;
+        private final double s;
+
+        private ZipfSampler(final long numElements, final double exponent) {
+            this.numElements = numElements;
+            this.exponent = exponent;
+            this.hIntegralX1 = this.hIntegral(1.5) - 1;
+            this.hIntegralNumElements = this.hIntegral(numElements + 0.5);
+            this.s = 2 - this.hIntegralInverse(this.hIntegral(2.5) - this.h(2));
+        }
+
+        private long sample(final SplittableRandom random) {
+            while (true) {
+                final double u = this.hIntegralNumElements
+                        + random.nextDouble() * (this.hIntegralX1 - this.hIntegralNumElements);
+                final double x = this.hIntegralInverse(u);
+                final long k = Math.max(1, Math.min(this.numElements, (long) (x + 0.5)));
+                if (k - x <= this.s || u >= this.hIntegral(k + 0.5) - this.h(k)) {
+                    return k;
+                }
+            }
+        }
+
+        private double hIntegral(final double x) {
+            final double logX = Math.log(x);
+            return helper2((1 - this.exponent) * logX) * logX;
+        }
+
+        private double h(final double x) {
+            return Math.exp(-this.exponent * Math.log(x));
+        }
+
+        private double hIntegralInverse(final double x) {
+            final double t = Math.max(-1, x * (1 - this.exponent));
+            return Math.exp(helper1(t) * x);
+        }
+
+        // log(1 + x) / x, also for x close to 0
+        private static double helper1(final double x) {
+            return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+        }
+
+        // (exp(x) - 1) / x, also for x close to 0
+        private static double helper2(final double x) {
+            return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3 * (1 + 0.25 * x));
+        }
+    }
+}
@@ -3,7 +3,12 @@ package com.github.hpides.exsort.executables;
 import static com.github.hpides.exsort.FileComparator.assertFileSortedCorrectly;
 
 import com.github.hpides.exsort.LocalFileSorter;
+import com.github.hpides.exsort.SortMetrics;
+import com.github.hpides.exsort.SortOptions;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This is the executable file for local file sorting.
@@ -13,22 +18,33 @@ import java.io.IOException;
  *
  * Usage: java -cp build/libs/exsort.jar \
  *          com.github.hpides.exsort.executables.LocalSorterMain \
- *          inputFile outputFile chunkSize expectedFile
+ *          inputFile outputFile chunkSize expectedFile [option=value ...]
+ *
+ * Options are passed on to the LocalFileSorter, see `SortOptions.fromArguments()`. For example, `parallelism=8`
+ * sorts up to 8 runs at the same time. `metrics=file` writes the metrics of the sort as JSON into the file, or to
+ * stdout with `metrics=-`, see `SortMetrics`. While the sort runs, they can be watched with JMX as `local`.
  *
  * You should not have to change any code in here.
  */
 public final class LocalSorterMain {
     public static void main(final String[] args) throws IOException {
-        if (args.length != 4) {
-            System.err.println("Usage: LocalSorterMain inputFile outputFile chunkSize expectedFile");
+        if (args.length < 4) {
+            System.err.println("Usage: LocalSorterMain inputFile outputFile chunkSize expectedFile [option=value ...]");
             System.exit(1);
         }
         final String inputFileName = args[0];
         final String outputFileName = args[1];
         final int chunkSize = Integer.parseInt(args[2]);
         final String expectedFileName = args[3];
+        final List<String> optionArgs = new ArrayList<>(Arrays.asList(args).subList(4, args.length));
+        final String metricsFileName = MetricsOutput.removeMetricsArgument(optionArgs);
+        final SortOptions options = SortOptions.fromArguments(optionArgs);
 
-        LocalFileSorter.sortFile(inputFileName, outputFileName, chunkSize);
+        final SortMetrics metrics = new SortMetrics();
+        metrics.register("local");
+        LocalFileSorter.sortFile(inputFileName, outputFileName, chunkSize, options.metrics(metrics));
+        metrics.unregister();
+        MetricsOutput.write(metrics, metricsFileName);
         assertFileSortedCorrectly(expectedFileName, outputFileName);
     }
 }
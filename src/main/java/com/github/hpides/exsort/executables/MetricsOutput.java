@@ -0,0 +1,46 @@
+package com.github.hpides.exsort.executables;
+
+import com.github.hpides.exsort.SortMetrics;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * The `metrics=file` argument of the executables, see `SortMetrics.toJson()`.
+ */
+final class MetricsOutput {
+    private static final String METRICS_OPTION = "metrics=";
+
+    private MetricsOutput() {
+    }
+
+    /**
+     * Takes the metrics argument out of the option arguments, so that they can be parsed as `SortOptions`.
+     * @return The file name of the metrics, or null if they are not written.
+     */
+    static String removeMetricsArgument(final List<String> optionArgs) {
+        String fileName = null;
+        for (int i = optionArgs.size() - 1; i >= 0; i--) {
+            if (optionArgs.get(i).startsWith(METRICS_OPTION)) {
+                fileName = optionArgs.remove(i).substring(METRICS_OPTION.length());
+            }
+        }
+        return fileName;
+    }
+
+    /**
+     * Writes the metrics as JSON into the file, to stdout if it is `-`, or nowhere if it is null.
+     */
+    static void write(final SortMetrics metrics, final String fileName) throws IOException {
+        if (fileName == null) {
+            return;
+        }
+        if (fileName.equals("-")) {
+            System.out.println(metrics.toJson());
+            return;
+        }
+        Files.write(Paths.get(fileName), (metrics.toJson() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
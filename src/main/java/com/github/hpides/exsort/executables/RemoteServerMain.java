@@ -6,18 +6,22 @@ import com.github.hpides.exsort.RemoteFileSorterServer;
  * This is the executable file for the remote file sorting server.
  *
  * Usage: java -cp build/libs/exsort.jar \
- *          com.github.hpides.exsort.executables.RemoteServerMain port
+ *          com.github.hpides.exsort.executables.RemoteServerMain port [maxConcurrentSorts]
+ *
+ * The server accepts any number of clients, but runs at most `maxConcurrentSorts` sorts at once (default 2).
  *
  * You should not have to change any code in here.
  */
 public final class RemoteServerMain {
     public static void main(final String[] args) {
-        if (args.length != 1) {
-            System.err.println("Usage: RemoteServerMain port");
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: RemoteServerMain port [maxConcurrentSorts]");
             System.exit(1);
         }
 
         final int port = Integer.parseInt(args[0]);
-        new RemoteFileSorterServer(port).run();
+        final int maxConcurrentSorts = args.length > 1
+                ? Integer.parseInt(args[1]) : RemoteFileSorterServer.DEFAULT_MAX_CONCURRENT_SORTS;
+        new RemoteFileSorterServer(port, maxConcurrentSorts).run();
     }
 }
@@ -4,6 +4,8 @@ import static com.github.hpides.exsort.FileComparator.assertFileSortedCorrectly;
 
 import com.github.hpides.exsort.RemoteFileSorter;
 import com.github.hpides.exsort.RemoteFileSorterClient;
+import com.github.hpides.exsort.SortMetrics;
+import com.github.hpides.exsort.SortOptions;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -19,7 +21,12 @@ import java.util.List;
  *
  * Usage: java -cp build/libs/exsort.jar \
  *          com.github.hpides.exsort.executables.RemoteFileSorter \
- *          inputFile outputFile chunkSize expectedFile remoteAddr:remotePort (1..N times)
+ *          inputFile outputFile chunkSize expectedFile remoteAddr:remotePort (1..N times) [option=value ...]
+ *
+ * Options are passed on to the RemoteFileSorter, see `SortOptions.fromArguments()`. For example,
+ * `remoteTransfer=CHUNKS` transfers the sorted files in chunks instead of streaming them. `metrics=file` writes the
+ * metrics of this node, including the transfer and idle time per remote node, as JSON into the file, or to stdout
+ * with `metrics=-`, see `SortMetrics`. While the sort runs, they can be watched with JMX as `collector`.
  *
  * You should not have to change any code in here.
  */
@@ -27,7 +34,7 @@ public final class RemoteSorterMain {
     public static void main(final String[] args) throws IOException {
         if (args.length < 5) {
             System.err.println("Usage: RemoteSorterMain inputFile outputFile chunkSize expectedFile "
-                    + "[remoteAddr:remotePort] (1..N times)");
+                    + "[remoteAddr:remotePort] (1..N times) [option=value ...]");
             System.exit(1);
         }
         final String inputFileName = args[0];
@@ -36,10 +43,13 @@ public final class RemoteSorterMain {
         final String expectedFileName = args[3];
 
         final int numFixedArgs = 4;
-        final int numRemoteSorters = args.length - numFixedArgs;
-
-        final List<RemoteFileSorterClient> remoteSorters = new ArrayList<>(numRemoteSorters);
+        final List<String> optionArgs = new ArrayList<>();
+        final List<RemoteFileSorterClient> remoteSorters = new ArrayList<>();
         for (int i = numFixedArgs; i < args.length; i ++) {
+            if (args[i].contains("=")) {
+                optionArgs.add(args[i]);
+                continue;
+            }
             final String[] remoteAddrPort = args[i].split(":");
             assert remoteAddrPort.length == 2 : "Bad remote address " + args[i];
             final String remoteAddr = remoteAddrPort[0];
@@ -47,8 +57,15 @@ public final class RemoteSorterMain {
             remoteSorters.add(new RemoteFileSorterClient(remoteAddr, remotePort));
         }
 
-        RemoteFileSorter.sortFile(inputFileName, outputFileName, chunkSize, remoteSorters);
+        final String metricsFileName = MetricsOutput.removeMetricsArgument(optionArgs);
+        final SortOptions options = SortOptions.fromArguments(optionArgs);
+
+        final SortMetrics metrics = new SortMetrics();
+        metrics.register("collector");
+        RemoteFileSorter.sortFile(inputFileName, outputFileName, chunkSize, remoteSorters, options.metrics(metrics));
         remoteSorters.forEach(RemoteFileSorterClient::close);
+        metrics.unregister();
+        MetricsOutput.write(metrics, metricsFileName);
 
         assertFileSortedCorrectly(expectedFileName, outputFileName);
     }
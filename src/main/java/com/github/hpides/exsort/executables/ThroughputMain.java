@@ -0,0 +1,246 @@
+package com.github.hpides.exsort.executables;
+
+import com.github.hpides.exsort.LineReader;
+import com.github.hpides.exsort.LocalFileSorter;
+import com.github.hpides.exsort.Records;
+import com.github.hpides.exsort.RemoteFileSorter;
+import com.github.hpides.exsort.RemoteFileSorterClient;
+import com.github.hpides.exsort.RemoteFileSorterServer;
+import com.github.hpides.exsort.SortMetrics;
+import com.github.hpides.exsort.SortOptions;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This is the executable file for throughput measurements on generated inputs.
+ * This will generate an input file with the DataGenerator, sort it with the LocalFileSorter, and sort it again with
+ * the RemoteFileSorter on servers that run in this process and are connected over loopback.
+ *
+ * Usage: java -cp build/libs/exsort.jar \
+ *          com.github.hpides.exsort.executables.ThroughputMain \
+ *          directory size chunkSize [option=value ...]
+ *
+ * Sizes may end in K, M or G. The input and the outputs are written into the directory. Options are:
+ *   - `nodes=N`: number of remote servers (default 2), 0 skips the remote sort.
+ *   - `verify=true`: checks that the outputs are sorted.
+ *   - The generator options, see `DataGenerator`. For example, `zipf=1.1 distinctKeys=1000000`.
+ *   - All other options are passed on to the sorters, see `SortOptions.fromArguments()`. Unlike there, the remote
+ *     requests do not time out by default, as the remote nodes sort several GB before they answer. Pass
+ *     `responseTimeout=ms` to set a deadline.
+ *
+ * For every phase, this reports MB/s, the peak resident set size, and the temporary bytes written, i.e., all bytes
+ * the process wrote minus the output file. Both are read from /proc and are -1 elsewhere. The remote phase sorts the
+ * input on every node, so its MB/s counts the input once per node, and its written bytes include the loopback
+ * traffic. Afterwards, the `SortMetrics` of the sorts break them down further.
+ */
+public final class ThroughputMain {
+    private static final int CONNECT_ATTEMPTS = 50;
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.err.println("Usage: ThroughputMain directory size chunkSize [option=value ...]");
+            System.exit(1);
+        }
+        final Path directory = Paths.get(args[0]);
+        final long size = parseSize(args[1]);
+        final int chunkSize = Math.toIntExact(parseSize(args[2]));
+
+        int nodes = 2;
+        boolean verify = false;
+        final List<String> generatorArgs = new ArrayList<>();
+        final List<String> sortArgs = new ArrayList<>();
+        // Given options come later and override it
+        sortArgs.add("responseTimeout=0");
+        for (final String argument : Arrays.asList(args).subList(3, args.length)) {
+            if (argument.startsWith("nodes=")) {
+                nodes = Integer.parseInt(argument.substring("nodes=".length()));
+            } else if (argument.startsWith("verify=")) {
+                verify = Boolean.parseBoolean(argument.substring("verify=".length()));
+            } else if (DataGenerator.isOption(argument)) {
+                generatorArgs.add(argument);
+            } else {
+                sortArgs.add(argument);
+            }
+        }
+        final DataGenerator generator = DataGenerator.fromArguments(generatorArgs);
+        final SortOptions options = SortOptions.fromArguments(sortArgs);
+        System.out.println(generator);
+        System.out.println(options);
+
+        Files.createDirectories(directory);
+        final File input = directory.resolve("input.txt").toFile();
+        final List<Phase> phases = new ArrayList<>();
+
+        final Phase generate = Phase.start("generate");
+        final long inputSize = generator.generate(input, size);
+        phases.add(generate.stop(inputSize, input));
+
+        final File localOutput = directory.resolve("local_output.txt").toFile();
+        final SortMetrics localMetrics = new SortMetrics();
+        final Phase local = Phase.start("local");
+        LocalFileSorter.sortFile(input.getPath(), localOutput.getPath(), chunkSize, options.metrics(localMetrics));
+        phases.add(local.stop(inputSize, localOutput));
+        if (verify) {
+            assertSorted(localOutput);
+        }
+
+        final SortMetrics remoteMetrics = new SortMetrics();
+        if (nodes > 0) {
+            final List<RemoteFileSorterClient> clients = startServers(nodes);
+            final File remoteOutput = directory.resolve("remote_output.txt").toFile();
+            final Phase remote = Phase.start("remote");
+            RemoteFileSorter.sortFile(input.getPath(), remoteOutput.getPath(), chunkSize, clients,
+                    options.metrics(remoteMetrics));
+            phases.add(remote.stop(inputSize * nodes, remoteOutput));
+            // Shuts the servers down
+            clients.forEach(RemoteFileSorterClient::close);
+            if (verify) {
+                assertSorted(remoteOutput);
+            }
+        }
+
+        System.out.printf("%-10s %12s %10s %10s %14s %16s%n",
+                "phase", "bytes", "seconds", "MB/s", "peak RSS (MB)", "temp written (MB)");
+        for (final Phase phase : phases) {
+            System.out.println(phase);
+        }
+        System.out.println("local metrics: " + localMetrics.toJson());
+        if (nodes > 0) {
+            System.out.println("collector metrics: " + remoteMetrics.toJson());
+        }
+    }
+
+    /**
+     * Parses a number of bytes with an optional K, M or G suffix.
+     */
+    private static long parseSize(final String size) {
+        final String digits = size.substring(0, size.length() - 1);
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                return Long.parseLong(digits) << 10;
+            case 'M':
+                return Long.parseLong(digits) << 20;
+            case 'G':
+                return Long.parseLong(digits) << 30;
+            default:
+                return Long.parseLong(size);
+        }
+    }
+
+    private static List<RemoteFileSorterClient> startServers(final int nodes) throws IOException, InterruptedException {
+        final List<RemoteFileSorterClient> clients = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            final int port;
+            try (final ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            final Thread server = new Thread(new RemoteFileSorterServer(port), "throughput-server-" + i);
+            server.setDaemon(true);
+            server.start();
+            clients.add(connect(port));
+        }
+        return clients;
+    }
+
+    private static RemoteFileSorterClient connect(final int port) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new RemoteFileSorterClient("localhost", port);
+            } catch (final RuntimeException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                // The server is not listening yet
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void assertSorted(final File file) throws IOException {
+        byte[] previous = new byte[0];
+        long numRecords = 0;
+        try (final LineReader reader = LineReader.open(file)) {
+            while (reader.next()) {
+                if (Records.compare(previous, 0, previous.length,
+                        reader.array(), reader.offset(), reader.length()) > 0) {
+                    throw new AssertionError(file + " is not sorted at record " + numRecords);
+                }
+                previous = Arrays.copyOfRange(reader.array(), reader.offset(), reader.offset() + reader.length());
+                numRecords++;
+            }
+        }
+        System.out.println(file + " is sorted, " + numRecords + " records.");
+    }
+
+    /**
+     * Reads a counter in kB or bytes from a `name: value` file in /proc/self.
+     * @return The value in bytes, or -1 if it is not available.
+     */
+    private static long readProcCounter(final String fileName, final String name, final long unit) {
+        try {
+            for (final String line : Files.readAllLines(Paths.get("/proc/self", fileName))) {
+                if (line.startsWith(name + ":")) {
+                    return Long.parseLong(line.substring(name.length() + 1).trim().split("\\s+")[0]) * unit;
+                }
+            }
+        } catch (final IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+    private static final class Phase {
+        private final String name;
+        private final long startNanos;
+        private final long startWritten;
+
+        private long bytes;
+        private double seconds;
+        private long peakRss;
+        private long tempWritten;
+
+        private Phase(final String name) {
+            this.name = name;
+            // Resets the peak RSS, needs Linux 4.0
+            try {
+                Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+            } catch (final IOException e) {
+                // The peak covers all phases so far then
+            }
+            this.startWritten = readProcCounter("io", "wchar", 1);
+            this.startNanos = System.nanoTime();
+        }
+
+        static Phase start(final String name) {
+            return new Phase(name);
+        }
+
+        Phase stop(final long bytes, final File output) {
+            this.seconds = (System.nanoTime() - this.startNanos) / 1e9;
+            this.bytes = bytes;
+            this.peakRss = readProcCounter("status", "VmHWM", 1024);
+            final long written = readProcCounter("io", "wchar", 1);
+            this.tempWritten = this.startWritten < 0 || written < 0
+                    ? -1 : Math.max(0, written - this.startWritten - output.length());
+            return this;
+        }
+
+        private static double megabytes(final long bytes) {
+            return bytes < 0 ? -1 : bytes / (double) (1 << 20);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-10s %12d %10.2f %10.1f %14.1f %16.1f", this.name, this.bytes, this.seconds,
+                    megabytes(this.bytes) / this.seconds, megabytes(this.peakRss), megabytes(this.tempWritten));
+        }
+    }
+}
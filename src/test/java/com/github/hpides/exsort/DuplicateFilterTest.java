@@ -0,0 +1,84 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.TestRecords.ListSink;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+
+    @Test
+    public void keepPassesTheSinkOn() {
+        final ListSink sink = new ListSink();
+        assertSame(sink, DuplicateFilter.collapse(sink, Duplicates.KEEP));
+        assertSame(sink, DuplicateFilter.output(sink, Duplicates.KEEP));
+    }
+
+    @Test
+    public void uniqueWritesEveryRecordOnce() throws IOException {
+        final ListSink sink = new ListSink();
+        writeAll(DuplicateFilter.collapse(sink, Duplicates.UNIQUE));
+        assertEquals(List.of("", "a", "ab", "b"), TestRecords.strings(sink.records));
+        assertEquals(List.of(1L, 1L, 1L, 1L), sink.counts);
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void countSumsTheCopies() throws IOException {
+        final ListSink sink = new ListSink();
+        writeAll(DuplicateFilter.collapse(sink, Duplicates.COUNT));
+        assertEquals(List.of("", "a", "ab", "b"), TestRecords.strings(sink.records));
+        assertEquals(List.of(2L, 6L, 1L, 2L), sink.counts);
+    }
+
+    @Test
+    public void countedOutputAppendsTheCounts() throws IOException {
+        final ListSink sink = new ListSink();
+        writeAll(DuplicateFilter.output(sink, Duplicates.COUNT));
+        assertEquals(List.of("\t2", "a\t6", "ab\t1", "b\t2"), TestRecords.strings(sink.records));
+        assertEquals(List.of(1L, 1L, 1L, 1L), sink.counts);
+    }
+
+    @Test
+    public void uniqueOutputHasNoCounts() throws IOException {
+        final ListSink sink = new ListSink();
+        writeAll(DuplicateFilter.output(sink, Duplicates.UNIQUE));
+        assertEquals(List.of("", "a", "ab", "b"), TestRecords.strings(sink.records));
+    }
+
+    @Test
+    public void longRecordsGrowThePendingRecord() throws IOException {
+        final byte[] record = new byte[1000];
+        final ListSink sink = new ListSink();
+        final RecordSink filter = DuplicateFilter.collapse(sink, Duplicates.COUNT);
+        filter.write(record, 0, record.length);
+        filter.write(ByteBuffer.wrap(record));
+        filter.close();
+        assertEquals(1, sink.records.size());
+        assertEquals(record.length, sink.records.get(0).length);
+        assertEquals(List.of(2L), sink.counts);
+    }
+
+    /**
+     * Writes a sorted stream with copies that are split between arrays, buffers and counted writes, like the runs
+     * of a merge, then closes the filter.
+     */
+    private static void writeAll(final RecordSink filter) throws IOException {
+        final byte[] array = "xaby".getBytes();
+        filter.write(array, 0, 0);
+        filter.write(ByteBuffer.allocate(0));
+        filter.write(array, 1, 1);
+        filter.write(ByteBuffer.wrap(array, 1, 1), 3);
+        filter.write(array, 1, 1, 2);
+        filter.write(array, 1, 2);
+        filter.write(ByteBuffer.wrap(array, 2, 1).slice());
+        filter.write(array, 2, 1);
+        filter.close();
+    }
+}
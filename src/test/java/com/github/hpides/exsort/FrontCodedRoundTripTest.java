@@ -0,0 +1,85 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.Test;
+
+/**
+ * Writes records with a FrontCodedWriter and reads them back with a FrontCodedReader.
+ */
+public class FrontCodedRoundTripTest {
+
+    @Test
+    public void longRecordAfterSharedPrefix() throws IOException {
+        // The second record grows the buffer of the previous record beyond its initial 64 bytes after a shared prefix,
+        // the third one has a prefix of NUL bytes, which must not match the bytes before the growth
+        final byte[] grown = new byte[102];
+        Arrays.fill(grown, (byte) 'x');
+        grown[0] = 'a';
+        grown[1] = 'b';
+        final List<byte[]> records = List.of("ab".getBytes(), grown, new byte[] {0, 0, 'x', 'y', 'z'});
+
+        for (final boolean deflate : new boolean[] {false, true}) {
+            final List<byte[]> decoded = roundTrip(records, deflate);
+            assertEquals(records.size(), decoded.size());
+            for (int i = 0; i < records.size(); i++) {
+                assertArrayEquals("record " + i, records.get(i), decoded.get(i));
+            }
+        }
+    }
+
+    @Test(expected = EOFException.class, timeout = 10_000)
+    public void truncatedDeflatedBlock() throws IOException {
+        final byte[] raw = new byte[1000];
+        new Random(1).nextBytes(raw);
+        final Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        final byte[] compressed = new byte[2000];
+        final int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+
+        // The header announces the whole block, but only half of the compressed bytes are stored
+        final int storedLength = compressedLength / 2;
+        final ByteBuffer run = ByteBuffer.allocate(FrontCodedWriter.BLOCK_HEADER_SIZE + storedLength);
+        run.putInt(raw.length).putInt(storedLength).put(compressed, 0, storedLength);
+        try (final FrontCodedReader reader = new FrontCodedReader(
+                Channels.newChannel(new ByteArrayInputStream(run.array())), true)) {
+            reader.next();
+        }
+    }
+
+    private static List<byte[]> roundTrip(final List<byte[]> records, final boolean deflate) throws IOException {
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (final FrontCodedWriter writer = new FrontCodedWriter(Channels.newChannel(encoded), deflate)) {
+            for (final byte[] record : records) {
+                writer.write(record, 0, record.length);
+            }
+        }
+
+        final List<byte[]> decoded = new ArrayList<>();
+        try (final FrontCodedReader reader = new FrontCodedReader(
+                Channels.newChannel(new ByteArrayInputStream(encoded.toByteArray())), deflate)) {
+            while (reader.next()) {
+                final ByteBuffer buffer = reader.buffer().duplicate();
+                buffer.position(reader.offset());
+                final byte[] record = new byte[reader.length()];
+                buffer.get(record);
+                decoded.add(record);
+            }
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Sorts the files in `data/` with the public methods of LocalFileSorter.
+ */
+public class LocalFileSorterTest {
+    private static final String UNSORTED = "data/unsorted_1MB.txt";
+
+    @Test
+    public void reallySortFileAcceptsEveryChunk() throws IOException {
+        for (final long chunkSize : new long[] {1_000, 10_000, 100_000, 1_000_000, 2_000_000}) {
+            final List<File> chunks = LocalFileSorter.chunkFile(UNSORTED, chunkSize);
+            assertTrue(!chunks.isEmpty());
+            for (final File chunk : chunks) {
+                final File sorted = File.createTempFile("sorted", ".tmp");
+                try {
+                    LocalFileSorter.reallySortFile(chunk.getPath(), sorted.getPath(), chunkSize);
+                    assertArrayEquals("chunks of " + chunkSize, sortLines(chunk), Files.readAllBytes(sorted.toPath()));
+                } finally {
+                    chunk.delete();
+                    sorted.delete();
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reallySortFileRejectsLargerInput() throws IOException {
+        final File sorted = File.createTempFile("sorted", ".tmp");
+        try {
+            LocalFileSorter.reallySortFile(UNSORTED, sorted.getPath(), new File(UNSORTED).length() - 1);
+        } finally {
+            sorted.delete();
+        }
+    }
+
+    @Test
+    public void sortFileMatchesExpectedOutput() throws IOException {
+        final File sorted = File.createTempFile("sorted", ".tmp");
+        try {
+            LocalFileSorter.sortFile(UNSORTED, sorted.getPath(), 100_000);
+            assertArrayEquals(Files.readAllBytes(new File("data/expected_1MB.txt").toPath()),
+                    Files.readAllBytes(sorted.toPath()));
+        } finally {
+            sorted.delete();
+        }
+    }
+
+    /**
+     * The lines of a file sorted by their unsigned bytes, each followed by a newline.
+     */
+    static byte[] sortLines(final File file) throws IOException {
+        return sortLines(file, 1);
+    }
+
+    /**
+     * Like `sortLines()` above, but every line occurs `copies` times, as in the output of several nodes that sort the
+     * same file.
+     */
+    static byte[] sortLines(final File file, final int copies) throws IOException {
+        final byte[] content = Files.readAllBytes(file.toPath());
+        final List<byte[]> lines = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                lines.add(Arrays.copyOfRange(content, start, i));
+                start = i + 1;
+            }
+        }
+        if (start < content.length) {
+            lines.add(Arrays.copyOfRange(content, start, content.length));
+        }
+        lines.sort(Arrays::compareUnsigned);
+
+        final byte[] sorted = new byte[(content.length + (start < content.length ? 1 : 0)) * copies];
+        int position = 0;
+        for (final byte[] line : lines) {
+            for (int copy = 0; copy < copies; copy++) {
+                System.arraycopy(line, 0, sorted, position, line.length);
+                position += line.length;
+                sorted[position++] = '\n';
+            }
+        }
+        return sorted;
+    }
+}
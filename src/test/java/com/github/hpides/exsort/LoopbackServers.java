@@ -0,0 +1,49 @@
+package com.github.hpides.exsort;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs RemoteFileSorterServers in this process, connected over loopback, like `ThroughputMain`. All nodes read the
+ * same input files, so every node sorts a copy of them.
+ */
+final class LoopbackServers {
+    private static final int CONNECT_ATTEMPTS = 50;
+
+    private LoopbackServers() {
+    }
+
+    /**
+     * Starts the servers and connects a client to each of them. Closing a client shuts its server down.
+     */
+    static List<RemoteFileSorterClient> start(final int nodes) throws IOException, InterruptedException {
+        final List<RemoteFileSorterClient> clients = new ArrayList<>(nodes);
+        for (int i = 0; i < nodes; i++) {
+            final int port;
+            try (final ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            final Thread server = new Thread(new RemoteFileSorterServer(port), "test-server-" + i);
+            server.setDaemon(true);
+            server.start();
+            clients.add(connect(port));
+        }
+        return clients;
+    }
+
+    private static RemoteFileSorterClient connect(final int port) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new RemoteFileSorterClient("localhost", port);
+            } catch (final RuntimeException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                // The server is not listening yet
+                Thread.sleep(100);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.github.hpides.exsort.TestRecords.ListSource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Merges sorted lists of records with a LoserTreeMerger.
+ */
+public class LoserTreeMergerTest {
+    private static final byte[] ALPHABET = {'a', 'b', 'c', (byte) 0x80, (byte) 0xFF};
+
+    @Test
+    public void mergesNoSources() throws IOException {
+        final LoserTreeMerger merger = new LoserTreeMerger(List.of());
+        assertFalse(merger.next());
+        assertFalse(merger.next());
+    }
+
+    @Test
+    public void mergesOneSource() throws IOException {
+        final List<byte[]> records = TestRecords.records("a", "b", "b", "c");
+        assertEquals(TestRecords.strings(records), merge(List.of(records)));
+    }
+
+    @Test
+    public void mergesEmptySources() throws IOException {
+        assertEquals(List.of(), merge(List.of(List.of())));
+        assertEquals(List.of(), merge(List.of(List.of(), List.of(), List.of())));
+    }
+
+    @Test
+    public void mergesManySources() throws IOException {
+        // Odd and even numbers of sources, so that the tree is not always complete, some of the sources are empty
+        for (final int numSources : new int[] {2, 3, 5, 8, 13}) {
+            final Random random = new Random(numSources);
+            final List<List<byte[]>> runs = new ArrayList<>();
+            final List<byte[]> all = new ArrayList<>();
+            for (int i = 0; i < numSources; i++) {
+                final List<byte[]> run = TestRecords.sorted(
+                        TestRecords.random(random, random.nextInt(3) * 200, 4, ALPHABET));
+                runs.add(run);
+                all.addAll(run);
+            }
+            assertEquals(numSources + " sources", TestRecords.strings(TestRecords.sorted(all)), merge(runs));
+        }
+    }
+
+    @Test
+    public void equalRecordsComeInSourceOrder() throws IOException {
+        final List<ListSource> sources = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            sources.add(new ListSource(TestRecords.records("a", "b")));
+        }
+        final LoserTreeMerger merger = new LoserTreeMerger(sources);
+        for (final String record : new String[] {"a", "b"}) {
+            for (final ListSource source : sources) {
+                merger.next();
+                assertEquals(source, merger.current());
+                assertEquals(record, new String(SampleSort.copyOf(merger.current()), StandardCharsets.ISO_8859_1));
+            }
+        }
+        assertFalse(merger.next());
+    }
+
+    private static List<String> merge(final List<List<byte[]>> runs) throws IOException {
+        final List<ListSource> sources = new ArrayList<>();
+        runs.forEach(run -> sources.add(new ListSource(run)));
+        final LoserTreeMerger merger = new LoserTreeMerger(sources);
+        final List<byte[]> merged = new ArrayList<>();
+        while (merger.next()) {
+            merged.add(SampleSort.copyOf(merger.current()));
+        }
+        assertFalse(merger.next());
+        return TestRecords.strings(merged);
+    }
+}
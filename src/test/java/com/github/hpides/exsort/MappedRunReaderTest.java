@@ -0,0 +1,80 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class MappedRunReaderTest {
+
+    @Test
+    public void readsRecordsAcrossWindows() throws IOException {
+        final byte[] longRecord = new byte[300];
+        Arrays.fill(longRecord, (byte) 'x');
+        final List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            records.add(("record" + i).getBytes());
+        }
+        // Longer than a window of 64 bytes, so the window has to grow
+        records.add(50, longRecord);
+        // Empty lines are records as well
+        records.add(new byte[0]);
+        records.add("last".getBytes());
+
+        final StringBuilder content = new StringBuilder();
+        for (final byte[] record : records) {
+            content.append(new String(record)).append('\n');
+        }
+        // The last line has no newline
+        content.setLength(content.length() - 1);
+        assertEquals(wrap(records), readAll(content.toString(), 64));
+    }
+
+    @Test
+    public void dropsCarriageReturns() throws IOException {
+        assertEquals(wrap(List.of("a".getBytes(), "b".getBytes())), readAll("a\r\nb\r\n", 4));
+    }
+
+    @Test
+    public void readsEmptyFile() throws IOException {
+        assertEquals(List.of(), readAll("", 64));
+    }
+
+    /**
+     * Wraps the records, so that they compare by value.
+     */
+    private static List<ByteBuffer> wrap(final List<byte[]> records) {
+        final List<ByteBuffer> wrapped = new ArrayList<>();
+        records.forEach(record -> wrapped.add(ByteBuffer.wrap(record)));
+        return wrapped;
+    }
+
+    private static List<ByteBuffer> readAll(final String content, final int windowSize) throws IOException {
+        final File file = File.createTempFile("mapped", ".tmp");
+        try {
+            Files.write(file.toPath(), content.getBytes());
+            final List<ByteBuffer> records = new ArrayList<>();
+            try (final MappedRunReader reader = new MappedRunReader(file, windowSize)) {
+                while (reader.next()) {
+                    final byte[] record = new byte[reader.length()];
+                    final ByteBuffer buffer = reader.buffer().duplicate();
+                    buffer.position(reader.offset());
+                    buffer.get(record);
+                    assertEquals(Records.prefix(record, 0, record.length), reader.prefix());
+                    records.add(ByteBuffer.wrap(record));
+                }
+                assertFalse(reader.next());
+            }
+            return records;
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MemoryBudgetTest {
+
+    @Test
+    public void ioBuffersAreReservedWithTheirRealSize() {
+        final MemoryBudget budget = new MemoryBudget(1 << 20);
+        budget.reserveIoBuffers(1 << 12);
+        assertEquals(1 << 12, budget.reserved());
+        assertEquals(1 << 20, budget.limit());
+    }
+
+    @Test
+    public void ioBuffersBeyondTheirShareRaiseTheLimit() {
+        final MemoryBudget budget = new MemoryBudget(16_000);
+        budget.reserveIoBuffers(3 * MergePlanner.MIN_BUFFER_SIZE);
+        assertEquals(3 * MergePlanner.MIN_BUFFER_SIZE, budget.reserved());
+        // The records still get everything but the share of the I/O buffers
+        assertEquals(15_000, budget.available());
+    }
+
+    @Test
+    public void splitBudgetsCountTowardsTheWhole() {
+        final MemoryBudget budget = new MemoryBudget(1000);
+        final MemoryBudget left = budget.split(600);
+        final MemoryBudget right = budget.split(600);
+        assertTrue(left.tryReserve(600));
+        // The part fits into its own limit, but not into the rest of the whole budget
+        assertFalse(right.tryReserve(500));
+        left.release(100);
+        assertTrue(right.tryReserve(500));
+        assertEquals(1000, budget.reserved());
+        assertEquals(1000, budget.peak());
+    }
+
+    @Test
+    public void recordBufferGrowthReservesOldAndNewArrays() {
+        final MemoryBudget budget = new MemoryBudget(1 << 24);
+        final RecordBuffer records = new RecordBuffer(budget);
+        final byte[] record = new byte[100];
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(records.add(record, 0, record.length));
+        }
+        // The arrays only grew, so the peak is above their final size only by the old arrays during the copies
+        assertTrue(budget.peak() > budget.reserved());
+        records.free();
+        assertEquals(0, budget.reserved());
+    }
+
+    @Test
+    public void recordBufferIsFullOnceTheBudgetIsUsedUp() {
+        final MemoryBudget budget = new MemoryBudget(1 << 20);
+        final RecordBuffer records = new RecordBuffer(budget);
+        final byte[] record = new byte[100];
+        int added = 0;
+        while (records.add(record, 0, record.length)) {
+            added++;
+        }
+        assertTrue(added > 0);
+        assertTrue(budget.peak() <= budget.limit());
+        // An empty buffer takes one record of any size
+        records.clear();
+        assertTrue(records.add(new byte[1 << 21], 0, 1 << 21));
+    }
+}
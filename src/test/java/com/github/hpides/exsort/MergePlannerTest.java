@@ -0,0 +1,92 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import com.github.hpides.exsort.TestRecords.ListSink;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class MergePlannerTest {
+    private static final byte[] ALPHABET = {'a', 'b', 'c', 'd'};
+
+    @Test
+    public void firstMergeLeavesFullMergesOnly() {
+        assertEquals(1, MergePlanner.firstMergeSize(1, 4));
+        assertEquals(4, MergePlanner.firstMergeSize(4, 4));
+        assertEquals(2, MergePlanner.firstMergeSize(5, 4));
+        assertEquals(4, MergePlanner.firstMergeSize(10, 4));
+        assertEquals(2, MergePlanner.firstMergeSize(100, 2));
+        for (int fanIn = 2; fanIn < 10; fanIn++) {
+            for (int numRuns = fanIn + 1; numRuns < 200; numRuns++) {
+                final int first = MergePlanner.firstMergeSize(numRuns, fanIn);
+                assertTrue(first >= 2 && first <= fanIn);
+                // Every later merge, including the final one, takes exactly `fanIn` runs
+                assertEquals(0, (numRuns - first + 1 - fanIn) % (fanIn - 1));
+            }
+        }
+    }
+
+    @Test
+    public void fanInIsBoundedByRunsAndMemory() {
+        final int fileSize = 2 * MergePlanner.MIN_BUFFER_SIZE;
+        // Every input and the output need their buffers
+        assertEquals(9, MergePlanner.maxFanIn(100, 10L * fileSize, 2));
+        assertEquals(5, MergePlanner.maxFanIn(5, 10L * fileSize, 2));
+        assertEquals(4, MergePlanner.maxFanIn(100, 5L * (fileSize + 1000), 2, 1000));
+        // At least two runs are merged, even if they do not fit
+        assertEquals(2, MergePlanner.maxFanIn(100, 1, 2));
+        assertEquals(2, MergePlanner.maxFanIn(1, 1 << 30, 2));
+    }
+
+    @Test
+    public void buffersAreClamped() {
+        assertEquals(MergePlanner.MIN_BUFFER_SIZE, MergePlanner.bufferSize(100, 1000, 2));
+        assertEquals(MergePlanner.MAX_BUFFER_SIZE, MergePlanner.bufferSize(2, 1L << 40, 2));
+        assertEquals(10_000, MergePlanner.bufferSize(4, 2 * 5 * 10_000, 2));
+        assertEquals(10_000, MergePlanner.bufferSize(4, 2 * 5 * 10_000 + 5 * 3_000, 2, 3_000));
+    }
+
+    @Test
+    public void mergesInSeveralPasses() throws IOException {
+        // Memory for three inputs and the output, so seven runs take a merge of three, then two full merges
+        final SortOptions options = SortOptions.defaults();
+        final long memory = 4L * 2 * MergePlanner.MIN_BUFFER_SIZE;
+        assertEquals(3, MergePlanner.maxFanIn(7, memory, 2));
+
+        final Random random = new Random(1);
+        final List<File> runs = new ArrayList<>();
+        final List<byte[]> all = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            final List<byte[]> records = TestRecords.sorted(TestRecords.random(random, 500 * (i + 1), 8, ALPHABET));
+            runs.add(writeRun(records));
+            all.addAll(records);
+        }
+        final ListSink output = new ListSink();
+        MergePlanner.mergeAll(runs, output, memory, options);
+
+        assertEquals(TestRecords.strings(TestRecords.sorted(all)), TestRecords.strings(output.records));
+        assertTrue(output.closed);
+        assertEquals(3, options.metrics().getMergePasses());
+        assertEquals(3, options.metrics().getMaxMergeFanIn());
+        for (final File run : runs) {
+            assertFalse(run + " was not deleted", run.exists());
+        }
+    }
+
+    private static File writeRun(final List<byte[]> records) throws IOException {
+        final File run = File.createTempFile("run", ".tmp");
+        try (final RecordSink writer = RunFiles.create(run, RunFormat.TEXT, MergePlanner.MIN_BUFFER_SIZE)) {
+            for (final byte[] record : records) {
+                writer.write(record, 0, record.length);
+            }
+        }
+        return run;
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.github.hpides.exsort.SortOptions.RemoteTransfer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Test;
+
+public class MergeTreeTest {
+    private static final String UNSORTED = "data/unsorted_1MB.txt";
+
+    @Test
+    public void nodesAreNumberedBreadthFirst() {
+        assertEquals(List.of(0, 1), MergeTree.children(MergeTree.ROOT, 2, 6));
+        assertEquals(List.of(2, 3), MergeTree.children(0, 2, 6));
+        assertEquals(List.of(4, 5), MergeTree.children(1, 2, 6));
+        assertEquals(List.of(), MergeTree.children(2, 2, 6));
+        // The last inner node may have fewer children
+        assertEquals(List.of(0, 1, 2), MergeTree.children(MergeTree.ROOT, 3, 4));
+        assertEquals(List.of(3), MergeTree.children(0, 3, 4));
+        assertEquals(List.of(), MergeTree.children(1, 3, 4));
+        // Fewer nodes than the fan-in
+        assertEquals(List.of(0), MergeTree.children(MergeTree.ROOT, 4, 1));
+    }
+
+    @Test(timeout = 60_000)
+    public void sortsThroughInnerNodes() throws IOException, InterruptedException {
+        // With a fan-in of 2, nodes 0 and 1 are inner nodes that merge the streams of nodes 2 to 4
+        final List<RemoteFileSorterClient> nodes = LoopbackServers.start(5);
+        final File output = File.createTempFile("sorted", ".tmp");
+        try {
+            RemoteFileSorter.sortFile(UNSORTED, output.getPath(), 200_000, nodes,
+                    SortOptions.defaults().remoteTransfer(RemoteTransfer.TREE).mergeTreeFanIn(2));
+            assertArrayEquals(LocalFileSorterTest.sortLines(new File(UNSORTED), 5),
+                    Files.readAllBytes(output.toPath()));
+        } finally {
+            output.delete();
+            nodes.forEach(RemoteFileSorterClient::close);
+        }
+    }
+}
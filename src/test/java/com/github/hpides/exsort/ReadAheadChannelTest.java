@@ -0,0 +1,91 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+
+public class ReadAheadChannelTest {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutDown() {
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void readsTheWholeChannel() throws IOException {
+        final byte[] content = new byte[100_000];
+        new Random(1).nextBytes(content);
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        try (final ReadAheadChannel channel = new ReadAheadChannel(
+                Channels.newChannel(new ByteArrayInputStream(content)), 4096, this.executor)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(1000);
+            while (channel.read(buffer) >= 0) {
+                copy.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        assertArrayEquals(content, copy.toByteArray());
+    }
+
+    @Test(timeout = 10_000)
+    public void closeWaitsForTheRunningRead() throws Exception {
+        final SlowChannel slow = new SlowChannel();
+        final ReadAheadChannel channel = new ReadAheadChannel(slow, 4096, this.executor);
+        slow.readStarted.await();
+        channel.close();
+        assertFalse(slow.isOpen());
+        assertFalse("read on a closed channel", slow.readAfterClose);
+        assertTrue(slow.readFinished);
+    }
+
+    /**
+     * Blocks in its first read for a while, as a slow disk would.
+     */
+    private static final class SlowChannel implements ReadableByteChannel {
+        final CountDownLatch readStarted = new CountDownLatch(1);
+        volatile boolean open = true;
+        volatile boolean readAfterClose;
+        volatile boolean readFinished;
+
+        @Override
+        public int read(final ByteBuffer target) throws IOException {
+            this.readStarted.countDown();
+            try {
+                Thread.sleep(200);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!this.open) {
+                this.readAfterClose = true;
+                throw new ClosedChannelException();
+            }
+            this.readFinished = true;
+            return -1;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() {
+            this.open = false;
+        }
+    }
+}
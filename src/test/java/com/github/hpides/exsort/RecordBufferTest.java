@@ -0,0 +1,113 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.hpides.exsort.TestRecords.ListSink;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Sorts records in a RecordBuffer and compares the order with `Arrays.compareUnsigned()`.
+ */
+public class RecordBufferTest {
+    // Zero and high bytes next to ASCII letters, so that prefix padding and unsigned comparison matter
+    private static final byte[] ALPHABET = {0, 'a', 'b', 'c', (byte) 0x7F, (byte) 0x80, (byte) 0xFF};
+
+    @Test
+    public void insertionSortsSmallBuffers() throws IOException {
+        // Below the insertion sort threshold, so the radix sort does not start at all
+        final List<byte[]> records = TestRecords.random(new Random(1), 20, 12, ALPHABET);
+        assertSorts(records);
+    }
+
+    @Test
+    public void radixSortsLargeBuffers() throws IOException {
+        final List<byte[]> records = TestRecords.random(new Random(2), 20_000, 20, ALPHABET);
+        assertSorts(records);
+    }
+
+    @Test
+    public void sortsRecordsThatDifferOnlyAfterTheirPrefixes() throws IOException {
+        // The radix passes below eight bytes read the prefixes, the ones above read the arena
+        final Random random = new Random(3);
+        final List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 5_000; i++) {
+            final byte[] record = new byte[8 + random.nextInt(4)];
+            Arrays.fill(record, 0, 8, (byte) 'p');
+            for (int j = 8; j < record.length; j++) {
+                record[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            records.add(record);
+        }
+        assertSorts(records);
+    }
+
+    @Test
+    public void zeroPaddedPrefixesAreTiedByLength() throws IOException {
+        // All prefixes are equal, only the lengths and the bytes after the prefix tell the records apart
+        assertSorts(List.of(new byte[] {'a', 0, 0}, new byte[] {'a'}, new byte[] {'a', 0}, new byte[0],
+                new byte[] {'a', 0, 0, 0, 0, 0, 0, 0, 0}, new byte[] {'a', 0, 0, 0, 0, 0, 0, 0}));
+    }
+
+    @Test
+    public void mergeSortsBeyondTheMaximumRadixDepth() throws IOException {
+        // Longer common prefixes than the radix sort recurses into, with enough records to skip the insertion sort
+        final byte[] common = new byte[300];
+        Arrays.fill(common, (byte) 'x');
+        final List<byte[]> tails = TestRecords.random(new Random(4), 500, 6, ALPHABET);
+        final List<byte[]> records = new ArrayList<>();
+        for (final byte[] tail : tails) {
+            final byte[] record = Arrays.copyOf(common, common.length + tail.length);
+            System.arraycopy(tail, 0, record, common.length, tail.length);
+            records.add(record);
+        }
+        assertSorts(records);
+    }
+
+    @Test
+    public void keepsInsertionOrderWithoutSort() throws IOException {
+        final List<byte[]> records = TestRecords.records("c", "a", "b");
+        final RecordBuffer buffer = fill(records);
+        final ListSink sink = new ListSink();
+        buffer.writeTo(sink);
+        assertEquals(TestRecords.strings(records), TestRecords.strings(sink.records));
+        buffer.free();
+    }
+
+    @Test
+    public void clearKeepsTheBufferUsable() throws IOException {
+        final RecordBuffer buffer = fill(TestRecords.records("z", "y"));
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        final List<byte[]> records = TestRecords.random(new Random(5), 1_000, 10, ALPHABET);
+        records.forEach(record -> assertTrue(buffer.add(record, 0, record.length)));
+        buffer.sort();
+        final ListSink sink = new ListSink();
+        buffer.writeTo(sink);
+        assertEquals(TestRecords.strings(TestRecords.sorted(records)), TestRecords.strings(sink.records));
+        buffer.free();
+    }
+
+    private static void assertSorts(final List<byte[]> records) throws IOException {
+        final RecordBuffer buffer = fill(records);
+        assertEquals(records.size(), buffer.size());
+        buffer.sort();
+        final ListSink sink = new ListSink();
+        buffer.writeTo(sink);
+        assertEquals(TestRecords.strings(TestRecords.sorted(records)), TestRecords.strings(sink.records));
+        buffer.free();
+    }
+
+    private static RecordBuffer fill(final List<byte[]> records) {
+        final RecordBuffer buffer = new RecordBuffer(new MemoryBudget(1 << 26));
+        for (final byte[] record : records) {
+            assertTrue(buffer.add(record, 0, record.length));
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+
+import com.github.hpides.exsort.TestRecords.ListSource;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The normalized key prefixes and the comparisons of raw records.
+ */
+public class RecordsTest {
+    private static final byte[] ALPHABET = {0, 1, 'a', 'b', (byte) 0x7F, (byte) 0x80, (byte) 0xFE, (byte) 0xFF};
+
+    @Test
+    public void shortRecordsArePaddedWithZeros() {
+        assertEquals(0L, Records.prefix(new byte[0], 0, 0));
+        assertEquals(0x6162000000000000L, Records.prefix("ab".getBytes(), 0, 2));
+        assertEquals(0xFF00000000000000L, Records.prefix(new byte[] {(byte) 0xFF}, 0, 1));
+        // Only the first eight bytes count, from the given offset on
+        assertEquals(0x0102030405060708L, Records.prefix(new byte[] {9, 1, 2, 3, 4, 5, 6, 7, 8, 9}, 1, 9));
+    }
+
+    @Test
+    public void bufferPrefixesMatchArrayPrefixes() {
+        final List<byte[]> records = TestRecords.random(new Random(1), 1_000, 12, ALPHABET);
+        for (final byte[] record : records) {
+            final ByteBuffer direct = ByteBuffer.allocateDirect(record.length + 3);
+            direct.position(3);
+            direct.put(record);
+            assertEquals(Records.prefix(record, 0, record.length), Records.prefix(direct, 3, record.length));
+        }
+    }
+
+    @Test
+    public void unsignedPrefixOrderMatchesByteOrder() {
+        final List<byte[]> records = TestRecords.random(new Random(2), 300, 10, ALPHABET);
+        for (final byte[] left : records) {
+            for (final byte[] right : records) {
+                final long leftPrefix = Records.prefix(left, 0, left.length);
+                final long rightPrefix = Records.prefix(right, 0, right.length);
+                if (leftPrefix != rightPrefix) {
+                    assertEquals(Integer.signum(Arrays.compareUnsigned(left, right)),
+                            Integer.signum(Long.compareUnsigned(leftPrefix, rightPrefix)));
+                } else {
+                    // Equal prefixes only tell that the first bytes are equal
+                    final int known = Records.prefixLength(left.length, right.length);
+                    assertEquals(0, Arrays.compare(left, 0, known, right, 0, known));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void offHeapComparisonMatchesUnsignedBytes() {
+        // Long enough for the comparison of eight bytes at a time, and with a tail of single bytes
+        final List<byte[]> records = TestRecords.random(new Random(3), 300, 21, new byte[] {'a', (byte) 0xE0});
+        for (final byte[] left : records) {
+            for (final byte[] right : records) {
+                assertEquals(Integer.signum(Arrays.compareUnsigned(left, right)), Integer.signum(
+                        Records.compare(direct(left), 1, left.length, direct(right), 1, right.length)));
+            }
+        }
+    }
+
+    @Test
+    public void sourcesCompareByPrefixAndRest() {
+        final List<byte[]> records = TestRecords.records("abcdefgh", "abcdefghi", "abcdefgh\u0080", "abc", "abc\0",
+                "\u00ff", "");
+        for (final byte[] left : records) {
+            for (final byte[] right : records) {
+                final ListSource leftSource = new ListSource(List.of(left));
+                final ListSource rightSource = new ListSource(List.of(right));
+                leftSource.next();
+                rightSource.next();
+                assertEquals(Integer.signum(Arrays.compareUnsigned(left, right)),
+                        Integer.signum(Records.compare(leftSource, rightSource)));
+            }
+        }
+    }
+
+    /**
+     * Copies the record into a direct buffer behind one byte of padding.
+     */
+    private static ByteBuffer direct(final byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(record.length + 1);
+        buffer.put((byte) 0xAA).put(record);
+        return buffer;
+    }
+}
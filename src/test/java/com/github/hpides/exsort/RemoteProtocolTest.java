@@ -0,0 +1,196 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The messages of the binary protocol between RemoteFileSorterClient and RemoteFileSorterServer.
+ */
+public class RemoteProtocolTest {
+    private static final String UNSORTED = "data/unsorted_1MB.txt";
+
+    private RemoteFileSorterClient client;
+
+    @Before
+    public void startServer() throws IOException, InterruptedException {
+        this.client = LoopbackServers.start(1).get(0);
+    }
+
+    @After
+    public void stopServer() {
+        this.client.close();
+    }
+
+    @Test(timeout = 30_000)
+    public void requestsInFlightGetTheirOwnResponses() throws IOException {
+        final File remoteOutput = File.createTempFile("remote", ".tmp");
+        try {
+            // Both requests are sent before any response arrives, the sorts answer in any order
+            final CompletableFuture<Void> sort = this.client.sortRemoteFileAsync(UNSORTED, remoteOutput.getPath(),
+                    100_000);
+            final CompletableFuture<RecordSource> stream = this.client.streamSortedRemoteFileAsync(UNSORTED, 50_000,
+                    LocalFileSorter.MERGE_BUFFER_SIZE);
+            final byte[] expected = LocalFileSorterTest.sortLines(new File(UNSORTED));
+            assertArrayEquals(expected, readLines(stream.join()));
+            sort.join();
+
+            // The output is larger than half of a chunk, so it comes back in two chunks
+            this.client.chunkRemoteFile(remoteOutput.getPath(), expected.length / 2 + 100);
+            final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            for (int i = 0; i < 2; i++) {
+                final File chunk = this.client.getNextFileChunk().get();
+                chunks.write(Files.readAllBytes(chunk.toPath()));
+                chunk.delete();
+            }
+            assertFalse(this.client.getNextFileChunk().isPresent());
+            assertArrayEquals(expected, chunks.toByteArray());
+
+            // Only the failed request fails, the one after it on the connection goes on
+            final CompletableFuture<Void> failing = this.client.sortRemoteFileAsync("data/does_not_exist.txt",
+                    remoteOutput.getPath(), 100_000);
+            final CompletableFuture<RecordSource> next = this.client.streamSortedRemoteFileAsync(UNSORTED, 50_000,
+                    LocalFileSorter.MERGE_BUFFER_SIZE);
+            try {
+                failing.join();
+                fail("Sorted a missing file");
+            } catch (final CompletionException e) {
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("does_not_exist"));
+            }
+            assertArrayEquals(expected, readLines(next.join()));
+        } finally {
+            // The remote node writes its output next to the local name, with the session in the name
+            final File[] outputs = remoteOutput.getParentFile().listFiles(
+                    (directory, name) -> name.startsWith(remoteOutput.getName()));
+            for (final File output : outputs) {
+                output.delete();
+            }
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void everyWireFormatStreamsTheSameRecords() throws IOException {
+        final byte[] expected = LocalFileSorterTest.sortLines(new File(UNSORTED));
+        for (final RunFormat format : RunFormat.values()) {
+            // A session per format, the format is negotiated at its start
+            final RemoteFileSorterClient session = RemoteFileSorterClient.connect(this.client.address(),
+                    RunFormat.TEXT, Duplicates.KEEP);
+            try {
+                assertEquals(format, session.negotiateWireFormat(format));
+                assertArrayEquals(format.name(), expected, readLines(session.streamSortedRemoteFile(UNSORTED,
+                        100_000, LocalFileSorter.MERGE_BUFFER_SIZE)));
+            } finally {
+                session.disconnect();
+            }
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void countedStreamsCarryTheCounts() throws IOException {
+        final File input = File.createTempFile("input", ".tmp");
+        try {
+            Files.write(input.toPath(), "b\na\nc\nb\nb\na\n".getBytes());
+            // The server accepts text, but streams counted records front coded anyway
+            assertEquals(RunFormat.TEXT, this.client.negotiate(RunFormat.TEXT, Duplicates.COUNT));
+            final List<String> records = new ArrayList<>();
+            final List<Long> counts = new ArrayList<>();
+            try (final RecordSource stream = this.client.streamSortedRemoteFile(input.getPath(), 100_000,
+                    LocalFileSorter.MERGE_BUFFER_SIZE)) {
+                while (stream.next()) {
+                    records.add(new String(SampleSort.copyOf(stream), StandardCharsets.US_ASCII));
+                    counts.add(stream.count());
+                }
+            }
+            assertEquals(List.of("a", "b", "c"), records);
+            assertEquals(List.of(2L, 3L, 1L), counts);
+        } finally {
+            input.delete();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void slowRequestTimesOutAlone() throws IOException {
+        this.client.setResponseTimeout(1);
+        final CompletableFuture<RecordSource> slow = this.client.streamSortedRemoteFileAsync(UNSORTED, 100_000,
+                LocalFileSorter.MERGE_BUFFER_SIZE);
+        try {
+            slow.join();
+            fail("The sort answered within 1 ms");
+        } catch (final CompletionException e) {
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith("No response"));
+        }
+
+        // The late response is skipped, so the connection still works
+        this.client.setResponseTimeout(0);
+        assertEquals(RunFormat.FRONT_CODED, this.client.negotiateWireFormat(RunFormat.FRONT_CODED));
+        assertArrayEquals(LocalFileSorterTest.sortLines(new File(UNSORTED)), readLines(
+                this.client.streamSortedRemoteFile(UNSORTED, 100_000, LocalFileSorter.MERGE_BUFFER_SIZE)));
+    }
+
+    @Test
+    public void stringsRoundTrip() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        RemoteFileSorterServer.writeString(output, "/tmp/input.txt");
+        RemoteFileSorterServer.writeStrings(output, List.of("localhost:5000", "", "h\u00f6st:5001"));
+
+        final DataInputStream input = input(bytes.toByteArray());
+        assertEquals("/tmp/input.txt", RemoteFileSorterServer.readString(input));
+        assertEquals(List.of("localhost:5000", "", "h\u00f6st:5001"), RemoteFileSorterServer.readStrings(input));
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeStringLengthIsRejected() throws IOException {
+        RemoteFileSorterServer.readString(input(new byte[] {-1, -1, -1, -1}));
+    }
+
+    @Test(expected = IOException.class)
+    public void hugeStringLengthIsRejected() throws IOException {
+        // Would be an allocation of 2 GiB
+        RemoteFileSorterServer.readString(input(new byte[] {0x7F, -1, -1, -1}));
+    }
+
+    @Test(expected = IOException.class)
+    public void hugeStringListIsRejected() throws IOException {
+        RemoteFileSorterServer.readStrings(input(new byte[] {0x7F, -1, -1, -1}));
+    }
+
+    /**
+     * Reads a stream as text lines, records with a count as that many lines, and closes it.
+     */
+    private static byte[] readLines(final RecordSource stream) throws IOException {
+        final ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        try (final RecordSource records = stream;
+             final LineWriter output = new LineWriter(Channels.newChannel(lines), MergePlanner.MIN_BUFFER_SIZE)) {
+            while (records.next()) {
+                records.writeTo(output);
+            }
+        }
+        return lines.toByteArray();
+    }
+
+    private static DataInputStream input(final byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.hpides.exsort.SortOptions.RunFormat;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * The runs of replacement selection on inputs with a known order.
+ */
+public class ReplacementSelectionTest {
+    private static final byte[] LETTERS = "abcdefghijklmnopqrstuvwxyz".getBytes();
+    private static final int RECORD_LENGTH = 16;
+    private static final long MEMORY = 1 << 19;
+    // What a record in the heap takes at least: its array and its slot
+    private static final long RECORD_MEMORY = MemoryBudget.arraySize(RECORD_LENGTH) + 16;
+
+    @Test
+    public void sortedInputIsOneRun() throws IOException {
+        final List<byte[]> records = TestRecords.sorted(input(new Random(1), 50_000));
+        final List<List<byte[]>> runs = createRuns(records);
+        assertEquals(1, runs.size());
+        assertEquals(TestRecords.strings(records), TestRecords.strings(runs.get(0)));
+    }
+
+    @Test
+    public void reverseSortedInputFillsTheMemoryOnce() throws IOException {
+        final List<List<byte[]>> runs = createRuns(reverseSorted());
+        // Every record is smaller than the last written one, so every run is one filling of the memory
+        assertTrue(runs.size() > 2);
+        final int memoryRecords = runs.get(0).size();
+        assertTrue(memoryRecords + " records", memoryRecords <= MEMORY / RECORD_MEMORY);
+        for (final List<byte[]> run : runs.subList(0, runs.size() - 1)) {
+            assertEquals(memoryRecords, run.size());
+        }
+    }
+
+    @Test
+    public void randomInputRunsAreLongerThanTheMemory() throws IOException {
+        final int memoryRecords = createRuns(reverseSorted()).get(0).size();
+        final List<List<byte[]>> runs = createRuns(input(new Random(3), 100_000));
+        // About twice the memory on average, the last run may be shorter
+        for (final List<byte[]> run : runs.subList(0, runs.size() - 1)) {
+            assertTrue(run.size() + " records", run.size() > 1.5 * memoryRecords);
+        }
+    }
+
+    private static List<byte[]> reverseSorted() {
+        final List<byte[]> records = TestRecords.sorted(input(new Random(2), 50_000));
+        Collections.reverse(records);
+        return records;
+    }
+
+    private static List<byte[]> input(final Random random, final int numRecords) {
+        final List<byte[]> records = new ArrayList<>(numRecords);
+        for (int i = 0; i < numRecords; i++) {
+            final byte[] record = new byte[RECORD_LENGTH];
+            for (int j = 0; j < record.length; j++) {
+                record[j] = LETTERS[random.nextInt(LETTERS.length)];
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Creates the runs of the records and checks that every run is sorted and that they hold all records.
+     */
+    private static List<List<byte[]>> createRuns(final List<byte[]> records) throws IOException {
+        final File input = File.createTempFile("input", ".tmp");
+        final List<List<byte[]>> runs = new ArrayList<>();
+        try {
+            final StringBuilder content = new StringBuilder();
+            TestRecords.strings(records).forEach(record -> content.append(record).append('\n'));
+            Files.write(input.toPath(), content.toString().getBytes());
+            final List<byte[]> all = new ArrayList<>();
+            for (final File run : ReplacementSelection.createSortedRuns(input.getPath(), new MemoryBudget(MEMORY),
+                    SortOptions.defaults())) {
+                final List<byte[]> runRecords = new ArrayList<>();
+                try (final RecordSource reader = RunFiles.open(run, RunFormat.TEXT, MergePlanner.MIN_BUFFER_SIZE)) {
+                    while (reader.next()) {
+                        runRecords.add(SampleSort.copyOf(reader));
+                    }
+                } finally {
+                    run.delete();
+                }
+                assertEquals(TestRecords.strings(TestRecords.sorted(runRecords)), TestRecords.strings(runRecords));
+                runs.add(runRecords);
+                all.addAll(runRecords);
+            }
+            assertEquals(TestRecords.strings(TestRecords.sorted(records)),
+                    TestRecords.strings(TestRecords.sorted(all)));
+        } finally {
+            input.delete();
+        }
+        return runs;
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.hpides.exsort.SortOptions.RemoteTransfer;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+
+public class SampleSortTest {
+    private static final String UNSORTED = "data/unsorted_1MB.txt";
+
+    @Test
+    public void splittersBelongToTheRangeBelowThem() {
+        final byte[][] splitters = TestRecords.records("b", "d").toArray(new byte[0][]);
+        final List<byte[]> records = TestRecords.records("", "a", "b", "ba", "c", "d", "d\0", "e", "\u00ff");
+        final List<Integer> ranges = new ArrayList<>();
+        for (final byte[] record : records) {
+            ranges.add(SampleSort.rangeOf(splitters, record, 0, record.length));
+        }
+        assertEquals(List.of(0, 0, 0, 1, 1, 1, 2, 2, 2), ranges);
+        assertEquals(0, SampleSort.rangeOf(new byte[0][], new byte[] {'a'}, 0, 1));
+    }
+
+    @Test
+    public void splittersAreEvenlySpaced() {
+        final List<String> samples = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            samples.add(String.format("%02d", i));
+        }
+        Collections.shuffle(samples, new Random(1));
+        final List<byte[]> sampleBytes = TestRecords.records(samples.toArray(new String[0]));
+        assertEquals(List.of("25", "50", "75"), TestRecords.strings(SampleSort.chooseSplitters(sampleBytes, 4)));
+        assertEquals(List.of(), SampleSort.chooseSplitters(sampleBytes, 1));
+        // Without samples, all records end up in the last range
+        assertEquals(List.of("", ""), TestRecords.strings(SampleSort.chooseSplitters(List.of(), 3)));
+    }
+
+    @Test
+    public void samplesAreInputRecords() throws IOException {
+        final Set<String> input = new HashSet<>(Files.readAllLines(new File(UNSORTED).toPath()));
+        final List<byte[]> sample = SampleSort.sample(UNSORTED, 100);
+        assertEquals(100, sample.size());
+        for (final String record : TestRecords.strings(sample)) {
+            assertTrue(record, input.contains(record));
+        }
+        // A sample larger than the file is the whole file
+        assertEquals(input.size(), new HashSet<>(TestRecords.strings(SampleSort.sample(UNSORTED, 1 << 20))).size());
+    }
+
+    @Test(timeout = 60_000)
+    public void rangesAreSortedAcrossNodes() throws IOException, InterruptedException {
+        final List<RemoteFileSorterClient> nodes = LoopbackServers.start(3);
+        final File output = File.createTempFile("sorted", ".tmp");
+        try {
+            RemoteFileSorter.sortFile(UNSORTED, output.getPath(), 200_000, nodes,
+                    SortOptions.defaults().remoteTransfer(RemoteTransfer.RANGES));
+            assertArrayEquals(LocalFileSorterTest.sortLines(new File(UNSORTED), 3),
+                    Files.readAllBytes(output.toPath()));
+        } finally {
+            output.delete();
+            nodes.forEach(RemoteFileSorterClient::close);
+        }
+    }
+}
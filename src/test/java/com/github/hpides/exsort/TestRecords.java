@@ -0,0 +1,144 @@
+package com.github.hpides.exsort;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Records in memory for the tests: random records, a sink that collects what is written to it, and a source over a
+ * list of records.
+ */
+final class TestRecords {
+
+    private TestRecords() {
+    }
+
+    /**
+     * Random records of 0 to `maxLength` bytes. A small alphabet makes long shared prefixes and duplicates likely,
+     * bytes above 127 check that records are compared as unsigned bytes.
+     */
+    static List<byte[]> random(final Random random, final int numRecords, final int maxLength, final byte[] alphabet) {
+        final List<byte[]> records = new ArrayList<>(numRecords);
+        for (int i = 0; i < numRecords; i++) {
+            final byte[] record = new byte[random.nextInt(maxLength + 1)];
+            for (int j = 0; j < record.length; j++) {
+                record[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    static List<byte[]> sorted(final List<byte[]> records) {
+        final List<byte[]> sorted = new ArrayList<>(records);
+        sorted.sort(Arrays::compareUnsigned);
+        return sorted;
+    }
+
+    static List<byte[]> records(final String... records) {
+        final List<byte[]> bytes = new ArrayList<>(records.length);
+        for (final String record : records) {
+            bytes.add(record.getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return bytes;
+    }
+
+    /**
+     * The records as strings with one char per byte, so that lists of them compare by value and print readably.
+     */
+    static List<String> strings(final List<byte[]> records) {
+        final List<String> strings = new ArrayList<>(records.size());
+        records.forEach(record -> strings.add(new String(record, StandardCharsets.ISO_8859_1)));
+        return strings;
+    }
+
+    /**
+     * Collects the records and their counts.
+     */
+    static final class ListSink implements RecordSink {
+        final List<byte[]> records = new ArrayList<>();
+        final List<Long> counts = new ArrayList<>();
+        boolean closed;
+
+        @Override
+        public void write(final byte[] array, final int offset, final int length) {
+            this.write(array, offset, length, 1);
+        }
+
+        @Override
+        public void write(final byte[] array, final int offset, final int length, final long count) {
+            this.records.add(Arrays.copyOfRange(array, offset, offset + length));
+            this.counts.add(count);
+        }
+
+        @Override
+        public void write(final ByteBuffer record) {
+            this.write(record, 1);
+        }
+
+        @Override
+        public void write(final ByteBuffer record, final long count) {
+            final byte[] copy = new byte[record.remaining()];
+            record.get(copy);
+            this.records.add(copy);
+            this.counts.add(count);
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+
+    /**
+     * Returns the records of a list in order, each from its own heap buffer.
+     */
+    static final class ListSource implements RecordSource {
+        private final List<byte[]> records;
+        private int position = -1;
+        private ByteBuffer buffer;
+        boolean closed;
+
+        ListSource(final List<byte[]> records) {
+            this.records = records;
+        }
+
+        @Override
+        public boolean next() {
+            if (this.position + 1 >= this.records.size()) {
+                this.position = this.records.size();
+                return false;
+            }
+            this.buffer = ByteBuffer.wrap(this.records.get(++this.position));
+            return true;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return this.buffer;
+        }
+
+        @Override
+        public int offset() {
+            return 0;
+        }
+
+        @Override
+        public int length() {
+            return this.buffer.capacity();
+        }
+
+        @Override
+        public long prefix() {
+            return Records.prefix(this.buffer.array(), 0, this.length());
+        }
+
+        @Override
+        public void close() {
+            this.closed = true;
+        }
+    }
+}
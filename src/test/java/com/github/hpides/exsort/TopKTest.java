@@ -0,0 +1,109 @@
+package com.github.hpides.exsort;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.github.hpides.exsort.SortOptions.Duplicates;
+import com.github.hpides.exsort.TestRecords.ListSink;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Test;
+
+/**
+ * The limit of `SortOptions.limit()`: the LimitedSink that cuts off runs and merges, and the TopK selection.
+ */
+public class TopKTest {
+    private static final String INPUT = "d\nb\na\nc\nb\na\ne\na\n";
+
+    @Test
+    public void noLimitPassesTheSinkOn() {
+        final ListSink sink = new ListSink();
+        assertSame(sink, LimitedSink.wrap(sink, SortOptions.defaults()));
+    }
+
+    @Test
+    public void limitedSinkCountsCopies() throws IOException {
+        final ListSink sink = new ListSink();
+        final RecordSink limited = LimitedSink.wrap(sink, SortOptions.defaults().limit(4));
+        limited.write("a".getBytes(), 0, 1);
+        limited.write(ByteBuffer.wrap("b".getBytes()));
+        assertFalse(limited.isFull());
+        // Only as many copies as the limit leaves
+        limited.write("c".getBytes(), 0, 1, 5);
+        assertTrue(limited.isFull());
+        limited.write("d".getBytes(), 0, 1);
+        limited.write(ByteBuffer.wrap("e".getBytes()), 2);
+        limited.close();
+        assertEquals(List.of("a", "b", "c"), TestRecords.strings(sink.records));
+        assertEquals(List.of(1L, 1L, 2L), sink.counts);
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void limitedSinkCountsDistinctRecords() throws IOException {
+        final ListSink sink = new ListSink();
+        final RecordSink limited = LimitedSink.wrap(sink, SortOptions.defaults().limit(2)
+                .duplicates(Duplicates.COUNT));
+        limited.write("a".getBytes(), 0, 1, 5);
+        assertFalse(limited.isFull());
+        limited.write(ByteBuffer.wrap("b".getBytes()), 3);
+        assertTrue(limited.isFull());
+        limited.write("c".getBytes(), 0, 1, 1);
+        assertEquals(List.of("a", "b"), TestRecords.strings(sink.records));
+        assertEquals(List.of(5L, 3L), sink.counts);
+    }
+
+    @Test
+    public void topKKeepsTheSmallestCopies() throws IOException {
+        final ListSink sink = select(SortOptions.defaults().limit(4), 1 << 20).get();
+        assertEquals(List.of("a", "b"), TestRecords.strings(sink.records));
+        assertEquals(List.of(3L, 1L), sink.counts);
+    }
+
+    @Test
+    public void topKKeepsTheSmallestDistinctRecords() throws IOException {
+        final ListSink unique = select(SortOptions.defaults().limit(3).duplicates(Duplicates.UNIQUE), 1 << 20).get();
+        assertEquals(List.of("a", "b", "c"), TestRecords.strings(unique.records));
+
+        // The copies of the largest kept record are still counted once it is the largest
+        final ListSink counted = select(SortOptions.defaults().limit(2).duplicates(Duplicates.COUNT), 1 << 20).get();
+        assertEquals(List.of("a", "b"), TestRecords.strings(counted.records));
+        assertEquals(List.of(3L, 2L), counted.counts);
+    }
+
+    @Test
+    public void topKLargerThanTheInputKeepsEverything() throws IOException {
+        final ListSink sink = select(SortOptions.defaults().limit(100), 1 << 20).get();
+        assertEquals(List.of("a", "b", "c", "d", "e"), TestRecords.strings(sink.records));
+        assertEquals(List.of(3L, 2L, 1L, 1L, 1L), sink.counts);
+    }
+
+    @Test
+    public void topKGivesUpIfTheRecordsDoNotFit() throws IOException {
+        assertFalse(select(SortOptions.defaults().limit(100), 100).isPresent());
+    }
+
+    private static Optional<ListSink> select(final SortOptions options, final long memory) throws IOException {
+        final File input = File.createTempFile("input", ".tmp");
+        try {
+            Files.write(input.toPath(), INPUT.getBytes());
+            final Optional<TopK> top = TopK.select(input.getPath(), new MemoryBudget(memory),
+                    MergePlanner.MIN_BUFFER_SIZE, options);
+            if (top.isEmpty()) {
+                return Optional.empty();
+            }
+            assertEquals(8, top.get().recordsRead());
+            final ListSink sink = new ListSink();
+            top.get().writeTo(sink);
+            return Optional.of(sink);
+        } finally {
+            input.delete();
+        }
+    }
+}